@@ -8,6 +8,7 @@ import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.zip.GZIPInputStream;
 
 import org.nodes.data.Data;
 
@@ -21,12 +22,12 @@ public class Datasets
 
 	public static KGraph dogfood()
 	{
-		return dogfood(new ArrayList<String>(), new ArrayList<String>());
+		return dogfood(null, null);
 	}
 	
 	public static KGraph dogfood(List<String> labels, List<String> tags)
 	{
-		return getGraph("data/swdf-2012-11-28.hdt", labels, tags);
+		return getGraph("data/swdf-2012-11-28.nt.gz", labels, tags);
 	}
 	
 	public static KGraph getGraph(String res, List<String> labels, List<String> tags)
@@ -45,18 +46,24 @@ public class Datasets
 		try
 		{
 			if(instr == null)
-				return KGraph.loadHDT(file, labels, tags);
+				return KGraph.load(file, labels, tags);
+			
+			if(res.endsWith(".gz"))
+				instr = new GZIPInputStream(instr);
+			
+			if(KGraph.isNT(res))
+				return KGraph.loadNT(instr, labels, tags);
 			else 
 				return KGraph.loadHDT(instr, labels, tags);
 		} catch (IOException e)
 		{
-			throw new RuntimeException("Could not load the file or JAR resource for the Semantic Web dogfood graph from the classpath.", e);
+			throw new RuntimeException("Could not load the file or JAR resource "+res+" from the classpath.", e);
 		}
 	}
 	
 	public static KGraph aifb()
 	{
-		return aifb(new ArrayList<String>(), new ArrayList<String>());
+		return aifb(null, null);
 	}
 	
 	public static KGraph aifb(List<String> labels, List<String> tags)
@@ -66,7 +73,7 @@ public class Datasets
 	
 	public static KGraph mutag()
 	{
-		return mutag(new ArrayList<String>(), new ArrayList<String>());
+		return mutag(null, null);
 	}
 	
 	public static KGraph mutag(List<String> labels, List<String> tags)
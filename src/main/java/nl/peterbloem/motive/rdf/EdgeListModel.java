@@ -1,7 +1,9 @@
 package nl.peterbloem.motive.rdf;
 
+import static java.util.Arrays.asList;
 import static nl.peterbloem.kit.Functions.log2Factorial;
 import static nl.peterbloem.kit.Functions.prefix;
+import static nl.peterbloem.motive.rdf.Utils.view;
 
 import java.util.List;
 
@@ -18,7 +20,26 @@ public class EdgeListModel
 	{
 		return codelength(KGraphList.degrees(data), prior);
 	}
+	
+	/**
+	 * Uses the degrees cached by the graph.
+	 */
+	public static double codelength(KGraph data, Prior prior)
+	{
+		data = data.snapshot();
 		
+		return codelength(data.inDegrees(), data.outDegrees(), data.tagDegrees(), prior);
+	}
+	
+	/**
+	 * Computes the codelength from read-only views of the degree arrays, 
+	 * without copying them.
+	 */
+	public static double codelength(int[] inDegrees, int[] outDegrees, int[] tagDegrees, Prior priorType)
+	{	
+		return codelength(asList(view(inDegrees), view(outDegrees), view(tagDegrees)), priorType);
+	}
+	
 	public static double codelength(List<List<Integer>> degrees, Prior priorType)
 	{	
 		double prior = prior(degrees, priorType);
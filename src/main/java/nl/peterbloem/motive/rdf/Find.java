@@ -12,13 +12,19 @@ import static nl.peterbloem.motive.rdf.Triple.Part.SUBJECT;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
 
 import org.nodes.DTGraph;
 import org.nodes.DTLink;
@@ -32,6 +38,24 @@ public abstract class Find
 {	
 	private Find() {}
 
+	/**
+	 * The algorithms available for finding matches. 
+	 */
+	public static enum Engine 
+	{
+		/**
+		 * Backtracking over candidate sets for each variable, pruned after 
+		 * every choice (the default).
+		 */
+		CANDIDATES, 
+		/**
+		 * Leapfrog triejoin over the sorted permutations of the graph. This
+		 * is worst-case optimal, and tends to do better on patterns with 
+		 * cycles.
+		 */
+		LEAPFROG
+	}
+	
 	/**
 	 * Finds all matches for the given BGP pattern. 
 	 * @param pattern
@@ -39,14 +63,16 @@ public abstract class Find
 	 */
 	public static List<List<Integer>> find(DTGraph<Integer, Integer> pattern, KGraph graph)
 	{				
-		Candidates candidates = new Candidates(pattern, graph);
-				
-		candidates.prune();
-		
-		List<List<Integer>> matches = new ArrayList<>();
-		findInner(candidates, 0, matches, null);
-				
-		return matches;
+		return search(pattern, graph).matches();
+	}
+	
+	/**
+	 * Finds all matches for the given BGP pattern, using the given engine. 
+	 * All engines return the same matches (possibly in a different order).
+	 */
+	public static List<List<Integer>> find(DTGraph<Integer, Integer> pattern, KGraph graph, Engine engine)
+	{
+		return search(pattern, graph, engine).matches();
 	}
 
 	/**
@@ -57,25 +83,404 @@ public abstract class Find
 	 * @return
 	 */
 	public static List<List<Integer>> find(DTGraph<Integer, Integer> pattern, KGraph graph, int maxTime)
-	{				
-		TIMED_OUT = true;
+	{
+		return find(pattern, graph, maxTime, Engine.CANDIDATES);
+	}
+	
+	/**
+	 * 
+	 * @param pattern
+	 * @param graph
+	 * @param maxTime Maximum time in seconds. If time runs out, the matches found so far are returned.
+	 * @param engine The algorithm to use
+	 * @return
+	 */
+	public static List<List<Integer>> find(DTGraph<Integer, Integer> pattern, KGraph graph, int maxTime, Engine engine)
+	{
+		FindResult result = search(pattern, graph, maxTime, TimeUnit.SECONDS, engine);
+		
+		TIMED_OUT = result.timedOut();
+		return result.matches();
+	}
+	
+	/**
+	 * Whether the last search with a time limit timed out. 
+	 * 
+	 * @deprecated This is shared by all threads. Use search(), and check 
+	 * 	FindResult.timedOut() instead.
+	 */
+	@Deprecated
+	public static boolean TIMED_OUT = false;
+	
+	/**
+	 * Finds all matches for the given BGP pattern, and returns them together 
+	 * with some statistics about the search. 
+	 */
+	public static FindResult search(DTGraph<Integer, Integer> pattern, KGraph graph)
+	{
+		return search(pattern, graph, Engine.CANDIDATES);
+	}
+	
+	public static FindResult search(DTGraph<Integer, Integer> pattern, KGraph graph, Engine engine)
+	{
+		return run(pattern, graph, null, engine, null, new FindResult());
+	}
+	
+	/**
+	 * Finds the matches for the given BGP pattern, stopping after the given 
+	 * amount of time. If the search times out, the result contains the 
+	 * matches found up to that point.
+	 */
+	public static FindResult search(DTGraph<Integer, Integer> pattern, KGraph graph, long timeout, TimeUnit unit)
+	{
+		return search(pattern, graph, timeout, unit, Engine.CANDIDATES);
+	}
+	
+	public static FindResult search(DTGraph<Integer, Integer> pattern, KGraph graph, long timeout, TimeUnit unit, Engine engine)
+	{
+		return run(pattern, graph, System.nanoTime() + unit.toNanos(timeout), engine, null, new FindResult());
+	}
+	
+	/**
+	 * Finds all matches for the given BGP pattern, splitting the search into 
+	 * tasks that are run in the given pool. 
+	 * 
+	 * The matches are the same as those of a search in the calling thread 
+	 * (and in the same order).
+	 */
+	public static FindResult search(DTGraph<Integer, Integer> pattern, KGraph graph, Engine engine, ForkJoinPool pool)
+	{
+		return run(pattern, graph, null, engine, pool, new FindResult());
+	}
+	
+	/**
+	 * Finds the matches for the given BGP pattern, splitting the search into 
+	 * tasks that are run in the given pool. The time limit applies to the 
+	 * search as a whole: when it runs out, all tasks stop, and the matches 
+	 * found by all of them so far are returned. 
+	 */
+	public static FindResult search(DTGraph<Integer, Integer> pattern, KGraph graph, long timeout, TimeUnit unit, Engine engine, ForkJoinPool pool)
+	{
+		return run(pattern, graph, System.nanoTime() + unit.toNanos(timeout), engine, pool, new FindResult());
+	}
+	
+	/**
+	 * Counts the matches for the given BGP pattern, without storing them. 
+	 */
+	public static long count(DTGraph<Integer, Integer> pattern, KGraph graph)
+	{
+		return run(pattern, graph, null, Engine.CANDIDATES, null, new FindResult(false, Long.MAX_VALUE)).numMatches();
+	}
+	
+	/**
+	 * Counts the matches for the given BGP pattern, without storing them. The
+	 * count is available from FindResult.numMatches(). If the search times out
+	 * this is the number of matches found up to that point.
+	 */
+	public static FindResult count(DTGraph<Integer, Integer> pattern, KGraph graph, long timeout, TimeUnit unit, Engine engine)
+	{
+		return run(pattern, graph, System.nanoTime() + unit.toNanos(timeout), engine, null, new FindResult(false, Long.MAX_VALUE));
+	}
+	
+	/**
+	 * Returns the first n matches for the given BGP pattern (or all matches, if
+	 * there are fewer). 
+	 */
+	public static List<List<Integer>> first(DTGraph<Integer, Integer> pattern, KGraph graph, int n)
+	{
+		return run(pattern, graph, null, Engine.CANDIDATES, null, new FindResult(true, n)).matches();
+	}
+	
+	/**
+	 * Finds matches for the given BGP pattern, stopping after n matches have 
+	 * been found, or after the given amount of time. 
+	 */
+	public static FindResult first(DTGraph<Integer, Integer> pattern, KGraph graph, int n, long timeout, TimeUnit unit, Engine engine)
+	{
+		return run(pattern, graph, System.nanoTime() + unit.toNanos(timeout), engine, null, new FindResult(true, n));
+	}
+	
+	/**
+	 * Returns an iterator over the matches for the given BGP pattern. The 
+	 * matches are found as the iterator is consumed: the search only proceeds
+	 * as far as needed to produce the next match, and no matches are kept. 
+	 * 
+	 * Each match is returned as an array of values, in the same order (and 
+	 * with the same constraints) as the lists returned by find(). 
+	 */
+	public static MatchIterator iterator(DTGraph<Integer, Integer> pattern, KGraph graph)
+	{
+		return iterator(pattern, graph, Engine.CANDIDATES);
+	}
+	
+	public static MatchIterator iterator(DTGraph<Integer, Integer> pattern, KGraph graph, Engine engine)
+	{
+		return iterator(pattern, graph, null, engine);
+	}
+	
+	/**
+	 * Returns an iterator over the matches for the given BGP pattern, which 
+	 * stops once the given amount of time has passed. Note that this includes 
+	 * the time between the calls to the iterator. 
+	 */
+	public static MatchIterator iterator(DTGraph<Integer, Integer> pattern, KGraph graph, long timeout, TimeUnit unit, Engine engine)
+	{
+		return iterator(pattern, graph, System.nanoTime() + unit.toNanos(timeout), engine);
+	}
+	
+	private static MatchIterator iterator(DTGraph<Integer, Integer> pattern, KGraph graph, Long stopTime, Engine engine)
+	{
+		graph = graph.snapshot();
+		
+		MatchIterator iterator;
+		if(engine == Engine.LEAPFROG)
+			iterator = new Leapfrog(pattern, graph).iterator();
+		else 
+			iterator = new CandidatesIterator(new Candidates(pattern, graph));
+		
+		iterator.stopTime = stopTime;
+		return iterator;
+	}
+	
+	/**
+	 * An iterator over the matches of a pattern, which produces each match 
+	 * when it is requested. 
+	 */
+	public static abstract class MatchIterator implements Iterator<int[]>
+	{
+		// * The value of System.nanoTime() at which to stop, or null
+		Long stopTime;
+		boolean timedOut = false;
+		long expansions = 0;
+		
+		private long numMatches = 0;
+		
+		private int[] next;
+		private boolean ready = false;
+		
+		MatchIterator()
+		{
+		}
 		
-		Candidates candidates = new Candidates(pattern, graph);
+		/**
+		 * Searches for the next match.
+		 *  
+		 * @return The match, or null if there are no more (or the search has 
+		 * 	timed out).
+		 */
+		abstract int[] advance();
 		
-		List<List<Integer>> matches = new ArrayList<>();
-		findInner(candidates, 0, matches, System.nanoTime() + (long)1e9 * (long)maxTime);
+		@Override
+		public boolean hasNext()
+		{
+			if(! ready)
+			{
+				next = advance();
+				ready = true;
+			}
+			
+			return next != null;
+		}
+
+		@Override
+		public int[] next()
+		{
+			if(! hasNext())
+				throw new NoSuchElementException();
+			
+			ready = false;
+			numMatches ++;
+			
+			return next;
+		}
+		
+		/**
+		 * Whether the iterator stopped because its time ran out. 
+		 */
+		public boolean timedOut()
+		{
+			return timedOut;
+		}
+		
+		/**
+		 * The number of matches returned so far.
+		 */
+		public long numMatches()
+		{
+			return numMatches;
+		}
+		
+		/**
+		 * The number of nodes in the search tree expanded so far.
+		 */
+		public long expansions()
+		{
+			return expansions;
+		}
+		
+		/**
+		 * Checks whether the time has run out, and if so, marks the search as 
+		 * timed out. 
+		 */
+		boolean checkTime()
+		{
+			if(stopTime != null && System.nanoTime() - stopTime > 0)
+				timedOut = true;
+			
+			return timedOut;
+		}
+	}
+	
+	/**
+	 * The same search as findInner(), with the recursion replaced by an 
+	 * explicit stack, so that it can be paused after each match. 
+	 */
+	private static class CandidatesIterator extends MatchIterator
+	{
+		private Candidates candidates;
+		
+		// * For each depth in the search tree: the variable branched on, the 
+		//   current candidate (or -1 before the first), and the trail mark 
+		//   from before it was set
+		private int[] variables, current, marks;
+		private int top = -1;
+		// * Whether the current state of the candidate sets has yet to be 
+		//   examined
+		private boolean fresh = true;
+		
+		public CandidatesIterator(Candidates candidates)
+		{
+			this.candidates = candidates;
+			
+			int n = candidates.variables().size() + 1;
+			variables = new int[n];
+			current = new int[n];
+			marks = new int[n];
+			
+			candidates.prune();
+		}
+
+		@Override
+		int[] advance()
+		{
+			while(! timedOut)
+			{
+				if(fresh)
+				{
+					fresh = false;
+					
+					if(! candidates.isFailed())
+					{
+						if(candidates.isFinished())
+						{
+							if(candidates.isMatch())
+								return candidates.matchArray();
+						} else
+						{
+							top ++;
+							variables[top] = candidates.variable();
+							current[top] = -1;
+						}
+					}
+				}
 				
-		return matches;
+				// * Move to the next candidate at the top of the stack, or 
+				//   backtrack if there are none left
+				if(top < 0)
+					return null;
+				
+				int variable = variables[top], c = current[top];
+				if(c >= 0)
+				{
+					candidates.undo(marks[top]);
+					
+					if(checkTime())
+						return null;
+				}
+				
+				c = c < 0 ? candidates.firstCandidate(variable) : candidates.nextCandidate(variable, c);
+				while(c >= 0 && alreadyClaimed(c, variable, candidates))
+					c = candidates.nextCandidate(variable, c);
+				
+				if(c < 0)
+				{
+					top --;
+					continue;
+				}
+				
+				current[top] = c;
+				marks[top] = candidates.mark();
+				
+				candidates.setSingleton(variable, c);
+				expansions ++;
+				candidates.prune();
+				
+				fresh = true;
+			}
+			
+			return null;
+		}
 	}
 	
-	// * Whether the last search times out
-	public static boolean TIMED_OUT = false;
+	/**
+	 * @param stopTime The value of System.nanoTime() at which to stop, or 
+	 * 	null for no time limit. 
+	 * @param pool The pool to run the search in, or null to search in the 
+	 * 	calling thread.
+	 * @param result An empty result, which determines whether the matches are
+	 * 	stored and how many to look for. 
+	 */
+	private static FindResult run(DTGraph<Integer, Integer> pattern, KGraph graph, Long stopTime, Engine engine, ForkJoinPool pool, FindResult result)
+	{
+		long start = System.nanoTime();
+		
+		graph = graph.snapshot();
+		
+		if(result.limit <= 0)
+		{
+			result.limitReached = true;
+			return result;
+		}
+		
+		if(engine == Engine.LEAPFROG)
+		{
+			Leapfrog leapfrog = new Leapfrog(pattern, graph);
+			
+			if(pool == null || leapfrog.numVariables() == 0)
+			{
+				leapfrog.find(result, stopTime);
+			} else
+			{
+				int[] roots = leapfrog.roots();
+				int grain = Math.max(1, roots.length / (pool.getParallelism() * TASKS_PER_THREAD));
+				
+				result.add(pool.invoke(new LeapfrogBranch(pattern, graph, stopTime, result, roots, 0, roots.length, grain)));
+			}
+		} else 
+		{
+    		Candidates candidates = new Candidates(pattern, graph);
+    		
+    		candidates.prune();
+    		
+    		if(pool == null)
+    			findInner(candidates, 0, result, stopTime);
+    		else
+    			result.add(pool.invoke(new Branch(candidates, 0, stopTime, result, pool.getParallelism())));
+		}
+		
+		result.elapsed = System.nanoTime() - start;
+		return result;
+	}
 	
-	private static void findInner(Candidates candidates, int depth, List<List<Integer>> matches, Long stopTime)
+	// * The depth in the search tree up to which subtrees are split into 
+	//   separate tasks
+	private static final int MAX_SPLIT_DEPTH = 3;
+	// * The number of tasks to aim for per thread when splitting a range of 
+	//   candidates (more tasks balance the work better)
+	private static final int TASKS_PER_THREAD = 8;
+	
+	private static void findInner(Candidates candidates, int depth, FindResult result, Long stopTime)
 	{	
-//		if(System.nanoTime() > stopTime)
-//			return;
-		
 		assert depth <= candidates.variables().size();
 				
 		if(candidates.isFailed())
@@ -84,7 +489,11 @@ public abstract class Find
 		if(candidates.isFinished())
 		{
 			if(candidates.isMatch())
-				matches.add(candidates.match());
+			{
+				if(result.collect)
+					result.matches.add(candidates.match());
+				result.found();
+			}
 			
 			return;
 		}
@@ -98,27 +507,209 @@ public abstract class Find
 //				print = true;
 //			}
 		
-		int variable = candidates.variablesRemaining().get(0);
-		// - this function sorts the remaining variables on the fly, by number of candidates 
+		int variable = candidates.variable();
 		
-		for(int c : candidates.candidates(variable))
-			if(! alreadyClaimed(c, variable, candidates))
-			{	
-    			Candidates nwCandidates = candidates.copy();
+		// - Note that the candidate set is modified during recursion, but it is 
+		//   always restored before we move to the next candidate
+		for(int c = candidates.firstCandidate(variable); c >= 0; c = candidates.nextCandidate(variable, c))
+			if(! expand(candidates, variable, c, depth, result, stopTime))
+				return;
+	}
+	
+	/**
+	 * Searches the subtree in which the given variable is set to the given 
+	 * candidate. The candidate sets are restored afterwards. 
+	 * 
+	 * @return False if the search should stop (because it has timed out or 
+	 * 	found enough matches).
+	 */
+	private static boolean expand(Candidates candidates, int variable, int c, int depth, FindResult result, Long stopTime)
+	{
+		if(! alreadyClaimed(c, variable, candidates))
+		{	
+			int mark = candidates.mark();
 
-    			nwCandidates.setSingleton(variable, c);
-    			
-    			// * prune the candidate set
-    			//   (This may lead to a failure, which will be detected just after recursion)
-    			nwCandidates.prune();
-    			
-    			findInner(nwCandidates, depth+1, matches, stopTime);
-    			if(stopTime != null && System.nanoTime() > stopTime)
-    			{
-    				TIMED_OUT = true;
-    				return;
-    			}
+			candidates.setSingleton(variable, c);
+			result.expansions ++;
+			
+			// * prune the candidate set
+			//   (This may lead to a failure, which will be detected just after recursion)
+			candidates.prune();
+			
+			findInner(candidates, depth+1, result, stopTime);
+			
+			candidates.undo(mark);
+		}
+		
+		if(result.stopped())
+			return false;
+		
+		if(stopTime != null && System.nanoTime() - stopTime > 0)
+		{
+			result.timedOut = true;
+			return false;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * A part of the search, to be run in a ForkJoinPool: a range of the 
+	 * candidates for one variable, or (if values is null) the whole subtree 
+	 * below the current state of the candidate sets. 
+	 * 
+	 * A range is split in two until it is small enough. A range of one 
+	 * candidate, near the top of the search tree, is split again over the
+	 * candidates of the next variable, so that the work is spread out even if 
+	 * the first variable has few candidates. 
+	 */
+	private static class Branch extends RecursiveTask<FindResult>
+	{
+		private static final long serialVersionUID = 1L;
+
+		private Candidates candidates;
+		private int depth;
+		private Long stopTime;
+		// * The settings for the results of each part 
+		private FindResult settings;
+		private int parallelism;
+		
+		private int variable;
+		private int[] values;
+		private int from, to, grain;
+		
+		public Branch(Candidates candidates, int depth, Long stopTime, FindResult settings, int parallelism)
+		{
+			this.candidates = candidates;
+			this.depth = depth;
+			this.stopTime = stopTime;
+			this.settings = settings;
+			this.parallelism = parallelism;
+		}
+		
+		private Branch(Branch parent, Candidates candidates, int from, int to)
+		{
+			this(candidates, parent.depth, parent.stopTime, parent.settings, parent.parallelism);
+			
+			this.variable = parent.variable;
+			this.values = parent.values;
+			this.grain = parent.grain;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected FindResult compute()
+		{
+			FindResult result = settings.part();
+
+			if(values == null)
+			{
+				if(depth >= MAX_SPLIT_DEPTH || candidates.isFailed() || candidates.isFinished())
+				{
+					findInner(candidates, depth, result, stopTime);
+					return result;
+				}
+				
+				variable = candidates.variable();
+				values = new int[candidates.size(variable)];
+				int i = 0;
+				for(int c = candidates.firstCandidate(variable); c >= 0; c = candidates.nextCandidate(variable, c))
+					values[i++] = c;
+				
+				from = 0;
+				to = values.length;
+				grain = Math.max(1, values.length / (parallelism * TASKS_PER_THREAD));
+			}
+			
+			if(to - from > grain)
+			{
+				int mid = (from + to) >>> 1;
+				
+				Branch right = new Branch(this, candidates.copy(), mid, to);
+				right.fork();
+				
+				FindResult left = new Branch(this, candidates, from, mid).compute();
+				left.add(right.join());
+				
+				return left;
+			}
+			
+			if(to - from == 1 && depth + 1 < MAX_SPLIT_DEPTH)
+			{
+				int c = values[from];
+				if(alreadyClaimed(c, variable, candidates))
+					return result;
+				
+				candidates.setSingleton(variable, c);
+				candidates.prune();
+				
+				result = new Branch(candidates, depth + 1, stopTime, settings, parallelism).compute();
+				result.expansions ++;
+				
+				return result;
+			}
+			
+			for(int i = from; i < to; i++)
+				if(! expand(candidates, variable, values[i], depth, result, stopTime))
+					break;
+			
+			return result;
+		}
+	}
+	
+	/**
+	 * A part of a leapfrog search: a range of the values of the first 
+	 * variable.
+	 */
+	private static class LeapfrogBranch extends RecursiveTask<FindResult>
+	{
+		private static final long serialVersionUID = 1L;
+
+		private DTGraph<Integer, Integer> pattern;
+		private KGraph graph;
+		private Long stopTime;
+		private FindResult settings;
+		
+		private int[] roots;
+		private int from, to, grain;
+		
+		public LeapfrogBranch(
+				DTGraph<Integer, Integer> pattern, KGraph graph, Long stopTime, 
+				FindResult settings, int[] roots, int from, int to, int grain)
+		{
+			this.pattern = pattern;
+			this.graph = graph;
+			this.stopTime = stopTime;
+			this.settings = settings;
+			this.roots = roots;
+			this.from = from;
+			this.to = to;
+			this.grain = grain;
+		}
+
+		@Override
+		protected FindResult compute()
+		{
+			if(to - from > grain)
+			{
+				int mid = (from + to) >>> 1;
+				
+				LeapfrogBranch right = new LeapfrogBranch(pattern, graph, stopTime, settings, roots, mid, to, grain);
+				right.fork();
+				
+				FindResult left = new LeapfrogBranch(pattern, graph, stopTime, settings, roots, from, mid, grain).compute();
+				left.add(right.join());
+				
+				return left;
 			}
+			
+			FindResult result = settings.part();
+			if(from < to)
+				new Leapfrog(pattern, graph).find(result, stopTime, roots[from], roots[to - 1] + 1);
+			
+			return result;
+		}
 	}
 	
 	/**
@@ -139,8 +730,8 @@ public abstract class Find
 		
 		for(int otherVar : candidates.variables())
 			if(otherVar != var && ! candidates.isRelation(otherVar))
-				if(candidates.candidates(otherVar).size() == 1)
-					if(candidates.candidates(otherVar).contains(c))
+				if(candidates.size(otherVar) == 1)
+					if(candidates.isCandidate(otherVar, c))
 						return true;
 			
 		
@@ -148,123 +739,529 @@ public abstract class Find
 	}
 
 	/**
-	 * This class maintains a list of candidate nodes/predicates for each 
-	 * variable in the pattern.  
+	 * This class maintains a set of candidate nodes/predicates for each 
+	 * variable in the pattern. 
+	 * 
+	 * The candidate sets are stored as bitsets over the node or tag indices, so 
+	 * that intersections are word-wise operations.
+	 * 
+	 * The search modifies a single Candidates object in place. Every removal of a
+	 * candidate is recorded on a trail, so that the search can backtrack by 
+	 * calling undo(mark()), instead of copying all candidate sets at every 
+	 * level of the recursion.  
+	 * 
+	 * Pruning is driven by a queue of pattern links: a link is only checked 
+	 * again when one of its variables has lost candidates since it was last
+	 * checked. When a node variable is reduced to a single value, that value is
+	 * removed from all other node variables straight away.
 	 *  
 	 * @author Peter
 	 *
 	 */
 	private static class Candidates 
 	{
-		private Map<Integer, Boolean> isRelation = new LinkedHashMap<>();		
-		private Map<Integer, Set<Integer>> candidates = new LinkedHashMap<>();
-		private List<Integer> keys;
+		// * The variables, in order of first appearance in the pattern
+		private List<Integer> keys = new ArrayList<>();
+		// * Maps each variable to its position in the arrays below
+		private Map<Integer, Integer> indices = new LinkedHashMap<>();
+		
+		private boolean[] isRelation;
+		private BitSet[] candidates;
+		// * The size of each candidate set (BitSet.cardinality() is linear in 
+		//   the size of the graph, so we keep these up to date)
+		private int[] sizes;
+		// * The value a variable has been set to by setSingleton(), or -1. The
+		//   candidates of an assigned variable are its value, if that is still 
+		//   in its candidate set. This means that setSingleton doesn't need to 
+		//   remove all other values one by one.
+		private int[] assigned;
+		
+		// * The trail of removals: pairs of variable index and value. An 
+		//   assignment is recorded as -index-1 and the size of the candidate set 
+		//   before the assignment. Removals made before the first call to 
+		//   mark() are never undone, so they aren't recorded. 
+		private int[] trail = new int[64];
+		private int trailSize = 0;
+		private boolean recording = false;
+		
+		// * The links of the pattern, as arrays of subjects, predicates and 
+		//   objects (negative values are variables)
+		private int[] ss, ps, os;
+		// * For each variable, the indices of the links it occurs in 
+		private int[][] linksOf;
+		// * Whether a link contains the same variable more than once
+		private boolean[] repeats;
+		// * For each link and each position in it, the expected number of 
+		//   triples matching the link when the variable in that position is 
+		//   bound (estimated from the graph statistics)
+		private double[][] fanouts;
+		
+		// * The propagation queue of links to be checked (a ring buffer) 
+		private int[] queue;
+		private int head = 0, queueSize = 0;
+		private boolean[] queued;
+		// * The link currently being checked
+		private int current = -1;
+		
+		// * Node variables that have been reduced to a single value, which 
+		//   should be removed from the other node variables
+		private int[] singletons;
+		private int numSingletons = 0;
+		private boolean[] isPending;
+		
+		// * The number of variables without candidates 
+		private int numEmpty = 0;
+		
+		// * The variable indices in the order of the values in a match 
+		//   (computed when first needed)
+		private int[] outputOrder;
+		
+		private DTGraph<Integer, Integer> pattern;
+		private KGraph graph; 
+		
+		public Candidates(DTGraph<Integer, Integer> pattern, KGraph graph)
+		{
+			this.pattern = pattern;
+			this.graph = graph;
+			
+			int m = (int) pattern.numLinks();
+			ss = new int[m]; 
+			ps = new int[m]; 
+			os = new int[m];
+			repeats = new boolean[m];
+			
+			List<Boolean> relations = new ArrayList<>();
+			List<List<Integer>> links = new ArrayList<>();
+			
+			int l = 0;
+			for(DTLink<Integer, Integer> link : pattern.links())
+			{
+				int s = link.from().label(), p = link.tag(), o = link.to().label();
+				
+				ss[l] = s; ps[l] = p; os[l] = o;
+				repeats[l] = (s < 0 && (s == p || s == o)) || (p < 0 && p == o);
+				
+				for(int var : new int[]{s, p, o})
+					if(var < 0)
+					{
+						if(! indices.containsKey(var))
+						{
+							indices.put(var, keys.size());
+							keys.add(var);
+							relations.add(var == p);
+							links.add(new ArrayList<>());
+						}
+						
+						List<Integer> varLinks = links.get(indices.get(var));
+						if(! varLinks.contains(l))
+							varLinks.add(l);
+					}
+				
+				l++;
+			}
+			
+			int n = keys.size();
+			isRelation = new boolean[n];
+			candidates = new BitSet[n];
+			sizes = new int[n];
+			assigned = new int[n];
+			Arrays.fill(assigned, -1);
+			linksOf = new int[n][];
+			
+			for(int i : series(n))
+			{
+				isRelation[i] = relations.get(i);
+				candidates[i] = all(! isRelation[i]);
+				
+				linksOf[i] = new int[links.get(i).size()];
+				for(int j : series(linksOf[i].length))
+					linksOf[i][j] = links.get(i).get(j);
+			}
+			
+			for(int link : series(m))
+			{
+				int s = ss[link], p = ps[link], o = os[link];
+								
+				List<BitSet> sets = toSets(graph, s, p, o);
+				
+				if (s < 0)
+					candidates[indices.get(s)].and(sets.get(0));
+				
+				if (p < 0)
+					candidates[indices.get(p)].and(sets.get(1));
+				
+				if (o < 0)
+					candidates[indices.get(o)].and(sets.get(2));
+			}
+			
+			fanouts = new double[m][];
+			for(int link : series(m))
+				fanouts[link] = fanouts(ss[link], ps[link], os[link]);
+			
+			queue = new int[m];
+			queued = new boolean[m];
+			singletons = new int[n];
+			isPending = new boolean[n];
+			
+			for(int i : series(n))
+			{
+				sizes[i] = candidates[i].cardinality();
+				
+				if(sizes[i] == 0)
+					numEmpty ++;
+				if(sizes[i] == 1)
+					pending(i);
+			}
+
+			// * All links need to be checked at least once 
+			for(int link : series(m))
+				enqueue(link);
+		}
+		
+		/**
+		 * Creates an independent copy of the given candidate sets, so that the 
+		 * copy can be searched in another thread. The copy starts with an empty
+		 * trail. The parts that don't change during the search (the pattern
+		 * and the link statistics) are shared. 
+		 */
+		private Candidates(Candidates other)
+		{
+			pattern = other.pattern;
+			graph = other.graph;
+			
+			keys = other.keys;
+			indices = other.indices;
+			isRelation = other.isRelation;
+			
+			ss = other.ss;
+			ps = other.ps;
+			os = other.os;
+			linksOf = other.linksOf;
+			repeats = other.repeats;
+			fanouts = other.fanouts;
+			
+			candidates = new BitSet[other.candidates.length];
+			for(int i : series(candidates.length))
+				candidates[i] = (BitSet) other.candidates[i].clone();
+			
+			sizes = other.sizes.clone();
+			assigned = other.assigned.clone();
+			
+			queue = other.queue.clone();
+			head = other.head;
+			queueSize = other.queueSize;
+			queued = other.queued.clone();
+			current = other.current;
+			
+			singletons = other.singletons.clone();
+			numSingletons = other.numSingletons;
+			isPending = other.isPending.clone();
+			
+			numEmpty = other.numEmpty;
+		}
+		
+		public Candidates copy()
+		{
+			return new Candidates(this);
+		}
+		
+		/**
+		 * Estimates the number of triples matching the given triple pattern for
+		 * each position, once the variable in that position is bound. 
+		 */
+		private double[] fanouts(int s, int p, int o)
+		{
+			double total = graph.count(s, p, o);
+			
+			// * Estimate the number of distinct values for each position
+			double ds, dp, dob; 
+			if(p >= 0 && o < 0)
+				ds = graph.numSubjects(p);
+			else 
+				ds = Math.min(total, graph.size());
+			
+			if(p >= 0 && s < 0)
+				dob = graph.numObjects(p);
+			else 
+				dob = Math.min(total, graph.size());
+			
+			dp = Math.min(total, graph.tags().size());
+			
+			return new double[] {
+					total / Math.max(1.0, ds), 
+					total / Math.max(1.0, dp), 
+					total / Math.max(1.0, dob)};
+		}
+		
+		/**
+		 * The expected cost of checking the given link by iterating over the 
+		 * candidates of the variable in the given position. 
+		 */
+		private double cost(int link, Part from)
+		{
+			int var = s(ss[link], ps[link], os[link], from);
+			return sizes[indices.get(var)] * fanouts[link][from.ordinal()];
+		}
 		
-		private DTGraph<Integer, Integer> pattern;
-		private KGraph graph; 
+		private void enqueue(int link)
+		{
+			if(queued[link] || (link == current && ! repeats[link]))
+				return;
+			
+			// - A link without repeated variables doesn't need to be checked 
+			//   again for removals caused by checking that link.
+			
+			queue[(head + queueSize) % queue.length] = link;
+			queueSize ++;
+			queued[link] = true;
+		}
 		
-		private Candidates()
+		private int dequeue()
 		{
+			int link = queue[head];
+			head = (head + 1) % queue.length;
+			queueSize --;
+			queued[link] = false;
+			
+			return link;
 		}
 		
-		public Candidates(DTGraph<Integer, Integer> pattern, KGraph graph)
+		/**
+		 * Marks the node variable at index i as a singleton, whose value should 
+		 * be removed from the other node variables. 
+		 */
+		private void pending(int i)
 		{
-			this.pattern = pattern;
-			this.graph = graph;
+			if(isRelation[i] || isPending[i])
+				return;
 			
-			for(DTLink<Integer, Integer> link : pattern.links())
+			singletons[numSingletons++] = i;
+			isPending[i] = true;
+		}
+		
+		/**
+		 * Returns the current position in the trail. Passing the result to 
+		 * undo() restores the candidate sets to their current state.
+		 */
+		public int mark()
+		{
+			recording = true;
+			return trailSize;
+		}
+		
+		/**
+		 * Restores all candidates removed since the given mark was taken.
+		 */
+		public void undo(int mark)
+		{
+			while(trailSize > mark)
 			{
-				int s = link.from().label(), p = link.tag(), o = link.to().label();
-								
-				if (s < 0 && ! candidates.containsKey(s))
-				{
-					candidates.put(s, all(true));
-					isRelation.put(s, false);
-				}
-				
-				if (p < 0 && ! candidates.containsKey(p))
-				{
-					candidates.put(p, all(false));
-					isRelation.put(p, true);
-				}
+				int value = trail[--trailSize], 
+				    i = trail[--trailSize];
 				
-				if (o < 0 && ! candidates.containsKey(o))
+				if(i < 0)
 				{
-					candidates.put(o, all(true));
-					isRelation.put(o, false);
+					// * undo an assignment
+					i = - i - 1;
+					assigned[i] = -1;
+					
+					if(sizes[i] == 0)
+						numEmpty --;
+					sizes[i] = value;
+					
+					continue;
 				}
 				
-				List<Set<Integer>> sets = toSets(graph.find(
-						s < 0 ? null : s, 
-						p < 0 ? null : p, 
-						o < 0 ? null : o));
-				
-				if (s < 0)
-					candidates.put(s, intersect(candidates.get(s), sets.get(0)));
-				
-				if (p < 0)
-					candidates.put(p, intersect(candidates.get(p), sets.get(1)));
-				
-				if (o < 0)
-					candidates.put(o, intersect(candidates.get(o), sets.get(2)));
-
+				candidates[i].set(value);
+				if(sizes[i] == 0)
+					numEmpty --;
+				sizes[i] ++;
 			}
 			
-			assert candidates.keySet().equals(isRelation.keySet());
-						
-			init();
+			// * The candidates are now as they were after the previous call to
+			//   prune, so there is nothing to propagate
+			while(queueSize > 0)
+				dequeue();
+			while(numSingletons > 0)
+				isPending[singletons[--numSingletons]] = false;
 		}
 		
-		private void init()
+		/**
+		 * Removes a single value from the candidates of the variable at index i,
+		 * recording it on the trail.
+		 */
+		private void remove(int i, int value)
 		{
-			keys = new ArrayList<>(candidates.keySet());
+			assert in(i, value);
 			
-			assert pattern != null;
-			assert graph != null;
+			candidates[i].clear(value);
+			sizes[i] --;
+			
+			if(sizes[i] == 0)
+				numEmpty ++;
+			if(sizes[i] == 1)
+				pending(i);
+			
+			for(int link : linksOf[i])
+				enqueue(link);
+			
+			record(i, value);
 		}
 		
-		/** 
-		 * Deep copy
-		 * @return
-		 */
-		public Candidates copy()
+		private void record(int a, int b)
 		{
-			Candidates result = new Candidates();
+			if(! recording)
+				return;
+			
+			if(trailSize + 2 > trail.length)
+				trail = Arrays.copyOf(trail, trail.length * 2);
 			
-			for(Map.Entry<Integer, Set<Integer>> entry : this.candidates.entrySet())
-				result.candidates.put(entry.getKey(), new LinkedHashSet<>(entry.getValue()));
+			trail[trailSize++] = a;
+			trail[trailSize++] = b;
+		}
+		
+		/**
+		 * Removes all candidates for the variable at index i.
+		 */
+		private void clear(int i)
+		{
+			for(int c = first(i); c >= 0; c = next(i, c))
+				remove(i, c);
+		}
+		
+		/**
+		 * Whether the given value is a candidate for the variable at index i.
+		 */
+		private boolean in(int i, int value)
+		{
+			if(assigned[i] >= 0 && assigned[i] != value)
+				return false;
 			
-			result.isRelation = new LinkedHashMap<>(this.isRelation);
+			return candidates[i].get(value);
+		}
+		
+		/**
+		 * The first candidate for the variable at index i, or -1 if there are 
+		 * none.
+		 */
+		private int first(int i)
+		{
+			if(assigned[i] >= 0)
+				return candidates[i].get(assigned[i]) ? assigned[i] : -1;
 			
-			result.graph = graph;
-			result.pattern = pattern;
+			return candidates[i].nextSetBit(0);
+		}
+		
+		/**
+		 * The next candidate after the given one, for the variable at index i, 
+		 * or -1 if there are none.
+		 */
+		private int next(int i, int value)
+		{
+			if(assigned[i] >= 0)
+				return -1;
 			
-			result.init();
-			return result;
+			return candidates[i].nextSetBit(value + 1);
+		}
+		
+		/**
+		 * The first candidate for the given variable, or -1 if there are none. 
+		 */
+		public int firstCandidate(int variable)
+		{
+			return first(indices.get(variable)); 
+		}
+		
+		/**
+		 * The next candidate after the given one, for the given variable (or -1
+		 * if there are none). 
+		 */
+		public int nextCandidate(int variable, int value)
+		{
+			return next(indices.get(variable), value); 
 		}
 		
-		public Set<Integer> candidates(int variable)
+		public boolean isCandidate(int variable, int value)
 		{
-			return unmodifiableSet(candidates.get(variable)); 
+			return in(indices.get(variable), value);
+		}
+		
+		public int size(int variable)
+		{
+			return sizes[indices.get(variable)];
 		}
 		
 		public boolean isRelation(int variable)
 		{
-			return isRelation.get(variable); 
+			return isRelation[indices.get(variable)]; 
 		}
 		
 		public void setSingleton(int variable, int candidate)
 		{
-			assert(candidates.containsKey(variable));
+			int i = indices.get(variable);
+			
+			assert assigned[i] < 0 && in(i, candidate);
+			
+			record(- i - 1, sizes[i]);
+			
+			assigned[i] = candidate;
+			sizes[i] = 1;
+			
+			pending(i);
+			for(int link : linksOf[i])
+				enqueue(link);
+			
+			if(! isRelation[i])
+				for(int j : series(keys.size()))
+					if(j != i && ! isRelation[j] && in(j, candidate))
+						remove(j, candidate);
+		}
+		
+		/**
+		 * Replaces the candidate set of the variable at index i by its 
+		 * intersection with the given set.
+		 * 
+		 * @return True if the candidate set changed.
+		 */
+		private boolean retain(int i, BitSet retain)
+		{
+			int old = sizes[i];
+			
+			for(int c = first(i); c >= 0; c = next(i, c))
+				if(! retain.get(c))
+					remove(i, c);
+			
+			return sizes[i] != old;
+		}
+		
+		/**
+		 * Removes the given values from the candidate set of the variable at 
+		 * index i.
+		 * 
+		 * @return True if the candidate set changed.
+		 */
+		private boolean remove(int i, BitSet remove)
+		{
+			int old = sizes[i];
 			
-			Set<Integer> nw = new LinkedHashSet<>();
-			nw.add(candidate);
-			candidates.put(variable, nw);
+			if(assigned[i] >= 0)
+			{
+				if(in(i, assigned[i]) && remove.get(assigned[i]))
+					remove(i, assigned[i]);
+			} else
+				for(int c = remove.nextSetBit(0); c >= 0; c = remove.nextSetBit(c + 1))
+					if(candidates[i].get(c))
+						remove(i, c);
 			
-			if(! isRelation(variable))
-				for(int other : variables())
-					if(other != variable && ! isRelation(other))
-						candidates.get(other).remove(candidate);
+			return sizes[i] != old;
+		}
+		
+		/**
+		 * The single candidate of the variable at index i.
+		 */
+		private int value(int i)
+		{
+			return first(i);
 		}
 		
 		/**
@@ -283,36 +1280,31 @@ public abstract class Find
 			
 			// * Check whether all links in completed pattern exist and each maps 
 			//   to a unique triple 
-			Set<Triple> triples = new LinkedHashSet<>();
-			for(DTLink<Integer, Integer> link : pattern.links())
+			int n = this.ss.length, i = 0;
+			int[] ss = new int[n], ps = new int[n], os = new int[n];
+			
+			for(int link : series(n))
 			{
-				int s = link.from().label(), p = link.tag(), o = link.to().label();
+				int s = this.ss[link], p = this.ps[link], o = this.os[link];
 				
 				if (s < 0)
-					s = candidates.get(s).iterator().next();
+					s = value(indices.get(s));
 				if (p < 0)
-					p = candidates.get(p).iterator().next();
+					p = value(indices.get(p));
 				if (o < 0)
-					o = candidates.get(o).iterator().next();
+					o = value(indices.get(o));
 				
-				Set<Triple> res = graph.find(s, p, o);
-				if(res.isEmpty())
-				{
+				if(! graph.contains(s, p, o))
 					return false;
-				} else
-				{
-					assert res.size() == 1;
-					Triple triple = res.iterator().next();
-					if(triples.contains(triple))
-					{
+				
+				for(int j = 0; j < i; j++)
+					if(ss[j] == s && ps[j] == p && os[j] == o)
 						return false; // triple already matched (we can probably
 						              // speed things up by eliminating these
 						              // earlier)
-					}
-					
-					triples.add(triple);
-				}
-					
+				
+				ss[i] = s; ps[i] = p; os[i] = o;
+				i++;
 			}
 			
 			return true;
@@ -323,8 +1315,8 @@ public abstract class Find
 		 */
 		public boolean isSingleton()
 		{
-			for(int key : candidates.keySet())
-				if(candidates.get(key).size() != 1)
+			for(int size : sizes)
+				if(size != 1)
 					return false;
 			
 			return true;
@@ -337,8 +1329,8 @@ public abstract class Find
 		 */
 		public boolean isFinished()
 		{
-			for(int key : candidates.keySet())
-				if(candidates.get(key).size() > 1)
+			for(int size : sizes)
+				if(size > 1)
 					return false;
 			
 			return true;
@@ -351,21 +1343,7 @@ public abstract class Find
 		 */
 		public boolean isFailed()
 		{
-			for(int key : candidates.keySet())
-			{
-				if(candidates.get(key).isEmpty())
-					return true;
-				
-				// * check if this is a singleton candidate whose value is also 
-				//   claimed by another  
-//				if(candidates.get(key).size() == 1 && ! isRelation(key))
-//					for(int other : candidates.keySet())
-//						if(other != key && candidates.get(other).size() == 1 && ! isRelation(other))
-//							if(candidates.get(other).equals(candidates.get(key)))
-//								return false;
-			}
-			
-			return false;
+			return numEmpty > 0;
 		}
 
 		public List<Integer> variables()
@@ -373,6 +1351,60 @@ public abstract class Find
 			return Collections.unmodifiableList(keys);
 		}
 		
+		/**
+		 * Chooses the next variable to branch on. 
+		 * 
+		 * We estimate, for each variable, the number of partial matches we'll 
+		 * have once the variable and its neighbors in the pattern have been 
+		 * bound: the number of candidates for the variable times, for each 
+		 * unbound neighbor, the expected number of its candidates per value of 
+		 * the variable. The latter is the smaller of the neighbor's current
+		 * candidates and the average fanout of the link between them in the 
+		 * graph. The variable with the lowest estimate is returned. 
+		 */
+		public int variable()
+		{
+			int best = -1;
+			double bestCost = Double.POSITIVE_INFINITY;
+			
+			for(int i : series(keys.size()))
+			{
+				if(sizes[i] <= 1)
+					continue;
+				
+				int var = keys.get(i);
+				double cost = sizes[i];
+				
+				for(int link : linksOf[i])
+				{
+					int other;
+					Part from; 
+					if(ss[link] == var && os[link] < 0 && os[link] != var)
+					{
+						other = os[link];
+						from = SUBJECT;
+					} else if(os[link] == var && ss[link] < 0 && ss[link] != var)
+					{
+						other = ss[link];
+						from = OBJECT;
+					} else 
+						continue;
+					
+					int j = indices.get(other);
+					if(sizes[j] > 1)
+						cost *= Math.min(sizes[j], Math.max(1.0, fanouts[link][from.ordinal()]));
+				}
+				
+				if(cost < bestCost || (cost == bestCost && sizes[i] < sizes[best]))
+				{
+					best = i;
+					bestCost = cost;
+				}
+			}
+			
+			return keys.get(best);
+		}
+		
 		/**
 		 * Provides a list of the variables (those with more than 1 candidate), 
 		 * sorted by number of candidates
@@ -384,11 +1416,11 @@ public abstract class Find
 			
 			List<Integer> res = new ArrayList<>(keys.size());
 			for(int key : keys)
-				if(candidates.get(key).size() > 1)
+				if(size(key) > 1)
 					res.add(key);
 			
 			res.sort((Integer k1, Integer k2) -> 
-				Integer.compare(candidates.get(k1).size(), candidates.get(k2).size()) );
+				Integer.compare(size(k1), size(k2)) );
 
 			return res;
 		}
@@ -403,102 +1435,135 @@ public abstract class Find
 		{
 			assert isMatch();
 			
-			List<Integer> keys = new ArrayList<>(candidates.keySet());
+			List<Integer> keys = new ArrayList<>(this.keys);
 			
 			Collections.sort(keys, reverseOrder());
 			List<Integer> result = new ArrayList<>(keys.size());	
 			
 			for(int key : keys)
 			{
-				Set<Integer> cands = candidates.get(key);
+				if(size(key) != 1)
+					throw new RuntimeException("Number of candidates for variable " + key + " is not 1, but " + size(key)+".");
 				
-				if(cands.size() != 1)
-					throw new RuntimeException("Number of candidates for variable " + key + " is not 1, but " + cands.size()+".");
-				
-				result.add(cands.iterator().next());
+				result.add(value(indices.get(key)));
 			}
 			
 			return result;
 		}
 		
-		private Set<Integer> all(boolean nodes)
+		/**
+		 * The match of this candidate set as an array of values, in the same 
+		 * order as match().
+		 */
+		public int[] matchArray()
 		{
-			Set<Integer> result = new LinkedHashSet<>();
+			if(outputOrder == null)
+			{
+				List<Integer> keys = new ArrayList<>(this.keys);
+				Collections.sort(keys, reverseOrder());
+				
+				outputOrder = new int[keys.size()];
+				for(int i : series(keys.size()))
+					outputOrder[i] = indices.get(keys.get(i));
+			}
 			
-			if(nodes)
-    			for(KNode node : graph.nodes())
-    				result.add(node.label());
-			else
-				for(int tag : graph.tags())
-    				result.add(tag);
+			int[] result = new int[outputOrder.length];
+			for(int i : series(outputOrder.length))
+				result[i] = value(outputOrder[i]);
+			
+			return result;
+		}
+		
+		private BitSet all(boolean nodes)
+		{
+			BitSet result = new BitSet();
+			result.set(0, nodes ? graph.size() : graph.tags().size());
 			
 			return result;
 		}
 		
+		/**
+		 * Propagates all removals since the last call, until no more candidates
+		 * can be removed, or a variable runs out of candidates.
+		 */
 		public void prune()
 		{
-			boolean changed = true;
-			while (changed)
+			while(! isFailed())
 			{
-				changed = false;
-				
-				for(DTLink<Integer, Integer> link : pattern.links())
+				if(numSingletons > 0)
 				{
-					int s = link.from().label(), p = link.tag(), o = link.to().label();
-
-					if(s < 0 && p < 0 && o < 0)
-					{
-						changed |= prune3Var(s, p, o, SUBJECT);
-						changed |= prune3Var(s, p, o, PREDICATE);
-						changed |= prune3Var(s, p, o, OBJECT);
-						
-					} else if (s < 0 && p < 0)
-					{
-						changed |= prune2Var(s, p, o, Part.SUBJECT, Part.PREDICATE);
-						changed |= prune2Var(s, p, o, Part.PREDICATE, Part.SUBJECT);
-						
-					} else if (s < 0 && o < 0)
-					{
-						changed |= prune2Var(s, p, o, Part.SUBJECT, Part.OBJECT);
-						changed |= prune2Var(s, p, o, Part.OBJECT, Part.SUBJECT);	
-						
-					} else if (p < 0 && o < 0)
-					{	
-						changed |= prune2Var(s, p, o, Part.PREDICATE, Part.OBJECT);
-						changed |= prune2Var(s, p, o, Part.OBJECT, Part.PREDICATE);
-						
-					} else if (s < 0)
-					{
-						changed |= prune1Var(s, p, o, Part.SUBJECT);
-					} else if (p < 0)
-					{
-						changed |= prune1Var(s, p, o, Part.PREDICATE);
-					} else if (o < 0)
-					{
-						changed |= prune1Var(s, p, o, Part.OBJECT);
-					} else 
-					{
-						changed |= pruneTriple(s, p, o);
-					} 
+					// * No two node variables can take the same value
+					int i = singletons[--numSingletons];
+					isPending[i] = false;
 					
-					// * If a value occurs as the single candidate for two nodes,
-					//   remove it from one (triggering a failure later)
-					for(int key : keys)
-						if(candidates.get(key).size() == 1 && ! isRelation(key))
-							for(int other : candidates.keySet())
-								if(other != key && candidates.get(other).size() == 1 && ! isRelation(other))
-									if(candidates.get(other).equals(candidates.get(key)))
-										candidates.get(key).clear();
+					if(sizes[i] != 1)
+						continue;
 					
-					// * If we've found a reason the pattern can't be satisfied.
-					//   (the search algorithm will end the branch at the next 
-					//   recursion)
-					if(isFailed())
-						return;
+					int value = value(i);
+					for(int j : series(keys.size()))
+						if(j != i && ! isRelation[j] && in(j, value))
+							remove(j, value);
+					
+				} else if(queueSize > 0)
+				{
+					current = dequeue();
+					prune(current);
+					current = -1;
+				} else 
+				{
+					return;
 				}
 			}
 		}
 		
+		/**
+		 * Removes the candidates that are not supported by the given link.
+		 */
+		private void prune(int link)
+		{
+			int s = ss[link], p = ps[link], o = os[link];
+
+			// - If the link has no repeated variables, a single pass from any 
+			//   position removes all unsupported candidates, so we take the 
+			//   cheapest. Otherwise, we check from all positions.
+			
+			if(s < 0 && p < 0 && o < 0)
+			{
+				if(repeats[link])
+				{
+					prune3Var(s, p, o, SUBJECT);
+					prune3Var(s, p, o, PREDICATE);
+					prune3Var(s, p, o, OBJECT);
+				} else
+					prune3Var(s, p, o, cheapest(link, SUBJECT, PREDICATE, OBJECT));
+				
+			} else if (s < 0 && p < 0)
+			{
+				prune2Var(link, Part.SUBJECT, Part.PREDICATE);
+				
+			} else if (s < 0 && o < 0)
+			{
+				prune2Var(link, Part.SUBJECT, Part.OBJECT);
+				
+			} else if (p < 0 && o < 0)
+			{	
+				prune2Var(link, Part.PREDICATE, Part.OBJECT);
+				
+			} else if (s < 0)
+			{
+				prune1Var(s, p, o, Part.SUBJECT);
+			} else if (p < 0)
+			{
+				prune1Var(s, p, o, Part.PREDICATE);
+			} else if (o < 0)
+			{
+				prune1Var(s, p, o, Part.OBJECT);
+			} else 
+			{
+				pruneTriple(s, p, o);
+			} 
+		}
+		
 		/** 
 		 * Prune a fully grounded triple
 		 * @param s
@@ -508,11 +1573,11 @@ public abstract class Find
 		 */
 		private boolean pruneTriple(int s, int p, int o)
 		{
-			if(graph.find(s, p, o).isEmpty())
+			if(! graph.contains(s, p, o))
 			{
 				// Set any candidate to empty to trigger failure
-				if(! candidates.isEmpty())
-					candidates.values().iterator().next().clear();
+				if(! keys.isEmpty())
+					clear(0);
 			}
 			
 			return false;
@@ -535,7 +1600,7 @@ public abstract class Find
 				return new int [] {s, o};
 			return new int [] {s, p};
 		}
-		
+
 		private Part[] o(Part part)
 		{
 			if(part == SUBJECT)
@@ -548,200 +1613,168 @@ public abstract class Find
 			return null;
 		}
 
-		private Set<Triple> query(int s, int p, int o, Part var)  
-		{		
-			if(var == Part.SUBJECT)
-				return graph.find(null, p, o);
-			if(var == Part.PREDICATE)
-				return graph.find(s, null, o);
-			if(var == OBJECT)
-				return graph.find(s, p, null);
-			
-			return null;
-		}
-		
-		private Set<Triple> query(int s, int p, int o, Part from, Part to, int fc)  
-		{		
-			if(from == Part.SUBJECT)
-				s = fc;
-			if(from == Part.PREDICATE)
-				p = fc;
-			if(from == Part.OBJECT)
-				o = fc;
+		private boolean prune1Var(int s, int p, int o, Part var)
+		{
+			int v = indices.get(s(s, p, o, var));
 			
-			if(to == Part.SUBJECT)
-				return graph.find(null, p, o);
-			if(to == Part.PREDICATE)
-				return graph.find(s, null, o);
-			if(to == Part.OBJECT)
-				return graph.find(s, p, null);
+			BitSet newC = new BitSet();
+			graph.find(s, p, o, (subj, pred, obj) -> {
+				newC.set(s(subj, pred, obj, var));
+			});
 			
-			return null;
+			return retain(v, newC);
 		}
 		
-		
-		private Set<Triple> query(int s, int p, int o, Part nonvar, int fc)  
-		{		
-			if(nonvar == Part.SUBJECT)
-				return graph.find(fc, null, null);
-			if(nonvar == Part.PREDICATE)
-				return graph.find(null, fc, null);
-			if(nonvar == Part.OBJECT)
-				return graph.find(null, null, fc);
-			
-			return null;
-		}
+		// * Whether the current scan in prune2Var/prune3Var has found a 
+		//   supporting triple
+		private boolean supported;
 
-		private boolean prune1Var(int s, int p, int o, Part var)
+		private Part cheapest(int link, Part... parts)
 		{
-			int v = s(s, p, o, var);
+			Part best = null;
+			for(Part part : parts)
+				if(best == null || cost(link, part) < cost(link, best))
+					best = part;
 			
-			Set<Integer> oldC = candidates.get(v);
-			
-			Set<Integer> newC = new LinkedHashSet<>();
-			for(Triple triple : query(s, p, o, var))
-				newC.add(triple.get(var));
-			
-			newC = intersect(oldC, newC);
+			return best;
+		}
+		
+		/**
+		 * Checks a link with two variables, from the cheapest side. 
+		 */
+		private void prune2Var(int link, Part a, Part b)
+		{
+			int s = ss[link], p = ps[link], o = os[link];
 			
-			if( newC.size() != oldC.size() || (! oldC.equals(newC)) )
+			if(repeats[link])
 			{
-				candidates.put(v, newC);
-				return true;
-			}
-				
-			return false;
+				prune2Var(s, p, o, a, b);
+				prune2Var(s, p, o, b, a);
+			} else if(cost(link, a) <= cost(link, b))
+				prune2Var(s, p, o, a, b);
+			else
+				prune2Var(s, p, o, b, a);
 		}
 
 		private boolean prune2Var(int s, int p, int o, Part from, Part to)
 		{			
+			int f = indices.get(s(s, p, o, from)),
+			    t = indices.get(s(s, p, o, to));
 			
-			int f = s(s, p, o, from),
-			    t = s(s, p, o, to);
-			
-			Set<Integer> fOld = candidates.get(f),
-    		             tOld = candidates.get(t);
+    		BitSet fToRemove = new BitSet();
+    		BitSet tToRetain = new BitSet();
     		
-    		Set<Integer> fToRemove = new LinkedHashSet<>();
-    		Set<Integer> tToRetain = new LinkedHashSet<>();
-    		
-    		for(int fc : candidates.get(f))
+    		for(int fc = first(f); fc >= 0; fc = next(f, fc))
     		{
-    			Set<Integer> neighbs = new LinkedHashSet<>();
-    			for(Triple triple : query(s, p, o, from, to, fc))
-    				neighbs.add(triple.get(to));
+    			int qs = from == SUBJECT ? fc : s, 
+    			    qp = from == PREDICATE ? fc : p, 
+    			    qo = from == OBJECT ? fc : o;
     			
-    			neighbs = intersect(neighbs, tOld);
+    			supported = false;
     			
-    			if(neighbs.isEmpty())
-    				fToRemove.add(fc);
+    			if(graph.count(qs, qp, qo) <= sizes[t])
+    			{
+    				// * Walk the triples from fc  
+        			graph.find(qs, qp, qo,
+        					(subj, pred, obj) -> {
+        						int value = s(subj, pred, obj, to);
+        						if(in(t, value))
+        						{
+        							tToRetain.set(value);
+        							supported = true;
+        						}
+        					});
+    			} else 
+    			{
+    				// * There are fewer candidates for t than triples to walk, so 
+    				//   we check each candidate directly
+    				for(int tc = first(t); tc >= 0; tc = next(t, tc))
+    					if(graph.contains(
+    							to == SUBJECT ? tc : qs, 
+    							to == PREDICATE ? tc : qp, 
+    							to == OBJECT ? tc : qo))
+    					{
+    						tToRetain.set(tc);
+    						supported = true;
+    					}
+    			}
     			
-    			tToRetain.addAll(neighbs);
+    			if(! supported)
+    				fToRemove.set(fc);
     		}
     		
-    		candidates.put(f, minus(candidates.get(f), fToRemove));
-    		candidates.put(t, intersect(candidates.get(t), tToRetain));
-    	
-//    		// * Check if pattern can still be satisfied
-//    		if(candidates.get(f).isEmpty() || candidates.get(t).isEmpty())
-//    			fail = true;
+    		boolean changed = remove(f, fToRemove);
+    		changed |= retain(t, tToRetain);
     		
-    		return (! fOld.equals(candidates.get(f))) || (! tOld.equals(candidates.get(t)));		
+    		return changed;		
     	}
 		
 		private boolean prune3Var(int s, int p, int o, Part from)
 		{
-			int    f = s(s, p, o, from);
+			int    f = indices.get(s(s, p, o, from));
 			int[]  t = o(s, p, o, from);
 			Part[] tp = o(from);
 			
-			Set<Integer> fOld = candidates.get(f),
-		                 t0Old = candidates.get(t[0]),
-		                 t1Old = candidates.get(t[1]);
-
-    		Set<Integer> fToRemove = new LinkedHashSet<>();
-    		Set<Integer> t0ToRetain = new LinkedHashSet<>();
-    		Set<Integer> t1ToRetain = new LinkedHashSet<>();
+			int t0 = indices.get(t[0]), t1 = indices.get(t[1]);
+			
+    		BitSet fToRemove = new BitSet();
+    		BitSet t0ToRetain = new BitSet();
+    		BitSet t1ToRetain = new BitSet();
     		
-			for(int fc : candidates.get(f))
+    		for(int fc = first(f); fc >= 0; fc = next(f, fc))
     		{
-    			Set<Integer> neighbs0 = new LinkedHashSet<>();
-    			Set<Integer> neighbs1 = new LinkedHashSet<>();
-
-    			for(Triple triple : query(s, p, o, from, fc))
-    			{
-    				int[] values = o(triple.subject(), triple.predicate(), triple.object(), from);
-    				
-    				if(t0Old.contains(values[0]) && t1Old.contains(values[1]) )
-    				{
-    				
-    					neighbs0.add(triple.get(tp[0]));
-    					neighbs1.add(triple.get(tp[1]));
-    				}
-    			}
-    			
-    			neighbs0 = intersect(neighbs0, t0Old);
-    			neighbs1 = intersect(neighbs1, t1Old);
+    			supported = false;
+    			graph.find(
+    					from == SUBJECT ? fc : -1, 
+    					from == PREDICATE ? fc : -1, 
+    					from == OBJECT ? fc : -1, 
+    					(subj, pred, obj) -> {
+    						int v0 = s(subj, pred, obj, tp[0]), 
+    						    v1 = s(subj, pred, obj, tp[1]);
+    						
+    	    				if(in(t0, v0) && in(t1, v1))
+    	    				{
+    	    					t0ToRetain.set(v0);
+    	    					t1ToRetain.set(v1);
+    	    					supported = true;
+    	    				}
+    					});
 
-    			if(neighbs0.isEmpty() || neighbs1.isEmpty())
-    				fToRemove.add(fc);
-			
-    			t0ToRetain.addAll(neighbs0);
-    			t1ToRetain.addAll(neighbs1);
+    			if(! supported)
+    				fToRemove.set(fc);
     		}
 			
-    		candidates.put(f, minus(candidates.get(f), fToRemove));
-    		candidates.put(t[0], intersect(candidates.get(t[0]), t0ToRetain));
-    		candidates.put(t[1], intersect(candidates.get(t[1]), t1ToRetain));
+    		boolean changed = remove(f, fToRemove);
+    		changed |= retain(t0, t0ToRetain);
+    		changed |= retain(t1, t1ToRetain);
     		
-    		return (! fOld.equals(candidates.get(f))) || (! t0Old.equals(candidates.get(t[0]))) ||  (! t1Old.equals(candidates.get(t[1])));	
+    		return changed;
 		}
 		
 		public String toString()
 		{
-			return candidates.toString();
-		}
-	}
-	
-	private static <T> Set<T> intersect(Set<T> a, Set<T> b)
-	{
-		Set<T> small, large;
-		if(a.size() < b.size())
-		{
-			small = a;
-			large = b;
-		} else 
-		{
-			small = b;
-			large = a;
+			Map<Integer, BitSet> map = new LinkedHashMap<>();
+			for(int i : series(keys.size()))
+				map.put(keys.get(i), candidates[i]);
+			
+			return map.toString();
 		}
-		
-		Set<T> res = new LinkedHashSet<T>(small);
-		res.retainAll(large);
-		
-		return res;
-	}
-	
-	private static <T> Set<T> minus(Set<T> a, Set<T> b)
-	{
-		Set<T> res = new LinkedHashSet<T>(a);
-		res.removeAll(b);
-		return res;
 	}
 	
-	private static List<Set<Integer>> toSets(Collection<Triple> triples)
+	/**
+	 * Collects the values at each position for all matches of the given triple 
+	 * pattern (negative values are variables).
+	 */
+	private static List<BitSet> toSets(KGraph graph, int s, int p, int o)
 	{
-		Set<Integer> s = new LinkedHashSet<>(),
-		             p = new LinkedHashSet<>(),
-		             o = new LinkedHashSet<>();
+		BitSet ss = new BitSet(), ps = new BitSet(), os = new BitSet();
 		
-		for(Triple triple : triples)
-		{
-			s.add(triple.subject());
-			p.add(triple.predicate());
-			o.add(triple.object());
-		}
+		graph.find(s, p, o, (subj, pred, obj) -> {
+			ss.set(subj);
+			ps.set(pred);
+			os.set(obj);
+		});
 		
-		return asList(s, p, o);
+		return asList(ss, ps, os);
 	}
 }
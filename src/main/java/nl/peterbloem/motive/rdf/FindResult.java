@@ -0,0 +1,159 @@
+package nl.peterbloem.motive.rdf;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The result of a single call to Find.search(): the matches found, together
+ * with some statistics about the search.
+ *
+ * Each call gets its own result, so that searches running concurrently in
+ * different threads don't interfere.
+ *
+ * @author Peter
+ *
+ */
+public class FindResult
+{
+	List<List<Integer>> matches = new ArrayList<>();
+	long numMatches = 0;
+	boolean timedOut = false;
+	boolean limitReached = false;
+	long expansions = 0;
+	long elapsed = 0;
+
+	// * Whether to store the matches, or only count them
+	boolean collect = true;
+	// * The number of matches after which to stop
+	long limit = Long.MAX_VALUE;
+
+	FindResult()
+	{
+	}
+
+	FindResult(boolean collect, long limit)
+	{
+		this.collect = collect;
+		this.limit = limit;
+	}
+
+	/**
+	 * An empty result with the same settings, to collect the matches of part
+	 * of the search in.
+	 */
+	FindResult part()
+	{
+		return new FindResult(collect, limit);
+	}
+
+	/**
+	 * Registers that a match was found (and added to matches, if they are
+	 * collected).
+	 */
+	void found()
+	{
+		numMatches ++;
+		if(numMatches >= limit)
+			limitReached = true;
+	}
+
+	/**
+	 * Whether the search should stop.
+	 */
+	boolean stopped()
+	{
+		return timedOut || limitReached;
+	}
+
+	/**
+	 * Appends the matches and statistics of the given result (for a later
+	 * part of the search) to this one, keeping to the limit on the number of
+	 * matches.
+	 */
+	void add(FindResult other)
+	{
+		matches.addAll(other.matches);
+		numMatches += other.numMatches;
+		timedOut |= other.timedOut;
+		limitReached |= other.limitReached;
+		expansions += other.expansions;
+
+		if(numMatches >= limit)
+		{
+			numMatches = limit;
+			limitReached = true;
+
+			if(matches.size() > limit)
+				matches = new ArrayList<>(matches.subList(0, (int) limit));
+		}
+	}
+
+	/**
+	 * The matches found, in the same format as returned by Find.find(). If
+	 * the search timed out, these are the matches found up to that point.
+	 */
+	public List<List<Integer>> matches()
+	{
+		return matches;
+	}
+
+	/**
+	 * The number of matches found. This is the size of matches(), unless the
+	 * search only counted the matches (in which case matches() is empty).
+	 */
+	public long numMatches()
+	{
+		return numMatches;
+	}
+
+	/**
+	 * Whether the search was stopped because it reached the maximum number of
+	 * matches. If so, there may be more.
+	 */
+	public boolean limitReached()
+	{
+		return limitReached;
+	}
+
+	/**
+	 * Whether the search was stopped by its deadline before all matches were
+	 * found.
+	 */
+	public boolean timedOut()
+	{
+		return timedOut;
+	}
+
+	/**
+	 * The number of nodes in the search tree that were expanded (ie. the
+	 * number of times a value was assigned to a variable).
+	 */
+	public long expansions()
+	{
+		return expansions;
+	}
+
+	/**
+	 * The time the search took, in nanoseconds.
+	 */
+	public long elapsed()
+	{
+		return elapsed;
+	}
+
+	/**
+	 * The time the search took, in seconds.
+	 */
+	public double seconds()
+	{
+		return elapsed * 1e-9;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("%d matches, %d expansions, %.3f s%s%s",
+				numMatches, expansions, seconds(), 
+				timedOut ? " (timed out)" : "", limitReached ? " (limit reached)" : "");
+	}
+}
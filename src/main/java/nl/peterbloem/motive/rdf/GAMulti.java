@@ -18,11 +18,10 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import org.nodes.DTGraph;
 import org.nodes.DTLink;
@@ -63,10 +62,12 @@ public class GAMulti
 	public static final int MAX_NUM_PATTERNS = 25;
 	public static final int RESULTS = 100;
 	
-	private Map<Set<DTGraph<Integer, Integer>>, Double> scoreCache = new LinkedHashMap<>();
-	private Map<Set<DTGraph<Integer, Integer>>, 
-				Map<DTGraph<Integer, Integer>, 
-					List<List<Integer>>>> matchCache = new LinkedHashMap<>();
+	// * Scores of the motif sets visited, and the matches of their patterns. 
+	//   Both are bounded (see PatternCache), the least recently used entries 
+	//   are evicted first. The matches are cached per pattern and bounded by 
+	//   their total number, so the (much smaller) scores are kept longer. 
+	private LRUCache<Set<DTGraph<Integer, Integer>>, Double> scoreCache;
+	private LRUCache<DTGraph<Integer, Integer>, List<List<Integer>>> matchCache;
 	
 	public static enum  Transition {
 		EXTEND, 
@@ -83,7 +84,6 @@ public class GAMulti
 	private double alpha = 0.9;
 	
 	private KGraph graph;
-	private List<List<Integer>> degrees;
 
 	private int populationSize;
 	private ArrayList<MotifSet> population;
@@ -112,11 +112,12 @@ public class GAMulti
 		
 		public double score()
 		{
-			if(scoreCache.containsKey(motifs))
-				return scoreCache.get(motifs);
+			Double cached = scoreCache.get(motifs);
+			if(cached != null)
+				return cached;
 			
 			List<List<List<Integer>>> pruned = MotifCode.pruneValues(patterns(), matches());
-			double score = MotifCode.codelength(degrees, new ArrayList<>(motifs), pruned, false);
+			double score = MotifCode.codelength(graph, new ArrayList<>(motifs), pruned, false);
 			scoreCache.put(motifs, score);
 			
 			return score;
@@ -129,25 +130,18 @@ public class GAMulti
 		
 		public List<List<List<Integer>>> matches()
 		{
-			if(! matchCache.containsKey(motifs))
-			{
-				Map<DTGraph<Integer, Integer>, List<List<Integer>>> matches = new LinkedHashMap<>();
-    			
-    			for(DTGraph<Integer, Integer> pattern : motifs)
-    			{
-    				List<List<Integer>> pMatches = Find.find(pattern, graph, maxSearchTime);
-       				matches.put(pattern, pMatches);
-    			}
-    			
-    			matchCache.put(motifs, matches);
-			}
-		
-			Map<DTGraph<Integer, Integer>, List<List<Integer>>> matches = 
-					matchCache.get(motifs);
-			
 			List<List<List<Integer>>> result = new ArrayList<>(this.size());
 			for(DTGraph<Integer, Integer> pattern : patterns())
-				result.add(matches.get(pattern));
+			{
+				List<List<Integer>> matches = matchCache.get(pattern);
+				if(matches == null)
+				{
+					matches = Find.search(pattern, graph, maxSearchTime, TimeUnit.SECONDS).matches();
+					matchCache.put(pattern, matches);
+				}
+				
+				result.add(matches);
+			}
 		
 			return result;
 		}
@@ -204,12 +198,27 @@ public class GAMulti
 			Double nullBits,
 			int populationSize)
 	{
+		this(graph, maxSearchTime, nullBits, populationSize, 
+				PatternCache.MAX_MATCHES, PatternCache.MAX_SCORES);
+	}
+	
+	/**
+	 * @param maxMatches The maximum total number of matches to retain.
+	 * @param maxScores The maximum number of motif sets to retain the score of.
+	 */
+	public GAMulti(KGraph graph, int maxSearchTime, 
+			Double nullBits,
+			int populationSize,
+			long maxMatches, int maxScores)
+	{
+		this.scoreCache = new LRUCache<>(maxScores);
+		this.matchCache = new LRUCache<>(maxMatches, matches -> matches.size() + 1);
+		
 		this.populationSize = populationSize;
 		this.graph = graph;
 		this.maxSearchTime = maxSearchTime;
 		this.nullBits = nullBits;
 		
-		degrees = KGraph.degrees(graph);
 	
 		this.population = new ArrayList<MotifSet>(populationSize * 2); 
 		
@@ -0,0 +1,244 @@
+package nl.peterbloem.motive.rdf;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.RandomAccess;
+
+import org.nodes.DTGraph;
+import org.nodes.DTLink;
+import org.nodes.DTNode;
+import org.nodes.MapDTGraph;
+
+/**
+ * A reversible map from the (possibly sparse) node and tag ids of a graph to
+ * dense ids: the i-th smallest node id in use becomes node i, and likewise for
+ * the tags.
+ *
+ * The map preserves the order of the ids, so the triples of a compacted graph
+ * are sorted in the same way as those of the original. See KGraph.compact().
+ *
+ * @author Peter
+ *
+ */
+public class IdMap
+{
+	// * The original id for each dense id (sorted, without duplicates)
+	private int[] nodes, tags;
+
+	IdMap(int[] nodes, int[] tags)
+	{
+		this.nodes = nodes;
+		this.tags = tags;
+	}
+
+	public int numNodes()
+	{
+		return nodes.length;
+	}
+
+	public int numTags()
+	{
+		return tags.length;
+	}
+
+	/**
+	 * The dense id of the given original node id, or -1 if the node is not in
+	 * use.
+	 */
+	public int node(int original)
+	{
+		return find(nodes, original);
+	}
+
+	/**
+	 * The dense id of the given original tag, or -1 if the tag is not in
+	 * use.
+	 */
+	public int tag(int original)
+	{
+		return find(tags, original);
+	}
+
+	public int originalNode(int node)
+	{
+		return nodes[node];
+	}
+
+	public int originalTag(int tag)
+	{
+		return tags[tag];
+	}
+
+	/**
+	 * Whether every id maps to itself (ie. the original ids were already
+	 * dense).
+	 */
+	public boolean isIdentity()
+	{
+		return (nodes.length == 0 || nodes[nodes.length - 1] == nodes.length - 1) &&
+		       (tags.length == 0 || tags[tags.length - 1] == tags.length - 1);
+	}
+
+	/**
+	 * Maps a triple with original ids to dense ids. Returns null if any of its
+	 * ids are not in use.
+	 */
+	public Triple map(Triple triple)
+	{
+		int s = node(triple.subject()), p = tag(triple.predicate()), o = node(triple.object());
+
+		if(s < 0 || p < 0 || o < 0)
+			return null;
+
+		return Triple.t(s, p, o);
+	}
+
+	/**
+	 * Maps a triple with dense ids back to the original ids.
+	 */
+	public Triple unmap(Triple triple)
+	{
+		return Triple.t(
+				nodes[triple.subject()], tags[triple.predicate()], nodes[triple.object()]);
+	}
+
+	/**
+	 * Maps a pattern over the dense ids back to the original ids. Negative
+	 * labels and tags (variables) are left as they are.
+	 */
+	public DTGraph<Integer, Integer> unmap(DTGraph<Integer, Integer> pattern)
+	{
+		DTGraph<Integer, Integer> result = new MapDTGraph<>();
+
+		for(DTNode<Integer, Integer> node : pattern.nodes())
+			result.add(node.label() < 0 ? node.label() : nodes[node.label()]);
+
+		for(DTLink<Integer, Integer> link : pattern.links())
+		{
+			int tag = link.tag();
+			result.get(link.from().index()).connect(
+					result.get(link.to().index()),
+					tag < 0 ? tag : tags[tag]);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Selects the labels of the nodes in use from a list indexed by original
+	 * id, so that they are indexed by dense id (for instance, to pass to
+	 * KGraph.recover()). The result is a view of the given list.
+	 */
+	public <L> List<L> nodeLabels(List<L> labels)
+	{
+		return new Selection<>(labels, nodes);
+	}
+
+	/**
+	 * Selects the labels of the tags in use from a list indexed by original
+	 * id. The result is a view of the given list.
+	 */
+	public <L> List<L> tagLabels(List<L> labels)
+	{
+		return new Selection<>(labels, tags);
+	}
+
+	/**
+	 * The ids in use by the given triples.
+	 */
+	static IdMap of(Collection<Triple> triples)
+	{
+		int n = triples.size();
+		int[] nodes = new int[2 * n], tags = new int[n];
+
+		int i = 0;
+		for(Triple triple : triples)
+		{
+			nodes[2 * i] = triple.subject();
+			nodes[2 * i + 1] = triple.object();
+			tags[i] = triple.predicate();
+			i++;
+		}
+
+		return new IdMap(distinct(nodes), distinct(tags));
+	}
+
+	/**
+	 * The ids in use in a graph with the given degrees: the nodes with at
+	 * least one link, and the tags with at least one link.
+	 */
+	static IdMap of(int[] inDegrees, int[] outDegrees, int[] tagDegrees)
+	{
+		int numNodes = 0, numTags = 0;
+		for(int i = 0; i < inDegrees.length; i++)
+			if(inDegrees[i] + outDegrees[i] > 0)
+				numNodes ++;
+		for(int degree : tagDegrees)
+			if(degree > 0)
+				numTags ++;
+
+		int[] nodes = new int[numNodes], tags = new int[numTags];
+
+		int j = 0;
+		for(int i = 0; i < inDegrees.length; i++)
+			if(inDegrees[i] + outDegrees[i] > 0)
+				nodes[j++] = i;
+
+		j = 0;
+		for(int i = 0; i < tagDegrees.length; i++)
+			if(tagDegrees[i] > 0)
+				tags[j++] = i;
+
+		return new IdMap(nodes, tags);
+	}
+
+	/**
+	 * Sorts the values, and removes duplicates.
+	 */
+	private static int[] distinct(int[] values)
+	{
+		if(values.length >= TripleStore.PARALLEL_THRESHOLD)
+			Arrays.parallelSort(values);
+		else
+			Arrays.sort(values);
+
+		int n = 0;
+		for(int i = 0; i < values.length; i++)
+			if(i == 0 || values[i] != values[i - 1])
+				values[n++] = values[i];
+
+		return Arrays.copyOf(values, n);
+	}
+
+	private static int find(int[] ids, int original)
+	{
+		int index = Arrays.binarySearch(ids, original);
+		return index < 0 ? -1 : index;
+	}
+
+	private static class Selection<L> extends AbstractList<L> implements RandomAccess
+	{
+		private List<L> labels;
+		private int[] ids;
+
+		public Selection(List<L> labels, int[] ids)
+		{
+			this.labels = labels;
+			this.ids = ids;
+		}
+
+		@Override
+		public L get(int index)
+		{
+			return labels.get(ids[index]);
+		}
+
+		@Override
+		public int size()
+		{
+			return ids.length;
+		}
+	}
+}
@@ -0,0 +1,227 @@
+package nl.peterbloem.motive.rdf;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A read-only array of ints, for the columns of a TripleStore.
+ *
+ * The values are either kept in an int[] on the heap, or in a list of buffers
+ * outside the heap: mapped from a file, or allocated as direct buffers. Each
+ * buffer holds at most CHUNK ints, so that arrays can be longer than a single
+ * buffer allows.
+ *
+ * Direct buffers count towards the JVM's limit on direct memory, which is
+ * the maximum heap size by default. For large graphs, this should be raised
+ * with -XX:MaxDirectMemorySize.
+ *
+ * @author Peter
+ *
+ */
+abstract class IntArray
+{
+	// * The number of ints per buffer (2^28, or 1GB: a buffer holds less than
+	//   2GB)
+	static final int CHUNK_BITS = 28;
+	static final int CHUNK = 1 << CHUNK_BITS;
+
+	/**
+	 * The value at index i.
+	 */
+	abstract int get(int i);
+
+	abstract int length();
+
+	/**
+	 * Copies the values starting at index from into the given buffer, until it
+	 * is full.
+	 */
+	abstract void get(int from, IntBuffer target);
+
+	/**
+	 * The first index in [from, to) for which get(index) >= key (or to if
+	 * there is no such index). The range should be sorted.
+	 */
+	final int lower(int from, int to, int key)
+	{
+		while(from < to)
+		{
+			int mid = (from + to) >>> 1;
+			if(get(mid) < key)
+				from = mid + 1;
+			else
+				to = mid;
+		}
+
+		return from;
+	}
+
+	/**
+	 * The first index in [from, to) for which get(index) > key (or to if
+	 * there is no such index). The range should be sorted.
+	 */
+	final int upper(int from, int to, int key)
+	{
+		while(from < to)
+		{
+			int mid = (from + to) >>> 1;
+			if(get(mid) <= key)
+				from = mid + 1;
+			else
+				to = mid;
+		}
+
+		return from;
+	}
+
+	/**
+	 * Writes the values to the given channel, as little-endian ints.
+	 */
+	void write(WritableByteChannel out)
+		throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+		IntBuffer ints = buffer.asIntBuffer();
+
+		int n = length();
+		for(int i = 0; i < n; i += ints.capacity())
+		{
+			int size = Math.min(ints.capacity(), n - i);
+
+			ints.clear();
+			ints.limit(size);
+			get(i, ints);
+
+			buffer.clear();
+			buffer.limit(size * 4);
+			while(buffer.hasRemaining())
+				out.write(buffer);
+		}
+	}
+
+	/**
+	 * Wraps the given array. The array is not copied.
+	 */
+	static IntArray wrap(int[] values)
+	{
+		return new Heap(values);
+	}
+
+	/**
+	 * Copies the given array into direct buffers, outside the heap.
+	 */
+	static IntArray direct(IntArray source)
+	{
+		int length = source.length();
+		IntBuffer[] buffers = new IntBuffer[(int)((length + (long) CHUNK - 1) >>> CHUNK_BITS)];
+
+		for(int c = 0; c < buffers.length; c++)
+		{
+			int size = Math.min(CHUNK, length - c * CHUNK);
+			buffers[c] = ByteBuffer
+					.allocateDirect(4 * size)
+					.order(ByteOrder.nativeOrder())
+					.asIntBuffer();
+
+			source.get(c * CHUNK, buffers[c]);
+			buffers[c].clear();
+		}
+
+		return new Buffers(buffers, length);
+	}
+
+	/**
+	 * Maps a read-only array of the given length from the given position in a
+	 * file. The file may be closed after this call: the mapping stays valid
+	 * until the array is garbage collected.
+	 */
+	static IntArray map(FileChannel channel, long position, int length)
+		throws IOException
+	{
+		IntBuffer[] buffers = new IntBuffer[(int)((length + (long) CHUNK - 1) >>> CHUNK_BITS)];
+
+		for(int c = 0; c < buffers.length; c++)
+		{
+			int size = Math.min(CHUNK, length - c * CHUNK);
+			buffers[c] = channel
+					.map(MapMode.READ_ONLY, position + 4L * c * CHUNK, 4L * size)
+					.order(ByteOrder.LITTLE_ENDIAN)
+					.asIntBuffer();
+		}
+
+		return new Buffers(buffers, length);
+	}
+
+	static class Heap extends IntArray
+	{
+		private int[] values;
+
+		public Heap(int[] values)
+		{
+			this.values = values;
+		}
+
+		@Override
+		int get(int i)
+		{
+			return values[i];
+		}
+
+		@Override
+		int length()
+		{
+			return values.length;
+		}
+
+		@Override
+		void get(int from, IntBuffer target)
+		{
+			target.put(values, from, target.remaining());
+		}
+	}
+
+	private static class Buffers extends IntArray
+	{
+		private IntBuffer[] buffers;
+		private int length;
+
+		public Buffers(IntBuffer[] buffers, int length)
+		{
+			this.buffers = buffers;
+			this.length = length;
+		}
+
+		@Override
+		int get(int i)
+		{
+			return buffers[i >>> CHUNK_BITS].get(i & (CHUNK - 1));
+		}
+
+		@Override
+		int length()
+		{
+			return length;
+		}
+
+		@Override
+		void get(int from, IntBuffer target)
+		{
+			while(target.hasRemaining())
+			{
+				IntBuffer source = buffers[from >>> CHUNK_BITS].duplicate();
+				source.position(from & (CHUNK - 1));
+
+				int size = Math.min(source.remaining(), target.remaining());
+				source.limit(source.position() + size);
+
+				target.put(source);
+				from += size;
+			}
+		}
+	}
+}
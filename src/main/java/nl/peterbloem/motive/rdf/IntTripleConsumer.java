@@ -0,0 +1,13 @@
+package nl.peterbloem.motive.rdf;
+
+/**
+ * Receives triples as three primitive ints. Used to scan the matches of a 
+ * triple pattern without creating Triple objects.
+ * 
+ * @author Peter
+ *
+ */
+public interface IntTripleConsumer
+{
+	public void accept(int subject, int predicate, int object);
+}
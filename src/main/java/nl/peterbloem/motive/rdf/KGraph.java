@@ -4,6 +4,7 @@ import static java.lang.Math.max;
 import static java.util.Collections.emptySet;
 import static java.util.Collections.reverseOrder;
 import static java.util.Collections.singleton;
+import static java.util.Collections.singletonList;
 import static java.util.Collections.unmodifiableSet;
 import static nl.peterbloem.kit.Functions.concat;
 import static nl.peterbloem.kit.Functions.dot;
@@ -17,6 +18,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Path;
 import java.util.AbstractCollection;
 import java.util.AbstractList;
 import java.util.AbstractSet;
@@ -26,7 +28,6 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.ConcurrentModificationException;
 import java.util.Deque;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
@@ -36,6 +37,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.GZIPInputStream;
 
 import org.nodes.DGraph;
@@ -56,11 +62,11 @@ import org.nodes.TNode;
 import org.nodes.UGraph;
 import org.rdfhdt.hdt.dictionary.Dictionary;
 import org.rdfhdt.hdt.dictionary.DictionarySection;
-import org.rdfhdt.hdt.exceptions.NotFoundException;
 import org.rdfhdt.hdt.hdt.HDT;
 import org.rdfhdt.hdt.hdt.HDTManager;
-import org.rdfhdt.hdt.triples.IteratorTripleString;
-import org.rdfhdt.hdt.triples.TripleString;
+import org.rdfhdt.hdt.enums.TripleComponentRole;
+import org.rdfhdt.hdt.triples.IteratorTripleID;
+import org.rdfhdt.hdt.triples.TripleID;
 
 import nl.peterbloem.kit.FrequencyModel;
 import nl.peterbloem.kit.Functions;
@@ -75,13 +81,20 @@ import nl.peterbloem.kit.Series;
  * NOTES:
  * <ul>
  * <li>
- * Removing a node will cause all labels (above it) to change. Removing a 
- * node or link may cause tags to change (that is, labels are always kept 
- * contiguous). This makes removals potentially very costly.</li>
+ * Node ids are never renumbered: nodes can't be removed, and removing links 
+ * leaves the ids of all nodes as they are. If the nodes (or tags) with the 
+ * highest ids lose all their links, the graph shrinks, and existing node and 
+ * link objects can no longer be used. To get rid of unused ids, use compact().
+ * </li>
+ * <li>
+ * The graph is a set of triples: duplicate triples are removed when the graph 
+ * is built or updated, so there is at most one link with a given tag between 
+ * two nodes.
+ * </li>
  * <li>
- * For performance reasons, multiple links are allowed in this data-structure.
- * They are not allowed in the knowledge graph models we use, so users should ensure
- * manually that their graph does not contain multiple links.
+ * Links are added and removed in batches, with addTriples(), removeTriples() 
+ * and update(). The single-link methods of the node and link objects each 
+ * make an update of their own, so they should only be used for a few links.
  * </li>
  * </ul> 
  * 
@@ -91,30 +104,43 @@ import nl.peterbloem.kit.Series;
 public class KGraph implements 
 		DTGraph<Integer, Integer>
 {
-	// The graph is stored as seven indices. 
-	// * no variables
-	private Set<Triple> triples = new LinkedHashSet<>();
+	// The graph is stored as three sorted permutations of the triples in a
+	// compact, array-based structure (see TripleStore), plus a small delta 
+	// of updates (see LayeredStore). A layered store is never changed: 
+	// updates replace it with a new version in one write, so that every read 
+	// sees a consistent store and degrees.  
+	private volatile LayeredStore store;
+	
+	// * How long the merge thread of a graph waits for new work before it 
+	//   stops (in seconds)
+	private static final int MERGE_KEEP_ALIVE = 10;
+	
+	// * The smallest delta that is merged in the background. Larger graphs 
+	//   allow a delta of up to 1/16th of their size.
+	private static final int MIN_MERGE = 1 << 12;
+	
+	// * Folds the delta of this graph into its base store in the background. 
+	//   Created on the first merge, and its thread stops when it's idle, so 
+	//   that graphs that aren't updated don't hold a thread.
+	private ThreadPoolExecutor merger = null;
 	
-	// * two variables. sIndex maps an s integer to all triples with s at the s position
-	private Map<Integer, Set<Triple>> sIndex = new LinkedHashMap<>();
-	private Map<Integer, Set<Triple>> pIndex = new LinkedHashMap<>();
-	private Map<Integer, Set<Triple>> oIndex = new LinkedHashMap<>();		
+	// * The merge of this graph that is scheduled or running (or null)
+	private Future<?> merge = null;
 	
-	// * one variable
-	private Map<Pair<Integer, Integer>, Set<Triple>> spIndex = new LinkedHashMap<>();
-	private Map<Pair<Integer, Integer>, Set<Triple>> soIndex = new LinkedHashMap<>();
-	private Map<Pair<Integer, Integer>, Set<Triple>> poIndex = new LinkedHashMap<>();
+	// * If the graph was compacted, maps its ids to those of the original 
+	//   (otherwise null)
+	private IdMap ids = null;
 	
-	private int maxNode = -1;
-	private int maxTag = -1;
+	// * Whether this graph is a (read-only) snapshot of another
+	private boolean snapshot = false;
 
-	private long modCount = 0;	
+	private volatile long modCount = 0;	
 	
 	// * changes for any edit which causes the node indices to change 
-	//   (currently just removal). If this happens, all existing Node and Link 
-	//   objects lose persistence 
-	//   (currently not used, because modificiations aren't implemented yet)
-	private long nodeModCount = 0;
+	//   (currently, an update which removes the nodes with the highest 
+	//   indices). If this happens, all existing Node and Link objects lose 
+	//   persistence 
+	private volatile long nodeModCount = 0;
 
 	private int hash;
 	private Long hashMod = null;
@@ -125,110 +151,437 @@ public class KGraph implements
 	 */
 	public KGraph(Collection<Triple> triplesIn)
 	{
-		for(Triple triple : triplesIn)
+		this(new TripleStore(triplesIn));
+	}
+	
+	KGraph(TripleStore store)
+	{
+		this(new LayeredStore(store));
+	}
+	
+	private KGraph(LayeredStore store)
+	{
+		this.store = store;
+	}
+	
+	/**
+	 * Creates a graph with dense ids from a collection of triples whose ids 
+	 * may be sparse (for instance, a subset of the triples of a larger graph). 
+	 * The node ids in use are mapped, in order, to 0, ..., n-1 and the tags 
+	 * to 0, ..., r-1, so that no memory is spent on ids that aren't used. Use
+	 * ids() on the result to translate between the two.
+	 */
+	public static KGraph compact(Collection<Triple> triples)
+	{
+		IdMap map = IdMap.of(triples);
+		if(map.isIdentity())
+			return new KGraph(triples);
+		
+		List<Triple> mapped = new ArrayList<>(triples.size());
+		for(Triple triple : triples)
+			mapped.add(map.map(triple));
+		
+		KGraph graph = new KGraph(mapped);
+		graph.ids = map;
+		
+		return graph;
+	}
+	
+	/**
+	 * Returns a copy of this graph with dense ids: nodes and tags without 
+	 * links are removed, and the remaining ids are renumbered in order. Use 
+	 * ids() on the result to translate between the two graphs. 
+	 * 
+	 * If the ids of this graph are already dense, this graph is returned. 
+	 */
+	public KGraph compact()
+	{
+		LayeredStore current = store;
+		
+		IdMap map = IdMap.of(current.inDegrees(), current.outDegrees(), current.tagDegrees());
+		if(map.isIdentity())
+			return this;
+		
+		KGraph graph = new KGraph(current.merged().remap(map));
+		graph.ids = map;
+		
+		return graph;
+	}
+	
+	/**
+	 * If this graph was created by compact(), the map from its ids to the 
+	 * original ids. Otherwise null.
+	 */
+	public IdMap ids()
+	{
+		return ids;
+	}
+	
+	/**
+	 * Returns a copy of this graph which keeps its indices outside the Java 
+	 * heap, in direct buffers. This graph behaves exactly like the original, 
+	 * but the garbage collector doesn't need to deal with its (large) arrays, 
+	 * and the heap can be kept small. The total size of the indices is 24 
+	 * bytes per triple, plus 8 bytes per node.
+	 * 
+	 * Note that the JVM limits the amount of direct memory (by default to the 
+	 * maximum heap size). Use -XX:MaxDirectMemorySize to raise the limit.
+	 * 
+	 * If the indices are already outside the heap (for instance, if the 
+	 * graph was opened from a snapshot file), this graph is returned. Pending
+	 * updates (see update()) stay on the heap until they are merged. 
+	 */
+	public KGraph offHeap()
+	{
+		LayeredStore current = store;
+		TripleStore base = current.base(), copy = base.offHeap();
+		if(copy == base)
+			return this;
+		
+		KGraph graph = new KGraph(current.withBase(copy));
+		graph.ids = ids;
+		
+		return graph;
+	}
+	
+	/**
+	 * Whether the graph's indices are kept outside the Java heap.
+	 */
+	public boolean isOffHeap()
+	{
+		return store.isOffHeap();
+	}
+	
+	/**
+	 * Adds the given triples to the graph, in one batch. See update().
+	 */
+	public void addTriples(Collection<Triple> triples)
+	{
+		update(triples, Collections.<Triple>emptyList());
+	}
+	
+	/**
+	 * Removes the given triples from the graph, in one batch. See update().
+	 */
+	public void removeTriples(Collection<Triple> triples)
+	{
+		update(Collections.<Triple>emptyList(), triples);
+	}
+	
+	/**
+	 * Removes the triples in remove from the graph and adds those in add, as 
+	 * a single batch. Triples to remove that aren't in the graph are ignored, 
+	 * as are triples to add that already are. A triple in both collections 
+	 * is kept.
+	 * 
+	 * The indices of the graph are not rebuilt. The changes are kept in a 
+	 * small, sorted delta next to them, which reads merge with the indices. 
+	 * The new delta and degrees are built next to the current ones, and 
+	 * replace them in a single step when they are finished. Until then, 
+	 * readers see the graph as it was before the update, and afterwards, 
+	 * they see the whole batch: never a part of it. Each call to a method 
+	 * of the graph sees one version, but consecutive calls may not: threads 
+	 * that need the same version throughout (like a search) should work on 
+	 * a snapshot (see snapshot()). 
+	 * 
+	 * An update costs time linear in the size of the delta (and the number of
+	 * tags), so changes should still be batched where possible. Updates are 
+	 * applied one at a time. When the delta grows large (1/16th of the graph), 
+	 * it is folded into the indices by a rebuild in the background, while 
+	 * reads and updates continue on the current version. See merge().
+	 * 
+	 * Node indices are not changed, but if the nodes with the highest indices 
+	 * lose all their links, the graph shrinks, and existing node and link 
+	 * objects can no longer be used. For a compacted graph, the triples 
+	 * should use the compacted ids, and the map returned by ids() does not 
+	 * cover ids added later.  
+	 */
+	public synchronized void update(Collection<Triple> add, Collection<Triple> remove)
+	{
+		if(snapshot)
+			throw new UnsupportedOperationException("A snapshot can't be updated. Update the original graph instead.");
+		
+		if(add.isEmpty() && remove.isEmpty())
+			return;
+		
+		LayeredStore current = store, next = current.update(add, remove);
+		if(next == current)
+			return;
+		
+		store = next;
+		
+		modCount ++;
+		if(next.numNodes() < current.numNodes())
+			nodeModCount ++;
+		
+		if(largeDelta(next))
+			scheduleMerge();
+	}
+	
+	/**
+	 * Folds the pending updates into the indices of the graph, and waits 
+	 * until this is finished. This is not required: reads see the updates 
+	 * either way, and large deltas are merged in the background. It may be 
+	 * useful before a long read-only computation, which is a little faster 
+	 * without a delta. 
+	 * 
+	 * Reads and updates can continue while the indices are rebuilt. For a 
+	 * snapshot, this does nothing. 
+	 */
+	public void merge()
+	{
+		if(snapshot)
+			return;
+		
+		while(true)
 		{
-			int s = triple.subject(), p = triple.predicate(), o = triple.object();
-			
-			triples.add(triple);
-			
-			put(sIndex, s, triple);			
-			put(pIndex, p, triple);
-			put(oIndex, o, triple);
-
-			put(spIndex, p(s, p), triple);			
-			put(soIndex, p(s, o), triple);
-			put(poIndex, p(p, o), triple);
+			Future<?> future;
+			synchronized(this)
+			{
+				if(! store.hasDelta())
+					return;
+				
+				future = scheduleMerge();
+			}
 			
-			maxTag  = max(maxTag, p);
-			maxNode = max(maxNode, max(s, o));
+			await(future);
 		}
 	}
 	
 	/**
-	 * Find all matches of the given triple pattern. null arguments are taken as variables
-	 * @param subject
-	 * @param predicate
-	 * @param object
-	 * @return
+	 * Waits until the background merges of this graph (see update()) are 
+	 * finished, without starting a new one. Returns immediately if no merge 
+	 * is scheduled.
 	 */
-	public Set<Triple> find(Integer subject, Integer predicate, Integer object)
+	public void awaitMerge()
 	{
-		if(subject == null)
+		while(true)
 		{
-			if(predicate == null)
-			{
-				if(object == null)
-					return unmodifiableSet(triples);
-				else
-					return unmodifiableSet(get(oIndex, object));
-			} else 
+			Future<?> future;
+			synchronized(this)
 			{
-				if(object == null)
-					return unmodifiableSet(get(pIndex, predicate));				
-				else
-					return unmodifiableSet(get(poIndex, p(predicate, object)));				
+				future = merge;
 			}
-		} else
+			
+			if(future == null)
+				return;
+			
+			await(future);
+		}
+	}
+	
+	private static void await(Future<?> future)
+	{
+		try {
+			future.get();
+		} catch (InterruptedException e)
 		{
-			if(predicate == null)
-			{
-				if(object == null)
-					return unmodifiableSet(get(sIndex, subject));
-				else
-					return unmodifiableSet(get(soIndex, p(subject, object)));
-			} else 
-			{
-				if(object == null)
-					return unmodifiableSet(get(spIndex, p(subject, predicate)));				
-				else
-				{
-					Triple t = t(subject, predicate, object);
-					return triples.contains(t) ? singleton(t) : emptySet();
-				}
-			}
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e)
+		{
+			throw new RuntimeException("Merging the updates of the graph failed.", e.getCause());
 		}
 	}
 	
-	private int numNull(Object... objects)
+	private static boolean largeDelta(LayeredStore store)
 	{
-		int res = 0;
-		for(Object obj : objects)
-			if(obj == null)
-				res++;
+		return store.deltaSize() >= Math.max(MIN_MERGE, store.base().size() / 16);
+	}
+	
+	private synchronized Future<?> scheduleMerge()
+	{
+		if(merge != null)
+			return merge;
 		
-		return res;
+		if(merger == null)
+		{
+			merger = new ThreadPoolExecutor(
+					1, 1, MERGE_KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), 
+					runnable -> {
+						Thread thread = new Thread(runnable, "KGraph merge");
+						thread.setDaemon(true);
+						return thread;
+					});
+			merger.allowCoreThreadTimeOut(true);
+		}
+		
+		merge = merger.submit(this::mergeDelta);
+		return merge;
 	}
 	
-	private <T> void put(Map<T, Set<Triple>> index, T key, Triple triple)
+	/**
+	 * Rebuilds the indices with the current delta, without holding the lock, 
+	 * so that reads and updates can continue. The updates made in the 
+	 * meantime become the delta of the new version. 
+	 */
+	private void mergeDelta()
 	{
-		if(!index.containsKey(key))
-			index.put(key, new LinkedHashSet<>());
+		LayeredStore start = store;
+		TripleStore merged;
+		try {
+			merged = start.merged();
+		} catch(RuntimeException | Error e)
+		{
+			synchronized(this) {
+				merge = null;
+			}
+			throw e;
+		}
 		
-		index.get(key).add(triple);
+		synchronized(this)
+		{
+			// - The triples don't change, so the modCount stays the same
+			store = store.rebase(start, merged);
+			merge = null;
+			
+			if(largeDelta(store))
+				scheduleMerge();
+		}
 	}
 	
-	private <T> Set<Triple> get(Map<T, Set<Triple>> index, T key)
+	/**
+	 * Returns a read-only view of the current version of this graph. Updates 
+	 * of this graph are not reflected in the snapshot, so that a long-running 
+	 * computation (like a search over several threads) sees the same graph 
+	 * throughout, while new data is added to the original. 
+	 * 
+	 * This is cheap: updates never change the indices of a graph, but build 
+	 * new ones, so the snapshot simply keeps the current indices. They are 
+	 * freed when neither the graph nor any snapshot uses them anymore. 
+	 * 
+	 * Each method call on a graph sees a single version of it, but a sequence
+	 * of calls may not. Any computation that makes several reads and needs 
+	 * them to agree (a search, or a codelength computed from the degrees and 
+	 * the number of links) should take a snapshot once, at the start, and 
+	 * read only from that. Find, MotifCode, EdgeListModel and the parallel 
+	 * searches do this. 
+	 */
+	public KGraph snapshot()
 	{
-		if(!index.containsKey(key))
+		if(snapshot)
+			return this;
+		
+		KGraph result = new KGraph(store);
+		result.snapshot = true;
+		result.ids = ids;
+		result.modCount = modCount;
+		
+		return result;
+	}
+	
+	/**
+	 * Whether this graph is a snapshot of another (see snapshot()).
+	 */
+	public boolean isSnapshot()
+	{
+		return snapshot;
+	}
+	
+	/**
+	 * Find all matches of the given triple pattern. null arguments are taken as variables
+	 * @param subject
+	 * @param predicate
+	 * @param object
+	 * @return
+	 */
+	public Set<Triple> find(Integer subject, Integer predicate, Integer object)
+	{
+		if(negative(subject) || negative(predicate) || negative(object))
 			return Collections.emptySet();
 		
-		return index.get(key);
+		return store.find(
+				subject   == null ? -1 : subject, 
+				predicate == null ? -1 : predicate, 
+				object    == null ? -1 : object);
+	}
+	
+	private static boolean negative(Integer value)
+	{
+		return value != null && value < 0;
+	}
+
+	/**
+	 * Passes all matches of the given triple pattern to the consumer. Negative
+	 * arguments are taken as variables.
+	 *
+	 * Unlike find(Integer, Integer, Integer) this doesn't create any objects,
+	 * so it's the preferred method for tight loops.
+	 *
+	 * @param consumer
+	 */
+	public void find(int subject, int predicate, int object, IntTripleConsumer consumer)
+	{
+		store.find(subject, predicate, object, consumer);
+	}
+
+	/**
+	 * The number of matches of the given triple pattern. Negative arguments
+	 * are taken as variables.
+	 */
+	public int count(int subject, int predicate, int object)
+	{
+		return store.count(subject, predicate, object);
+	}
+
+	/**
+	 * The number of distinct nodes that occur as the subject of a triple with 
+	 * the given predicate. 
+	 */
+	public int numSubjects(int predicate)
+	{
+		return store.numSubjects(predicate);
+	}
+	
+	/**
+	 * The number of distinct nodes that occur as the object of a triple with 
+	 * the given predicate. 
+	 */
+	public int numObjects(int predicate)
+	{
+		return store.numObjects(predicate);
+	}
+
+	/**
+	 * Whether the graph contains the given triple.
+	 */
+	public boolean contains(int subject, int predicate, int object)
+	{
+		return store.contains(subject, predicate, object);
 	}
 
+	/**
+	 * The underlying triple store, for algorithms that work directly on the
+	 * sorted permutations.
+	 */
+	LayeredStore store()
+	{
+		return store;
+	}
 
+	private int numNull(Object... objects)
+	{
+		int res = 0;
+		for(Object obj : objects)
+			if(obj == null)
+				res++;
+		
+		return res;
+	}
+	
 	public int size()
 	{
-		return maxNode + 1;
+		return store.numNodes();
 	}
 
 	public long numLinks()
 	{
-		return triples.size();
+		return store.size();
 	}
 
 	public Set<Integer> tags()
 	{
-		return new SeriesSet(maxTag + 1);
+		return new SeriesSet(store.numTags());
 	}
 
 	public KNode node(Integer label)
@@ -256,7 +609,7 @@ public class KGraph implements
 
 	public Collection<KLink> links()
 	{
-		return new LinkCollection(triples);		
+		return new LinkCollection(find(null, null, null));		
 	}
 	
 	public Collection<KLink> links(Collection<Triple> trips)
@@ -343,12 +696,15 @@ public class KGraph implements
 
 	public boolean connected(Integer from, Integer to)
 	{
-		return ! pIndex.get(p(from, to)).isEmpty();
+		return from >= 0 && to >= 0 && count(from, -1, to) > 0;
 	}
 
+	/**
+	 * A counter that changes with every update of the graph. 
+	 */
 	public long state()
 	{
-		return 0; // TODO
+		return modCount;
 	}
 
 	@SuppressWarnings("unchecked")
@@ -383,11 +739,12 @@ public class KGraph implements
 
 		@Override
 		/**
-		 * remove this node from the graph. This is an expensive operation
+		 * Not supported: removing a node would change the indices of the 
+		 * others. To remove its links, use removeTriples().
 		 */
 		public void remove()
 		{
-			throw new UnsupportedOperationException("Graph modification is not supported.");
+			throw new UnsupportedOperationException("Removing nodes is not supported. Use removeTriples() to remove their links.");
 		}
 
 		private void check()
@@ -504,19 +861,44 @@ public class KGraph implements
 		 */
 		public KLink connect(Node<Integer> to)
 		{
-			throw new UnsupportedOperationException("Graph modification is not supported.");
+			check();
+			int his = to.index();
+			
+			update(singletonList(t(index, 0, his)), Collections.<Triple>emptyList());
+			
+			return new KLink(index, his, 0);
 		}	
 
+		/**
+		 * Adds a link to the graph, as an update of one triple. To add many 
+		 * links, use addTriples().
+		 */
 		@Override
 		public KLink connect(TNode<Integer, Integer> other, Integer tag) 
 		{
-			throw new UnsupportedOperationException("Graph modification is not supported.");
+			check();
+			int his = other.index();
+			
+			update(singletonList(t(index, tag, his)), Collections.<Triple>emptyList());
+			
+			return new KLink(index, his, tag);
 		}
 
+		/**
+		 * Removes all links between this node and the other, in both 
+		 * directions, as a single update. To remove many links, use 
+		 * removeTriples().
+		 */
 		@Override
 		public void disconnect(Node<Integer> other)
 		{			
-			throw new UnsupportedOperationException("Graph modification is not supported.");
+			check();
+			int his = other.index();
+			
+			List<Triple> triples = new ArrayList<>(find(index, null, his));
+			triples.addAll(find(his, null, index));
+			
+			update(Collections.<Triple>emptyList(), triples);
 		}
 
 		@Override
@@ -562,7 +944,7 @@ public class KGraph implements
 			
 			int mine = index, his = other.index();
 
-			return triples.contains(t(mine, tag, his));
+			return store.contains(mine, tag, his);
 		}
 
 		@Override
@@ -583,14 +965,14 @@ public class KGraph implements
 		public int inDegree()
 		{
 			check();
-			return find(null, null, index).size();
+			return count(-1, -1, index);
 		}
 
 		@Override
 		public int outDegree()
 		{
 			check();
-			return find(index, null, null).size();
+			return count(index, -1, -1);
 		}
 		
 		@Override
@@ -791,35 +1173,16 @@ public class KGraph implements
 		}
 
 		/**
-		 * 
+		 * Removes this link from the graph, as an update of one triple. To 
+		 * remove many links, use removeTriples().
 		 */
 		@Override
 		public void remove()
 		{
-			throw new UnsupportedOperationException("Graph modification is not supported.");
-//			
-//			check();
-//
-//			int index = out.get(from.index()).indexOf(to.index());
-//			if(index < 0)
-//				throw new IllegalStateException("Illegal state. Live link object not found in graph.");
-//			
-//			out.get(from.index()).remove(index);
-//			outTags.get(from.index()).remove(index);
-//			
-//			index = in.get(to.index()).indexOf(from.index());
-//			if(index < 0)
-//				throw new IllegalStateException("Illegal state. Live link object not found in graph.");
-//			
-//			in.get(to.index()).remove(index);
-//			inTags.get(to.index()).remove(index);
-//
-//			numLinks --;
-//			
-//			modCount++;
-//			dead = true;
-//
-//			sorted = false;
+			check();
+			
+			update(Collections.<Triple>emptyList(), singletonList(t(from.index(), tag, to.index())));
+			dead = true;
 		}
 
 		@Override
@@ -1188,241 +1551,251 @@ public class KGraph implements
 	}
 	
 	/**
-	 * Loads the given HDT file into a KGraph. 
+	 * Loads the given HDT file into a KGraph, without the labels. 
 	 * @param file
-	 * @param nodes
-	 * @param relations
 	 * @return
 	 */
 	public static KGraph loadHDT(File file)
 			throws IOException
 	{
-		return loadHDT(file, new ArrayList<String>(), new ArrayList<String>());
+		return loadHDT(file, null, null);
 		
 	}
 	
 	/**
 	 * @param file HDT file, or gzipped HDT file
-	 * @param nodes
-	 * @param relations
+	 * @param nodes If not null, filled with the labels of the nodes, by index.
+	 * @param relations If not null, filled with the labels of the relations, by 
+	 * 	index.
 	 * @return
 	 * @throws IOException
 	 */
 	public static KGraph loadHDT(File file, List<String> nodes, List<String> relations) 
 			throws IOException
 	{
-		InputStream instr = 
-				file.getName().endsWith(".gz") ?
-			    new BufferedInputStream(new  GZIPInputStream(new FileInputStream(file))) :
-				new BufferedInputStream(new FileInputStream(file));
-			    
-		return loadHDT(instr, nodes, relations); 
+		if(file.getName().endsWith(".gz"))
+			return loadHDT(new GZIPInputStream(new FileInputStream(file)), nodes, relations);
+		
+		// - An uncompressed file is memory-mapped rather than read onto the heap
+		HDT hdt = HDTManager.mapHDT(file.getAbsolutePath(), null);
+		try {
+			return loadHDT(hdt, nodes, relations);
+		} finally 
+		{
+			hdt.close();
+		}
 	}
 	
 	public static KGraph loadHDT(InputStream instr, List<String> nodes, List<String> relations) 
 			throws IOException
 	{
-		instr = new BufferedInputStream(instr);
-		
-		int nextTag = 0; 
-		
-		Map<String, Integer> nodeMap = new HashMap<>(), relationMap = new HashMap<>();
-		
-		HDT hdt = HDTManager.loadIndexedHDT(instr, null);
-	
-		nodes.clear();
-		relations.clear();
-		
-		List<Triple> triples = Collections.emptyList();
-    
-    	try {
-    		
-    		// * Pass one: fill the maps
-    		IteratorTripleString it = hdt.search("", "", "");
-    
-    		int estTotal = (int)it.estimatedNumResults(), total = 0;
-    
-    		int nextIndex = 0;
-    		
-    		Global.info("loading: pass one");
-        	while(it.hasNext()) 
-        	{
-        		TripleString ts = it.next();
-        
-        		String subject = ts.getSubject().toString(),
-        			   predicate = ts.getPredicate().toString(),
-        		       object = ts.getObject().toString();
-        		
-        		Integer node1 = nodeMap.get(subject);
-        		if(node1 == null)
-        		{
-        			node1 = nextIndex ++;
-        			nodeMap.put(subject, node1);
-        			nodes.add(subject);
-        		}
-        		
-        		Integer node2 = nodeMap.get(object);
-        		if(node2 == null)
-        		{
-        			node2 = nextIndex ++;
-        			nodeMap.put(object, node2);
-        			nodes.add(object);
-        		}
-        		
-        		Integer tag = relationMap.get(predicate);
-        		if(tag == null)
-        		{
-        			tag = nextTag ++;
-        			
-        			relationMap.put(predicate, tag);
-        			relations.add(predicate);
-        		}
-        		  
-        		// total++;
-        		dot(total++, estTotal);
-        	}
-        	
-    		triples = new ArrayList<Triple>(total); 
-        	
-        	// * Pass two : extract the triples
-     		it = hdt.search("", "", "");
-     	        
-     		int i = 0;
-    		Global.info("loading: pass two.");
-        	while(it.hasNext()) 
-        	{
-        		TripleString ts = it.next();
-        
-        		String subject = ts.getSubject().toString(),
-        			   predicate = ts.getPredicate().toString(),
-        		       object = ts.getObject().toString();
-        		
-        		int s = nodeMap.get(subject),
-        		    o = nodeMap.get(object),       		
-        		    p = relationMap.get(predicate);
-        		
-        		triples.add(t(s, p, o));
-        		    							        		
-        		dot(i++, total);
-        	}
-    	} catch (NotFoundException e)
-    	{
-    		// Empty graph
-    	} finally
-    	{
-    		hdt.close();
-    	}
-
-		return new KGraph(triples);
-	}	
+		HDT hdt = HDTManager.loadHDT(new BufferedInputStream(instr), null);
+		try {
+			return loadHDT(hdt, nodes, relations);
+		} finally 
+		{
+			hdt.close();
+		}
+	}
+	
+	/**
+	 * Reads the triples of an HDT file by their dictionary IDs, in a single 
+	 * pass. No strings are created for the triples.
+	 * 
+	 * HDT numbers the subjects and objects separately (from 1), with the terms 
+	 * that are both subject and object (the shared terms) first in both. We 
+	 * map these onto a single, dense range of node indices: first the subjects 
+	 * (shared and subject-only), then the object-only terms. The relations 
+	 * are the predicate IDs minus one. 
+	 * 
+	 * @param nodes If not null, filled with the labels of the nodes, by index.
+	 * @param relations If not null, filled with the labels of the relations, by 
+	 * 	index.
+	 */
+	static KGraph loadHDT(HDT hdt, List<String> nodes, List<String> relations)
+	{
+		Dictionary dict = hdt.getDictionary();
+		int numShared = (int) dict.getNshared(), 
+		    numSubjects = (int) dict.getNsubjects(), 
+		    numObjects = (int) dict.getNobjects(),
+		    numPredicates = (int) dict.getNpredicates();
+		
+		long total = hdt.getTriples().getNumberOfElements();
+		if(total > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Graph has too many triples ("+total+").");
+		
+		int n = (int) total;
+		int[] s = new int[n], p = new int[n], o = new int[n];
+		
+		Global.info("loading %d triples.", n);
+		
+		int i = 0;
+		IteratorTripleID it = hdt.getTriples().searchAll();
+		while(it.hasNext())
+		{
+			TripleID triple = it.next();
+			
+			s[i] = triple.getSubject() - 1;
+			p[i] = triple.getPredicate() - 1;
+			o[i] = objectIndex(triple.getObject(), numShared, numSubjects);
+			
+			dot(i++, n);
+		}
+		
+		KGraph graph = new KGraph(new TripleStore(s, p, o, i));
+		
+		if(nodes != null)
+		{
+			nodes.clear();
+			for(int node : series(numSubjects))
+				nodes.add(dict.idToString(node + 1, TripleComponentRole.SUBJECT).toString());
+			for(int node : series(numObjects - numShared))
+				nodes.add(dict.idToString(numShared + node + 1, TripleComponentRole.OBJECT).toString());
+			
+			if(nodes instanceof LabelDictionary)
+				((LabelDictionary) nodes).trim();
+		}
+		
+		if(relations != null)
+		{
+			relations.clear();
+			for(int relation : series(numPredicates))
+				relations.add(dict.idToString(relation + 1, TripleComponentRole.PREDICATE).toString());
+			
+			if(relations instanceof LabelDictionary)
+				((LabelDictionary) relations).trim();
+		}
+		
+		return graph;
+	}
+	
+	/**
+	 * The node index of an HDT object ID.
+	 */
+	private static int objectIndex(int id, int numShared, int numSubjects)
+	{
+		if(id <= numShared) // - shared with the subjects
+			return id - 1;
+		
+		return numSubjects + (id - numShared) - 1;
+	}
+	
+	/**
+	 * Loads the given N-Triples file into a KGraph, without the labels.
+	 */
+	public static KGraph loadNT(File file)
+			throws IOException
+	{
+		return loadNT(file, null, null);
+	}
+	
+	/**
+	 * Loads an N-Triples file. The file is parsed in parallel, with one thread
+	 * per processor.
+	 * 
+	 * @param file N-Triples file, or gzipped N-Triples file
+	 * @param nodes If not null, filled with the labels of the nodes, by index.
+	 * @param relations If not null, filled with the labels of the relations, by 
+	 * 	index.
+	 * @return
+	 * @throws IOException
+	 */
+	public static KGraph loadNT(File file, List<String> nodes, List<String> relations) 
+			throws IOException
+	{
+		try(InputStream instr = new FileInputStream(file))
+		{
+			if(file.getName().endsWith(".gz"))
+				return loadNT(new GZIPInputStream(instr, 1 << 16), nodes, relations);
+			
+			return loadNT(instr, nodes, relations);
+		}
+	}
+	
+	public static KGraph loadNT(InputStream instr, List<String> nodes, List<String> relations) 
+			throws IOException
+	{
+		return NTriples.load(instr, nodes, relations);
+	}
+	
+	/**
+	 * Loads a graph from a file, choosing the format by the extension: 
+	 * N-Triples for .nt and .nt.gz, a snapshot (see save()) if the file starts 
+	 * with the snapshot header, and HDT otherwise.
+	 * 
+	 * @param nodes If not null, filled with the labels of the nodes, by index.
+	 * @param relations If not null, filled with the labels of the relations, by 
+	 * 	index.
+	 */
+	public static KGraph load(File file, List<String> nodes, List<String> relations) 
+			throws IOException
+	{
+		if(isNT(file.getName()))
+			return loadNT(file, nodes, relations);
+		
+		if(TripleStore.isSnapshot(file.toPath()))
+			return open(file.toPath(), nodes, relations);
+		
+		return loadHDT(file, nodes, relations);
+	}
+	
+	/**
+	 * Saves the graph to a binary snapshot file, without labels.
+	 */
+	public void save(Path path)
+			throws IOException
+	{
+		save(path, null, null);
+	}
+	
+	/**
+	 * Saves the graph to a binary snapshot file, which can be opened with 
+	 * open(). The snapshot contains the graph's indices, so that opening it 
+	 * requires no parsing or sorting.
+	 * 
+	 * @param nodes The labels of the nodes to store with the graph (or null).
+	 * @param relations The labels of the relations to store with the graph (or 
+	 * 	null).
+	 */
+	public void save(Path path, List<String> nodes, List<String> relations)
+			throws IOException
+	{
+		store.merged().save(path, nodes, relations);
+	}
+	
+	/**
+	 * Opens a snapshot file created by save(). 
+	 */
+	public static KGraph open(Path path)
+			throws IOException
+	{
+		return open(path, null, null);
+	}
+	
+	/**
+	 * Opens a snapshot file created by save(). 
+	 * 
+	 * The file is memory-mapped: the graph's indices are read from the file 
+	 * as they are used, rather than loaded onto the heap, so that opening is 
+	 * near-instant, and processes that open the same file share the memory.
+	 * The file should not be changed while the graph is in use.
+	 * 
+	 * @param nodes If not null, filled with the labels of the nodes, if the 
+	 * 	snapshot contains them.
+	 * @param relations If not null, filled with the labels of the relations, 
+	 * 	if the snapshot contains them.
+	 */
+	public static KGraph open(Path path, List<String> nodes, List<String> relations)
+			throws IOException
+	{
+		return new KGraph(TripleStore.open(path, nodes, relations));
+	}
+	
+	static boolean isNT(String name)
+	{
+		return name.endsWith(".nt") || name.endsWith(".nt.gz");
+	}
 	
-//	/**
-//	 * Can't get this to work just yet. Should use the HDT dictionaries.
-//	 * 
-//	 * @param file
-//	 * @param nodes
-//	 * @param relations
-//	 * @return
-//	 * @throws IOException
-//	 */
-//	public static KGraph loadHDTBuggy(File file, List<String> nodes, List<String> relations) 
-//			throws IOException
-//	{
-//		int nextTag = 0; 
-//		
-//		Map<String, Integer> nodeMap = new HashMap<>(), relationMap = new HashMap<>();
-//		KGraph graph = new KGraph();
-//		
-//		HDT hdt = HDTManager.loadIndexedHDT(
-//				new BufferedInputStream(new FileInputStream(file)), null);
-//		
-//		LinkedHashSet<String> nodeSet = new LinkedHashSet<String>();
-//		LinkedHashSet<String> relSet = new LinkedHashSet<String>();
-//
-//		try {
-//			
-//			// * First pass, get all node and predicate labels
-//			IteratorTripleString it = hdt.search("", "", "");
-//			
-//			while(it.hasNext())
-//			{
-//				TripleString ts = it.next();
-//				
-//				String subject   = ts.getSubject().toString(),
-//				       predicate = ts.getPredicate().toString(),
-// 				       object    = ts.getObject().toString();
-//				
-//				nodeSet.add(subject);
-//				nodeSet.add(object);
-//				relSet.add(predicate);
-//			}
-//		} catch (NotFoundException e) 
-//		{
-//			// File must be empty, return empty graph
-//		} finally 
-//		{
-//			// IMPORTANT: Free resources
-//			hdt.close();
-//		}
-//
-//		nodes.clear();
-//		nodes.addAll(nodeSet);
-//		for(int i : series(nodes.size()))
-//			nodeMap.put(nodes.get(i), i);
-//		
-//		System.out.println(nodes.size());
-//			
-//		relations.clear();
-//		relations.addAll(relSet);
-//		for(int i : series(relations.size()))
-//			relationMap.put(relations.get(i), i);
-//		
-//		Global.log().info("Labels read from dictionary");
-//		
-//		for(int i : series(nodes.size()))
-//			graph.add();
-//		System.out.println("... " + graph.nodes().size());
-//				
-//		
-//		// * Second pass, construct graph
-//		for(KNode node : graph.nodes())
-//		{			
-//			Functions.dot(node.index(), graph.size());
-//			
-//			String subject = nodes.get(node.index());
-//			
-//			IteratorTripleString it;
-//			try {
-//				it = hdt.search(subject, "", "");
-//			} catch (NotFoundException e)
-//			{
-//				continue;
-//			}
-//			
-//			System.out.println(it.estimatedNumResults());
-//			
-//			while(it.hasNext()) 
-//			{
-//				TripleString ts = it.next();
-//
-//				String predicate = ts.getPredicate().toString(),
-//				       object = ts.getObject().toString();
-//				    				
-//				Integer objIndex = nodeMap.get(object);
-//				if(objIndex == null)
-//					System.out.println("object not found in map: " + object);
-//				
-//				KNode node2 = graph.get(objIndex);
-//				int tag = relationMap.get(predicate);
-//								
-//				node.connect(node2, tag);
-//			}
-//
-//		}
-//
-//		return graph;
-//	}
-//	
 	public static List<List<Integer>> degrees(DTGraph<Integer, Integer> graph)
 	{
 		List<Integer> inDegrees = new ArrayList<>(graph.size());
@@ -1452,27 +1825,47 @@ public class KGraph implements
 		return Arrays.asList(inDegrees, outDegrees, tagDegrees);
 	}
 	
+	/**
+	 * The in degrees (indexed by node), out degrees (indexed by node) and 
+	 * predicate degrees (indexed by tag) of the given graph.
+	 * 
+	 * These are computed when the graph is created. After an update, they are 
+	 * derived from the old degrees and the delta (see update()) the first 
+	 * time they are asked for, and kept until the next update. The lists are 
+	 * read-only views of the graph's degree arrays.
+	 */
 	public static List<List<Integer>> degrees(KGraph graph)
 	{
-		List<Integer> in = new ArrayList<>(graph.size());
-		List<Integer> out = new ArrayList<>(graph.size());
-		List<Integer> tag = new ArrayList<>(graph.tags().size());
-		
-		for(int i : series(graph.size()))
-			in.add(0);
-		for(int i : series(graph.size()))
-			out.add(0);
-		for(int i : series(graph.tags().size()))
-			tag.add(0);
-		
-		for(DTLink<Integer, Integer> link : graph.links())
-		{
-			inc(link.from().index(), out);
-			inc(link.to().index(), in);
-			inc(link.tag(), tag);
-		}
+		LayeredStore store = graph.store;
 		
-		return Arrays.asList(in, out, tag);
+		return Collections.unmodifiableList(Arrays.asList(
+				Utils.view(store.inDegrees()), 
+				Utils.view(store.outDegrees()), 
+				Utils.view(store.tagDegrees())));
+	}
+	
+	/**
+	 * The in degree of each node. The array should not be modified. 
+	 */
+	int[] inDegrees()
+	{
+		return store.inDegrees();
+	}
+	
+	/**
+	 * The out degree of each node. The array should not be modified.
+	 */
+	int[] outDegrees()
+	{
+		return store.outDegrees();
+	}
+	
+	/**
+	 * The number of links with each tag. The array should not be modified.
+	 */
+	int[] tagDegrees()
+	{
+		return store.tagDegrees();
 	}
 	
 	private static void inc(int i, List<Integer> list)
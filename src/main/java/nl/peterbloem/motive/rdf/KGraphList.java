@@ -1376,10 +1376,11 @@ public class KGraphList implements
 		Map<String, Integer> nodeMap = new HashMap<>(), relationMap = new HashMap<>();
 		KGraphList graph = new KGraphList();
 		
-		HDT hdt = HDTManager.loadIndexedHDT(
-				file.getName().endsWith(".gz")?
-			    new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))) :
-				new BufferedInputStream(new FileInputStream(file)), null);
+		// - The triples are only iterated over, so we don't need the extra 
+		//   indices (loadIndexedHDT() writes them to the working directory)
+		HDT hdt = file.getName().endsWith(".gz") ?
+				HDTManager.loadHDT(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))), null) :
+				HDTManager.mapHDT(file.getAbsolutePath(), null);
 	
 		nodes.clear();
 		relations.clear();
@@ -1455,8 +1456,7 @@ public class KGraphList implements
 		Map<String, Integer> nodeMap = new HashMap<>(), relationMap = new HashMap<>();
 		KGraphList graph = new KGraphList();
 		
-		HDT hdt = HDTManager.loadIndexedHDT(
-				new BufferedInputStream(new FileInputStream(file)), null);
+		HDT hdt = HDTManager.mapHDT(file.getAbsolutePath(), null);
 		
 		LinkedHashSet<String> nodeSet = new LinkedHashSet<String>();
 		LinkedHashSet<String> relSet = new LinkedHashSet<String>();
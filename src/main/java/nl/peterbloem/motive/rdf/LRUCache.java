@@ -0,0 +1,160 @@
+package nl.peterbloem.motive.rdf;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.ToLongFunction;
+
+/**
+ * A map with a maximum total weight, which evicts the least recently used
+ * entries when it becomes too heavy.
+ *
+ * By default every entry weighs 1, so that the maximum weight is the maximum
+ * number of entries. For a cache of match lists, the weight can be the number
+ * of matches, so that the bound is on the memory used rather than the number
+ * of patterns.
+ *
+ * An entry is used when it is put or retrieved with get(). Other methods
+ * (peek(), containsKey()) don't affect the order of eviction. The most recent
+ * entry is never evicted, even if it is heavier than the maximum on its own.
+ *
+ * This class is not thread-safe.
+ *
+ * @author Peter
+ *
+ */
+public class LRUCache<K, V>
+{
+	// * Insertion-ordered, used entries are moved to the end
+	private LinkedHashMap<K, V> map = new LinkedHashMap<>();
+	private ToLongFunction<? super V> weigher;
+
+	private long maxWeight;
+	private long weight = 0;
+	private long evictions = 0;
+
+	/**
+	 * @param maxSize The maximum number of entries.
+	 */
+	public LRUCache(long maxSize)
+	{
+		this(maxSize, v -> 1);
+	}
+
+	/**
+	 * @param maxWeight The maximum total weight of the entries.
+	 * @param weigher Computes the weight of a value. This should not change
+	 * 	while the value is in the cache.
+	 */
+	public LRUCache(long maxWeight, ToLongFunction<? super V> weigher)
+	{
+		if(maxWeight < 1)
+			throw new IllegalArgumentException("Maximum weight should be positive (was "+maxWeight+").");
+
+		this.maxWeight = maxWeight;
+		this.weigher = weigher;
+	}
+
+	/**
+	 * Returns the value for the given key (or null), and marks it as used.
+	 */
+	public V get(K key)
+	{
+		V value = map.remove(key);
+		if(value != null)
+			map.put(key, value);
+
+		return value;
+	}
+
+	/**
+	 * Returns the value for the given key (or null), without marking it as used.
+	 */
+	public V peek(K key)
+	{
+		return map.get(key);
+	}
+
+	public boolean containsKey(K key)
+	{
+		return map.containsKey(key);
+	}
+
+	/**
+	 * Adds the given entry (replacing any existing value for the key), and
+	 * evicts the least recently used entries until the weight is below the
+	 * maximum.
+	 */
+	public void put(K key, V value)
+	{
+		remove(key);
+
+		map.put(key, value);
+		weight += weigher.applyAsLong(value);
+
+		Iterator<Map.Entry<K, V>> iterator = map.entrySet().iterator();
+		while(weight > maxWeight && map.size() > 1)
+		{
+			Map.Entry<K, V> eldest = iterator.next();
+
+			weight -= weigher.applyAsLong(eldest.getValue());
+			iterator.remove();
+			evictions ++;
+		}
+	}
+
+	public V remove(K key)
+	{
+		V value = map.remove(key);
+		if(value != null)
+			weight -= weigher.applyAsLong(value);
+
+		return value;
+	}
+
+	public int size()
+	{
+		return map.size();
+	}
+
+	/**
+	 * The total weight of the entries currently in the cache.
+	 */
+	public long weight()
+	{
+		return weight;
+	}
+
+	public long maxWeight()
+	{
+		return maxWeight;
+	}
+
+	/**
+	 * The number of entries that were evicted to keep to the maximum weight.
+	 */
+	public long evictions()
+	{
+		return evictions;
+	}
+
+	/**
+	 * A copy of the keys currently in the cache, from least to most recently
+	 * used.
+	 */
+	public Set<K> keySet()
+	{
+		return new LinkedHashSet<>(map.keySet());
+	}
+
+	/**
+	 * An unmodifiable copy of the entries currently in the cache.
+	 */
+	public Map<K, V> toMap()
+	{
+		return Collections.unmodifiableMap(new LinkedHashMap<>(map));
+	}
+}
@@ -0,0 +1,392 @@
+package nl.peterbloem.motive.rdf;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.RandomAccess;
+
+/**
+ * A compact list of strings, for the labels of the nodes and relations of a
+ * graph.
+ *
+ * The strings are front-coded: they are stored in blocks of BLOCK_SIZE, where
+ * the first string of each block is stored in full, and every other string as
+ * the length of the prefix it shares with its predecessor and the remaining
+ * suffix (as UTF-8). A label is only decoded when it is asked for, which
+ * costs at most BLOCK_SIZE steps.
+ *
+ * Since the labels of a graph are mostly IRIs, and loaders tend to produce
+ * them in sorted order (HDT) or grouped by namespace, this typically uses a
+ * fraction of the memory of a list of Strings.
+ *
+ * The data is stored in pages of PAGE_SIZE bytes, addressed by long offsets,
+ * so the dictionary is not limited to the 2GB of a single array.
+ *
+ * This class can be passed to the loaders (which fill the lists they are given)
+ * and to KGraph.recover() in place of a regular list. It supports add() and
+ * clear(), but not changing or removing individual elements. Searching (eg.
+ * with indexOf()) decodes every label, and should be avoided.
+ *
+ * @author Peter
+ *
+ */
+public class LabelDictionary extends AbstractList<String> implements RandomAccess
+{
+	public static final int BLOCK_SIZE = 16;
+	// * The default size of the pages that hold the data (1MB)
+	public static final int PAGE_BITS = 20;
+
+	private final int pageBits, pageSize;
+
+	// * The data, in pages of pageSize bytes. Only the last page may be 
+	//   smaller, so that small dictionaries stay small.
+	private byte[][] pages = new byte[1][];
+	private long dataSize = 0;
+
+	// * Start of each block in data
+	private long[] blocks = new long[64];
+	private int size = 0;
+
+	// * The last string added, to compute the shared prefix of the next
+	private byte[] last = new byte[0];
+
+	public LabelDictionary()
+	{
+		this(PAGE_BITS);
+	}
+
+	public LabelDictionary(Collection<String> labels)
+	{
+		this();
+		addAll(labels);
+	}
+
+	/**
+	 * @param pageBits The log2 of the size of the pages that hold the data.
+	 */
+	LabelDictionary(int pageBits)
+	{
+		this.pageBits = pageBits;
+		this.pageSize = 1 << pageBits;
+		
+		pages[0] = new byte[Math.min(1024, pageSize)];
+	}
+
+	@Override
+	public String get(int index)
+	{
+		if(index < 0 || index >= size)
+			throw new IndexOutOfBoundsException("Index "+index+" out of bounds for size "+size+".");
+
+		int block = index / BLOCK_SIZE;
+		long[] pos = {blocks[block]};
+
+		// - first string of the block
+		int length = readInt(pos);
+		byte[] current = new byte[length];
+		read(pos, current, 0, length);
+
+		for(int i = block * BLOCK_SIZE + 1; i <= index; i++)
+		{
+			int prefix = readInt(pos);
+			int suffix = readInt(pos);
+
+			byte[] next = Arrays.copyOf(current, prefix + suffix);
+			read(pos, next, prefix, suffix);
+
+			current = next;
+		}
+
+		return new String(current, StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public int size()
+	{
+		return size;
+	}
+
+	@Override
+	public boolean add(String label)
+	{
+		if(size == Integer.MAX_VALUE)
+			throw new IllegalStateException("Label dictionary is full ("+size+" labels).");
+		
+		byte[] bytes = label.getBytes(StandardCharsets.UTF_8);
+
+		if(size % BLOCK_SIZE == 0)
+		{
+			int block = size / BLOCK_SIZE;
+			if(block == blocks.length)
+				blocks = Arrays.copyOf(blocks, Math.max(blocks.length * 2, 16));
+			blocks[block] = dataSize;
+
+			writeInt(bytes.length);
+			write(bytes, 0, bytes.length);
+		} else
+		{
+			int prefix = 0;
+			int max = Math.min(bytes.length, last.length);
+			while(prefix < max && bytes[prefix] == last[prefix])
+				prefix ++;
+
+			writeInt(prefix);
+			writeInt(bytes.length - prefix);
+			write(bytes, prefix, bytes.length - prefix);
+		}
+
+		last = bytes;
+		size ++;
+		modCount ++;
+
+		return true;
+	}
+
+	@Override
+	public void clear()
+	{
+		dataSize = 0;
+		size = 0;
+		last = new byte[0];
+		modCount ++;
+	}
+
+	/**
+	 * Reduces the internal buffers to the size of the data. Call this after
+	 * the last label has been added.
+	 */
+	public void trim()
+	{
+		int numPages = numPages(dataSize);
+		if(numPages == 0)
+			pages = new byte[][] {new byte[0]};
+		else
+		{
+			pages = Arrays.copyOf(pages, numPages);
+			pages[numPages - 1] = Arrays.copyOf(pages[numPages - 1], offset(dataSize - 1) + 1);
+		}
+		
+		blocks = Arrays.copyOf(blocks, (size + BLOCK_SIZE - 1) / BLOCK_SIZE);
+	}
+
+	/**
+	 * The number of bytes used to store the labels.
+	 */
+	public long bytes()
+	{
+		return dataSize + 8L * ((size + BLOCK_SIZE - 1) / BLOCK_SIZE);
+	}
+
+	/**
+	 * Writes the dictionary to the given channel, in its internal format: the
+	 * number of labels and blocks (as little-endian ints) and the number of 
+	 * bytes (as a long), followed by the block offsets (as longs) and the 
+	 * data.
+	 */
+	void write(WritableByteChannel out)
+		throws IOException
+	{
+		int numBlocks = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+
+		ByteBuffer header = ByteBuffer.allocate(16 + 8 * numBlocks).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(size).putInt(numBlocks).putLong(dataSize);
+		for(int block = 0; block < numBlocks; block++)
+			header.putLong(blocks[block]);
+		header.flip();
+
+		while(header.hasRemaining())
+			out.write(header);
+
+		long remaining = dataSize;
+		for(int page = 0; remaining > 0; page++)
+		{
+			int length = (int) Math.min(remaining, pageSize);
+			ByteBuffer body = ByteBuffer.wrap(pages[page], 0, length);
+			while(body.hasRemaining())
+				out.write(body);
+			
+			remaining -= length;
+		}
+	}
+
+	/**
+	 * Reads a dictionary written by write().
+	 */
+	static LabelDictionary read(ReadableByteChannel in)
+		throws IOException
+	{
+		ByteBuffer header = readFully(in, 16);
+		int size = header.getInt(), numBlocks = header.getInt();
+		long dataSize = header.getLong();
+
+		if(size < 0 || numBlocks != (size + BLOCK_SIZE - 1) / BLOCK_SIZE || dataSize < 0)
+			throw new IOException("Corrupt label dictionary (size "+size+", "+numBlocks+" blocks, "+dataSize+" bytes).");
+
+		LabelDictionary dict = new LabelDictionary();
+		dict.size = size;
+		dict.dataSize = dataSize;
+
+		dict.blocks = new long[numBlocks];
+		readFully(in, 8 * numBlocks).asLongBuffer().get(dict.blocks);
+
+		dict.pages = new byte[Math.max(dict.numPages(dataSize), 1)][];
+		dict.pages[0] = new byte[0];
+		
+		long remaining = dataSize;
+		for(int page = 0; remaining > 0; page++)
+		{
+			int length = (int) Math.min(remaining, dict.pageSize);
+			dict.pages[page] = new byte[length];
+			
+			ByteBuffer body = ByteBuffer.wrap(dict.pages[page]);
+			while(body.hasRemaining())
+				if(in.read(body) < 0)
+					throw new IOException("Unexpected end of file in label dictionary.");
+			
+			remaining -= length;
+		}
+
+		dict.last = size == 0 ? new byte[0] : dict.get(size - 1).getBytes(StandardCharsets.UTF_8);
+
+		return dict;
+	}
+
+	private static ByteBuffer readFully(ReadableByteChannel in, int length)
+		throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		while(buffer.hasRemaining())
+			if(in.read(buffer) < 0)
+				throw new IOException("Unexpected end of file in label dictionary.");
+		buffer.flip();
+
+		return buffer;
+	}
+
+	/**
+	 * Replaces the contents of this dictionary by a copy of those of another,
+	 * without decoding the labels.
+	 */
+	void assign(LabelDictionary other)
+	{
+		clear();
+		
+		long[] pos = {0};
+		byte[] buffer = new byte[(int) Math.min(other.dataSize, 1 << 16)];
+		while(pos[0] < other.dataSize)
+		{
+			int length = (int) Math.min(other.dataSize - pos[0], buffer.length);
+			other.read(pos, buffer, 0, length);
+			write(buffer, 0, length);
+		}
+		
+		blocks = Arrays.copyOf(other.blocks, (other.size + BLOCK_SIZE - 1) / BLOCK_SIZE);
+		size = other.size;
+		last = other.last;
+	}
+
+	private void write(byte[] bytes, int from, int length)
+	{
+		while(length > 0)
+		{
+			int offset = offset(dataSize);
+			byte[] page = page(dataSize, Math.min(offset + length, pageSize));
+			
+			int n = Math.min(length, pageSize - offset);
+			System.arraycopy(bytes, from, page, offset, n);
+			
+			dataSize += n;
+			from += n;
+			length -= n;
+		}
+	}
+
+	/**
+	 * Writes a non-negative int as a variable-length number (7 bits per byte).
+	 */
+	private void writeInt(int value)
+	{
+		while(value >= 0x80)
+		{
+			writeByte((byte) (value | 0x80));
+			value >>>= 7;
+		}
+		writeByte((byte) value);
+	}
+
+	private void writeByte(byte value)
+	{
+		page(dataSize, offset(dataSize) + 1)[offset(dataSize)] = value;
+		dataSize ++;
+	}
+
+	private int readInt(long[] pos)
+	{
+		int value = 0, shift = 0;
+		byte b;
+		do {
+			b = pages[(int) (pos[0] >>> pageBits)][offset(pos[0])];
+			pos[0] ++;
+			value |= (b & 0x7f) << shift;
+			shift += 7;
+		} while((b & 0x80) != 0);
+
+		return value;
+	}
+
+	/**
+	 * Copies length bytes of data, starting at pos, which may span several 
+	 * pages. 
+	 */
+	private void read(long[] pos, byte[] to, int from, int length)
+	{
+		while(length > 0)
+		{
+			int offset = offset(pos[0]);
+			int n = Math.min(length, pageSize - offset);
+			System.arraycopy(pages[(int) (pos[0] >>> pageBits)], offset, to, from, n);
+			
+			pos[0] += n;
+			from += n;
+			length -= n;
+		}
+	}
+
+	/**
+	 * The page holding the given position in the data, grown (or created) so 
+	 * that it holds at least the given number of bytes.
+	 */
+	private byte[] page(long position, int capacity)
+	{
+		long index = position >>> pageBits;
+		if(index >= Integer.MAX_VALUE)
+			throw new IllegalStateException("Label dictionary is full ("+dataSize+" bytes).");
+
+		int page = (int) index;
+		if(page >= pages.length)
+			pages = Arrays.copyOf(pages, (int) Math.min(Integer.MAX_VALUE - 8, Math.max(2L * pages.length, page + 1L)));
+		
+		if(pages[page] == null)
+			pages[page] = new byte[Math.min(Math.max(capacity, 1024), pageSize)];
+		else if(pages[page].length < capacity)
+			pages[page] = Arrays.copyOf(pages[page], (int) Math.min(Math.max(2L * pages[page].length, capacity), pageSize));
+		
+		return pages[page];
+	}
+
+	private int offset(long position)
+	{
+		return (int) (position & (pageSize - 1));
+	}
+
+	private int numPages(long bytes)
+	{
+		return (int) ((bytes + pageSize - 1) >>> pageBits);
+	}
+}
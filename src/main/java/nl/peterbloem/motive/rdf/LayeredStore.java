@@ -0,0 +1,758 @@
+package nl.peterbloem.motive.rdf;
+
+import static java.util.Arrays.asList;
+
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import nl.peterbloem.motive.rdf.TripleStore.Order;
+
+/**
+ * A triple store that can be updated cheaply: an immutable base store, plus
+ * two small sets of triples (the delta) holding the triples added since the
+ * base was built and the triples removed from it. A triple is in the layered
+ * store if it was added, or if it is in the base and wasn't removed. The added
+ * triples are never in the base, and the removed triples always are.
+ *
+ * Reads merge the base and the delta. Patterns that the delta doesn't touch
+ * (by far the most, as long as the delta is small) are answered by the base
+ * alone, after two extra binary searches.
+ *
+ * Like a TripleStore, a layered store is never changed. An update returns a
+ * new store that shares the base with this one. Only the delta is rebuilt:
+ * the cost of an update depends on the size of the delta and the number of
+ * tags, but not on the number of nodes. The node degrees are derived from
+ * those of the base when they are first asked for.
+ *
+ * Once the delta has grown large, the owner should fold it into a new base:
+ * merged() does the (expensive) rebuild, and rebase() then moves the changes
+ * made in the meantime to a new delta. See KGraph.update().
+ *
+ * @author Peter
+ *
+ */
+class LayeredStore
+{
+	private static final int S = 0, P = 1, O = 2;
+
+	// * The positions of the three permutations, indexed by Order.ordinal()
+	private static final int[][] PERMUTATIONS = {{S, P, O}, {P, O, S}, {O, S, P}};
+
+	private final TripleStore base;
+	private final Delta added, removed;
+
+	private final int size, numNodes;
+
+	// * The number of triples with each node as object and as subject in the
+	//   base
+	private final int[] baseIn, baseOut;
+
+	// * The same for this store, computed when first asked for
+	private volatile int[] inDegrees, outDegrees;
+
+	// * The number of triples with each tag. The length of the array is the
+	//   number of tags in use.
+	private final int[] tagDegrees;
+
+	// * For each tag, the number of distinct subjects and objects it occurs with
+	private final int[] numSubjects, numObjects;
+
+	/**
+	 * A layered store with the given base and an empty delta.
+	 */
+	public LayeredStore(TripleStore base)
+	{
+		this(base, base.inDegrees(), base.outDegrees(), Delta.EMPTY, Delta.EMPTY,
+				base.size(), base.numNodes(), base.tagDegrees(),
+				counts(base, true), counts(base, false));
+	}
+
+	/**
+	 * @param numNodes An upper bound for the number of nodes in use. The
+	 * 	nodes with the highest ids are dropped if they have no triples.
+	 */
+	private LayeredStore(
+			TripleStore base, int[] baseIn, int[] baseOut,
+			Delta added, Delta removed, int size, int numNodes,
+			int[] tagDegrees, int[] numSubjects, int[] numObjects)
+	{
+		this.base = base;
+		this.baseIn = baseIn;
+		this.baseOut = baseOut;
+		this.added = added;
+		this.removed = removed;
+		this.size = size;
+
+		this.tagDegrees = tagDegrees;
+		this.numSubjects = numSubjects;
+		this.numObjects = numObjects;
+
+		// - As in a rebuilt store, the nodes with the highest ids are dropped
+		//   if they lose all their triples
+		while(numNodes > 0 && inDegree(numNodes - 1) + outDegree(numNodes - 1) == 0)
+			numNodes --;
+		this.numNodes = numNodes;
+
+		if(! hasDelta() && baseIn.length == numNodes)
+		{
+			inDegrees = baseIn;
+			outDegrees = baseOut;
+		}
+	}
+
+	private static int[] counts(TripleStore store, boolean subjects)
+	{
+		int[] result = new int[store.numTags()];
+		for(int p = 0; p < result.length; p++)
+			result[p] = subjects ? store.numSubjects(p) : store.numObjects(p);
+
+		return result;
+	}
+
+	/**
+	 * A new store holding the triples of this store, minus those in remove,
+	 * plus those in add (so a triple in both is kept). Triples to remove that
+	 * are not in the store are ignored. This store is not changed.
+	 *
+	 * The cost is linear in the size of the delta and the number of tags,
+	 * not in the size of the base or the number of nodes.
+	 */
+	LayeredStore update(Collection<Triple> add, Collection<Triple> remove)
+	{
+		// * The changes that have an effect
+		Set<Triple> adds = new LinkedHashSet<>(), removes = new LinkedHashSet<>();
+		for(Triple triple : add)
+		{
+			if(triple.subject() < 0 || triple.predicate() < 0 || triple.object() < 0)
+				throw new IllegalArgumentException("Triple " + triple + " has a negative id.");
+
+			if(! contains(triple))
+				adds.add(triple);
+		}
+
+		if(! remove.isEmpty())
+		{
+			Set<Triple> kept = new HashSet<>(add);
+			for(Triple triple : remove)
+				if(contains(triple) && ! kept.contains(triple))
+					removes.add(triple);
+		}
+
+		if(adds.isEmpty() && removes.isEmpty())
+			return this;
+
+		// * The new delta
+		List<Triple> nwAdded = new ArrayList<>(), nwRemoved = new ArrayList<>();
+
+		for(Triple triple : added.triples())
+			if(! removes.contains(triple))
+				nwAdded.add(triple);
+		for(Triple triple : removed.triples())
+			if(! adds.contains(triple))
+				nwRemoved.add(triple);
+
+		// - An added triple that is in the base was removed before, and a
+		//   removed triple that isn't was added before. Both are handled above.
+		for(Triple triple : adds)
+			if(! base.contains(triple.subject(), triple.predicate(), triple.object()))
+				nwAdded.add(triple);
+		for(Triple triple : removes)
+			if(base.contains(triple.subject(), triple.predicate(), triple.object()))
+				nwRemoved.add(triple);
+
+		// * The new tag degrees
+		int maxNode = numNodes - 1, maxTag = numTags() - 1;
+		for(Triple triple : adds)
+		{
+			maxNode = Math.max(maxNode, Math.max(triple.subject(), triple.object()));
+			maxTag = Math.max(maxTag, triple.predicate());
+		}
+
+		int[] tags = Arrays.copyOf(tagDegrees, maxTag + 1);
+		for(Triple triple : adds)
+			tags[triple.predicate()] ++;
+		for(Triple triple : removes)
+			tags[triple.predicate()] --;
+
+		int r = tags.length;
+		while(r > 0 && tags[r - 1] == 0)
+			r --;
+
+		int[] subjects = Arrays.copyOf(numSubjects, r), objects = Arrays.copyOf(numObjects, r);
+
+		LayeredStore next = new LayeredStore(
+				base, baseIn, baseOut, new Delta(nwAdded), new Delta(nwRemoved),
+				size + adds.size() - removes.size(), maxNode + 1,
+				Arrays.copyOf(tags, r), subjects, objects);
+
+		// * Count the (subject, tag) and (tag, object) pairs that gained their
+		//   first triple or lost their last one
+		Set<Long> pairs = new HashSet<>();
+		for(Set<Triple> changes : asList(adds, removes))
+			for(Triple triple : changes)
+			{
+				int s = triple.subject(), p = triple.predicate(), o = triple.object();
+				if(p >= r)
+					continue;
+
+				if(pairs.add(key(s, p)))
+					subjects[p] += difference(count(s, p, -1), next.count(s, p, -1));
+				if(pairs.add(-key(o, p) - 1))
+					objects[p] += difference(count(-1, p, o), next.count(-1, p, o));
+			}
+
+		return next;
+	}
+
+	private static long key(int node, int tag)
+	{
+		return ((long) tag << 32) | node;
+	}
+
+	/**
+	 * The change in the number of distinct values when a count goes from
+	 * before to after.
+	 */
+	private static int difference(int before, int after)
+	{
+		if(before == 0 && after > 0)
+			return 1;
+		if(before > 0 && after == 0)
+			return -1;
+
+		return 0;
+	}
+
+	/**
+	 * A new base store, holding the triples of this store. This rebuilds the
+	 * whole store (unless the delta is empty), so it can take a while.
+	 */
+	TripleStore merged()
+	{
+		if(! hasDelta())
+			return base;
+
+		return base.update(added.triples(), removed.triples());
+	}
+
+	/**
+	 * This store, on a new base. The new base should hold the triples of the
+	 * given store, which should be an earlier version of this store (with the
+	 * same base), as returned by its merged(). The changes made since that
+	 * version become the new delta.
+	 */
+	LayeredStore rebase(LayeredStore start, TripleStore merged)
+	{
+		assert start.base == base;
+
+		// - The two versions can only differ in the triples in their deltas
+		Set<Triple> candidates = new LinkedHashSet<>();
+		for(LayeredStore store : asList(start, this))
+		{
+			candidates.addAll(store.added.triples());
+			candidates.addAll(store.removed.triples());
+		}
+
+		List<Triple> nwAdded = new ArrayList<>(), nwRemoved = new ArrayList<>();
+		for(Triple triple : candidates)
+		{
+			boolean now = contains(triple), then = start.contains(triple);
+
+			if(now && ! then)
+				nwAdded.add(triple);
+			if(then && ! now)
+				nwRemoved.add(triple);
+		}
+
+		LayeredStore result = new LayeredStore(
+				merged, merged.inDegrees(), merged.outDegrees(),
+				new Delta(nwAdded), new Delta(nwRemoved), size,
+				Math.max(numNodes, merged.numNodes()),
+				tagDegrees, numSubjects, numObjects);
+
+		// - The degrees don't change, so if we have them, we can pass them on
+		result.inDegrees = inDegrees;
+		result.outDegrees = outDegrees;
+
+		return result;
+	}
+
+	/**
+	 * This store, with its base replaced by a copy (for instance, one that is
+	 * kept off the heap). The delta is kept.
+	 */
+	LayeredStore withBase(TripleStore copy)
+	{
+		LayeredStore result = new LayeredStore(
+				copy, baseIn, baseOut, added, removed, size, numNodes,
+				tagDegrees, numSubjects, numObjects);
+
+		result.inDegrees = inDegrees;
+		result.outDegrees = outDegrees;
+
+		return result;
+	}
+
+	/**
+	 * The base store. Patterns that the delta touches (see touches()) may
+	 * have more or fewer matches in this store than in the base.
+	 */
+	TripleStore base()
+	{
+		return base;
+	}
+
+	boolean hasDelta()
+	{
+		return deltaSize() > 0;
+	}
+
+	/**
+	 * The number of triples in the delta (added and removed).
+	 */
+	int deltaSize()
+	{
+		return added.size() + removed.size();
+	}
+
+	/**
+	 * Whether the delta contains triples matching the given pattern. If not,
+	 * the base has the same matches as this store. Negative values are taken
+	 * as variables.
+	 */
+	boolean touches(int s, int p, int o)
+	{
+		return hasDelta() && (added.count(s, p, o) > 0 || removed.count(s, p, o) > 0);
+	}
+
+	public int numNodes()
+	{
+		return numNodes;
+	}
+
+	public int numTags()
+	{
+		return tagDegrees.length;
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * The number of triples with each node as object. The array should not be
+	 * modified.
+	 *
+	 * If the store has a delta, the array is built the first time it's asked
+	 * for, and kept.
+	 */
+	int[] inDegrees()
+	{
+		int[] result = inDegrees;
+		if(result == null)
+			inDegrees = result = degrees(baseIn, O);
+
+		return result;
+	}
+
+	/**
+	 * The number of triples with each node as subject. The array should not
+	 * be modified.
+	 *
+	 * If the store has a delta, the array is built the first time it's asked
+	 * for, and kept.
+	 */
+	int[] outDegrees()
+	{
+		int[] result = outDegrees;
+		if(result == null)
+			outDegrees = result = degrees(baseOut, S);
+
+		return result;
+	}
+
+	/**
+	 * The degrees of the base, corrected for the delta.
+	 *
+	 * @param pos The position of the node in the triples to count.
+	 */
+	private int[] degrees(int[] baseDegrees, int pos)
+	{
+		int[] result = Arrays.copyOf(baseDegrees, numNodes);
+
+		for(Triple triple : added.triples())
+			result[pos == S ? triple.subject() : triple.object()] ++;
+
+		for(Triple triple : removed.triples())
+		{
+			int node = pos == S ? triple.subject() : triple.object();
+			if(node < numNodes)
+				result[node] --;
+		}
+
+		return result;
+	}
+
+	private int inDegree(int node)
+	{
+		int degree = node < baseIn.length ? baseIn[node] : 0;
+		return degree + added.count(-1, -1, node) - removed.count(-1, -1, node);
+	}
+
+	private int outDegree(int node)
+	{
+		int degree = node < baseOut.length ? baseOut[node] : 0;
+		return degree + added.count(node, -1, -1) - removed.count(node, -1, -1);
+	}
+
+	/**
+	 * The number of triples with each predicate. The array should not be
+	 * modified.
+	 */
+	int[] tagDegrees()
+	{
+		return tagDegrees;
+	}
+
+	public int numSubjects(int p)
+	{
+		return p < 0 || p >= numSubjects.length ? 0 : numSubjects[p];
+	}
+
+	public int numObjects(int p)
+	{
+		return p < 0 || p >= numObjects.length ? 0 : numObjects[p];
+	}
+
+	public boolean isOffHeap()
+	{
+		return base.isOffHeap();
+	}
+
+	public boolean contains(int s, int p, int o)
+	{
+		if(! hasDelta())
+			return base.contains(s, p, o);
+
+		return added.contains(s, p, o) || (base.contains(s, p, o) && ! removed.contains(s, p, o));
+	}
+
+	private boolean contains(Triple triple)
+	{
+		return contains(triple.subject(), triple.predicate(), triple.object());
+	}
+
+	public int count(int s, int p, int o)
+	{
+		int count = base.count(s, p, o);
+		if(hasDelta())
+			count += added.count(s, p, o) - removed.count(s, p, o);
+
+		return count;
+	}
+
+	/**
+	 * Returns all triples matching the given pattern as a read-only set view.
+	 * Negative values are taken as variables. The triples are in the same
+	 * order as those of a TripleStore with the same triples.
+	 */
+	public Set<Triple> find(int s, int p, int o)
+	{
+		if(! touches(s, p, o))
+			return base.find(s, p, o);
+
+		return new Merged(s, p, o);
+	}
+
+	/**
+	 * Passes all triples matching the given pattern to the consumer. Negative
+	 * values are taken as variables. The matching triples of the delta come
+	 * after those of the base.
+	 */
+	public void find(int s, int p, int o, IntTripleConsumer consumer)
+	{
+		if(! touches(s, p, o))
+		{
+			base.find(s, p, o, consumer);
+			return;
+		}
+
+		if(removed.count(s, p, o) == 0)
+			base.find(s, p, o, consumer);
+		else
+			base.find(s, p, o, (subject, predicate, object) -> {
+				if(! removed.contains(subject, predicate, object))
+					consumer.accept(subject, predicate, object);
+			});
+
+		added.find(s, p, o, consumer);
+	}
+
+	/**
+	 * Compares two triples in the order of the given permutation.
+	 */
+	private static int compare(Order order, Triple a, Triple b)
+	{
+		for(int pos : PERMUTATIONS[order.ordinal()])
+		{
+			int x = get(a, pos), y = get(b, pos);
+			if(x != y)
+				return Integer.compare(x, y);
+		}
+
+		return 0;
+	}
+
+	private static int get(Triple triple, int pos)
+	{
+		return pos == S ? triple.subject() : pos == P ? triple.predicate() : triple.object();
+	}
+
+	/**
+	 * A small set of triples, sorted in each of the three permutations. Unlike
+	 * a TripleStore, it takes no space for the nodes and tags that don't
+	 * occur in it: matches are found by binary search.
+	 */
+	private static class Delta
+	{
+		static final Delta EMPTY = new Delta(Collections.<Triple>emptyList());
+
+		// * The triples in SPO order
+		private final List<Triple> triples;
+
+		// * For each permutation (by Order.ordinal()), its three columns
+		private final int[][][] columns = new int[3][][];
+
+		public Delta(Collection<Triple> triples)
+		{
+			int n = triples.size();
+
+			for(Order order : Order.values())
+			{
+				Triple[] sorted = triples.toArray(new Triple[n]);
+				Arrays.sort(sorted, (a, b) -> compare(order, a, b));
+
+				int[] perm = PERMUTATIONS[order.ordinal()];
+				int[][] column = new int[3][n];
+				for(int i = 0; i < n; i++)
+					for(int j = 0; j < 3; j++)
+						column[j][i] = get(sorted[i], perm[j]);
+
+				columns[order.ordinal()] = column;
+			}
+
+			List<Triple> spo = new ArrayList<>(n);
+			for(int i = 0; i < n; i++)
+				spo.add(Triple.t(columns[0][S][i], columns[0][P][i], columns[0][O][i]));
+			this.triples = Collections.unmodifiableList(spo);
+		}
+
+		public int size()
+		{
+			return triples.size();
+		}
+
+		/**
+		 * All triples, in SPO order.
+		 */
+		public List<Triple> triples()
+		{
+			return triples;
+		}
+
+		public boolean contains(int s, int p, int o)
+		{
+			return count(s, p, o) > 0;
+		}
+
+		public int count(int s, int p, int o)
+		{
+			if(triples.isEmpty())
+				return 0;
+
+			Order order = TripleStore.order(s, p, o);
+			return to(order, s, p, o) - from(order, s, p, o);
+		}
+
+		public void find(int s, int p, int o, IntTripleConsumer consumer)
+		{
+			if(triples.isEmpty())
+				return;
+
+			Order order = TripleStore.order(s, p, o);
+			int[] perm = PERMUTATIONS[order.ordinal()];
+			int[][] column = columns[order.ordinal()];
+			int[] triple = new int[3];
+
+			for(int i = from(order, s, p, o), to = to(order, s, p, o); i < to; i++)
+			{
+				for(int j = 0; j < 3; j++)
+					triple[perm[j]] = column[j][i];
+
+				consumer.accept(triple[S], triple[P], triple[O]);
+			}
+		}
+
+		/**
+		 * The triples matching the given pattern, in the order of the
+		 * permutation given by TripleStore.order(s, p, o).
+		 */
+		public Iterator<Triple> iterator(int s, int p, int o)
+		{
+			List<Triple> result = new ArrayList<>();
+			find(s, p, o, (subject, predicate, object) -> result.add(Triple.t(subject, predicate, object)));
+
+			return result.iterator();
+		}
+
+		/**
+		 * The first index in the given permutation of a triple matching the
+		 * pattern. The constants of the pattern form a prefix of the
+		 * permutation (see TripleStore.order()).
+		 */
+		private int from(Order order, int s, int p, int o)
+		{
+			return search(order, s, p, o, false);
+		}
+
+		/**
+		 * One past the last index in the given permutation of a triple
+		 * matching the pattern.
+		 */
+		private int to(Order order, int s, int p, int o)
+		{
+			return search(order, s, p, o, true);
+		}
+
+		private int search(Order order, int s, int p, int o, boolean upper)
+		{
+			int[] perm = PERMUTATIONS[order.ordinal()];
+			int[][] column = columns[order.ordinal()];
+			int[] pattern = {s, p, o};
+
+			int lo = 0, hi = triples.size();
+			while(lo < hi)
+			{
+				int mid = (lo + hi) >>> 1;
+
+				int c = 0;
+				for(int j = 0; j < 3 && c == 0; j++)
+				{
+					int value = pattern[perm[j]];
+					if(value < 0)
+						break;
+					c = Integer.compare(column[j][mid], value);
+				}
+
+				if(c < 0 || (upper && c == 0))
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+
+			return lo;
+		}
+	}
+
+	/**
+	 * A read-only view of the matches of a pattern that the delta touches: the
+	 * matches in the base that weren't removed, merged with the added matches.
+	 */
+	private class Merged extends AbstractSet<Triple>
+	{
+		private int s, p, o;
+		private int size;
+
+		public Merged(int s, int p, int o)
+		{
+			this.s = s;
+			this.p = p;
+			this.o = o;
+
+			this.size = count(s, p, o);
+		}
+
+		@Override
+		public int size()
+		{
+			return size;
+		}
+
+		@Override
+		public boolean contains(Object obj)
+		{
+			if(! (obj instanceof Triple))
+				return false;
+
+			Triple triple = (Triple) obj;
+
+			return  (s < 0 || s == triple.subject()) &&
+			        (p < 0 || p == triple.predicate()) &&
+			        (o < 0 || o == triple.object()) &&
+			        LayeredStore.this.contains(triple);
+		}
+
+		@Override
+		public Iterator<Triple> iterator()
+		{
+			return new MergedIterator();
+		}
+
+		private class MergedIterator implements Iterator<Triple>
+		{
+			private Order order = TripleStore.order(s, p, o);
+			private Iterator<Triple> fromBase = base.find(s, p, o).iterator(),
+			                         fromAdded = added.iterator(s, p, o);
+			private Triple nextBase = nextBase(),
+			               nextAdded = fromAdded.hasNext() ? fromAdded.next() : null;
+
+			private Triple nextBase()
+			{
+				while(fromBase.hasNext())
+				{
+					Triple triple = fromBase.next();
+					if(! removed.contains(triple.subject(), triple.predicate(), triple.object()))
+						return triple;
+				}
+
+				return null;
+			}
+
+			@Override
+			public boolean hasNext()
+			{
+				return nextBase != null || nextAdded != null;
+			}
+
+			@Override
+			public Triple next()
+			{
+				if(! hasNext())
+					throw new NoSuchElementException();
+
+				Triple result;
+				if(nextAdded == null || (nextBase != null && compare(order, nextBase, nextAdded) < 0))
+				{
+					result = nextBase;
+					nextBase = nextBase();
+				} else
+				{
+					result = nextAdded;
+					nextAdded = fromAdded.hasNext() ? fromAdded.next() : null;
+				}
+
+				return result;
+			}
+		}
+	}
+}
@@ -0,0 +1,850 @@
+package nl.peterbloem.motive.rdf;
+
+import static java.util.Collections.reverseOrder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.nodes.DTGraph;
+import org.nodes.DTLink;
+
+import nl.peterbloem.motive.rdf.TripleStore.Order;
+
+/**
+ * Matches a BGP pattern by leapfrog triejoin over the sorted permutations of
+ * the graph's triple store.
+ *
+ * The variables are bound one at a time, in a fixed order. For each variable,
+ * every pattern link it occurs in provides a sorted list of the values it can
+ * take, given the values of the variables bound before it. Usually, this list
+ * is a range of one of the columns of the SPO, POS or OSP permutation. These
+ * lists are intersected by leapfrogging: repeatedly seeking the list with the
+ * smallest current value to the largest current value of the others. The
+ * time spent in each intersection is bounded by the shortest list, which makes
+ * the join worst-case optimal: unlike binary pruning, cyclic patterns don't
+ * lead to large intermediate results.
+ *
+ * Where no permutation provides the values in the required order (for
+ * instance the objects of a given subject, which the SPO permutation sorts by
+ * predicate first), or where the variable occurs twice in the link, the
+ * values are collected and sorted instead.
+ *
+ * The permutations are those of the base of the graph's (layered) store. If
+ * the graph has pending updates, a link whose bound values match triples in
+ * the delta has its values collected from the merged store instead. The first
+ * variable takes its values from the degree arrays, which include the delta.
+ * The search reads a single version of the store, so it isn't affected by
+ * updates made while it runs.
+ *
+ * The matches have the same form and constraints as those of the candidate
+ * search in Find: node variables take distinct values, and each link maps to
+ * a distinct triple.
+ *
+ * @author Peter
+ *
+ */
+class Leapfrog
+{
+	private static final int S = 0, P = 1, O = 2;
+
+	// * The positions of the three permutations, indexed by Order.ordinal()
+	private static final int[][] PERMUTATIONS = {{S, P, O}, {P, O, S}, {O, S, P}};
+
+	// * How often to check the time (in steps, must be a power of two)
+	private static final int CHECK_EVERY = 1024;
+
+	private LayeredStore store;
+
+	// * The links of the pattern as (subject, predicate, object) triples
+	//   (negative values are variables)
+	private int[][] links;
+
+	// * The variables in the order in which they are bound
+	private int[] vars;
+	// * Maps each variable to its position in vars
+	private Map<Integer, Integer> levels = new LinkedHashMap<>();
+	private boolean[] isRelation;
+	// * For each level, the links containing its variable, and a cursor for
+	//   each
+	private int[][] linksAt;
+	private Cursor[][] cursors;
+
+	// * For each variable in the output order (descending), its level
+	private int[] output;
+
+	// * The values of the bound variables, by level
+	private int[] values;
+
+	// * Whether some link without variables doesn't occur in the graph
+	private boolean empty = false;
+
+	// * Scratch space for resolving a link
+	private int[] resolved = new int[3];
+	private int[] triples;
+
+	private FindResult result;
+	private Long stopTime;
+	private long steps = 0;
+
+	// * The range of values to consider for the first variable
+	private int lo = 0, hi = Integer.MAX_VALUE;
+	// * If not null, the values of the first variable are collected here,
+	//   instead of searched
+	private int[] roots;
+	private int numRoots = 0;
+
+	public Leapfrog(DTGraph<Integer, Integer> pattern, KGraph graph)
+	{
+		this.store = graph.store();
+
+		int m = (int) pattern.numLinks();
+		links = new int[m][];
+		triples = new int[3 * m];
+
+		List<Integer> keys = new ArrayList<>();
+		List<Integer> relations = new ArrayList<>();
+
+		int l = 0;
+		for(DTLink<Integer, Integer> link : pattern.links())
+		{
+			int[] triple = {link.from().label(), link.tag(), link.to().label()};
+			links[l++] = triple;
+
+			if(triple[S] >= 0 && triple[P] >= 0 && triple[O] >= 0 && ! store.contains(triple[S], triple[P], triple[O]))
+				empty = true;
+
+			for(int pos : PERMUTATIONS[0])
+				if(triple[pos] < 0)
+				{
+					if(! keys.contains(triple[pos]))
+						keys.add(triple[pos]);
+					if(pos == P && ! relations.contains(triple[pos]))
+						relations.add(triple[pos]);
+				}
+		}
+
+		// * Choose the order of the variables
+		int n = keys.size();
+		vars = new int[n];
+		isRelation = new boolean[n];
+		for(int level = 0; level < n; level++)
+		{
+			int var = next(keys);
+			keys.remove((Integer) var);
+
+			vars[level] = var;
+			levels.put(var, level);
+			isRelation[level] = relations.contains(var);
+		}
+
+		linksAt = new int[n][];
+		cursors = new Cursor[n][];
+		for(int level = 0; level < n; level++)
+		{
+			List<Integer> at = new ArrayList<>();
+			for(int link = 0; link < m; link++)
+				if(contains(links[link], vars[level]))
+					at.add(link);
+
+			linksAt[level] = new int[at.size()];
+			cursors[level] = new Cursor[at.size()];
+			for(int i = 0; i < at.size(); i++)
+			{
+				linksAt[level][i] = at.get(i);
+				cursors[level][i] = new Cursor();
+			}
+		}
+
+		List<Integer> sorted = new ArrayList<>(levels.keySet());
+		Collections.sort(sorted, reverseOrder());
+		output = new int[n];
+		for(int i = 0; i < n; i++)
+			output[i] = levels.get(sorted.get(i));
+
+		values = new int[n];
+	}
+
+	/**
+	 * Finds all matches, and adds them to the given result.
+	 *
+	 * @param stopTime The value of System.nanoTime() after which to stop, or
+	 * 	null for no time limit.
+	 */
+	public void find(FindResult result, Long stopTime)
+	{
+		find(result, stopTime, 0, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Finds the matches in which the first variable (see roots()) has a value
+	 * in the range [lo, hi), and adds them to the given result. This allows
+	 * the search to be split into independent parts.
+	 */
+	public void find(FindResult result, Long stopTime, int lo, int hi)
+	{
+		this.result = result;
+		this.stopTime = stopTime;
+		this.lo = lo;
+		this.hi = hi;
+
+		if(! empty)
+			join(0);
+	}
+
+	/**
+	 * The number of variables in the pattern.
+	 */
+	public int numVariables()
+	{
+		return vars.length;
+	}
+
+	/**
+	 * The values that the first variable bound by the search can take, in
+	 * increasing order. Each of these is the root of a subtree of the search,
+	 * independent of the others.
+	 */
+	public int[] roots()
+	{
+		if(empty || vars.length == 0)
+			return new int[0];
+
+		result = new FindResult();
+		stopTime = null;
+		lo = 0;
+		hi = Integer.MAX_VALUE;
+
+		roots = new int[16];
+		numRoots = 0;
+		join(0);
+
+		int[] res = Arrays.copyOf(roots, numRoots);
+		roots = null;
+
+		return res;
+	}
+
+	private void join(int level)
+	{
+		if(level == vars.length)
+		{
+			if(distinct())
+				emit();
+			return;
+		}
+
+		if(! openAll(level))
+			return;
+
+		Cursor[] cursors = this.cursors[level];
+		int k = cursors.length;
+
+		// * Leapfrog: the cursor at p has the smallest value, the one before it
+		//   the largest
+		int p = 0;
+		int max = cursors[k - 1].key();
+
+		while(true)
+		{
+			Cursor cursor = cursors[p];
+
+			if(cursor.key() == max)
+			{
+				// * All cursors agree
+				if(level == 0 && max >= hi)
+					return;
+
+				if(level == 0 && roots != null)
+				{
+					if(numRoots == roots.length)
+						roots = Arrays.copyOf(roots, numRoots * 2);
+					roots[numRoots++] = max;
+				} else if(isRelation[level] || ! claimed(max, level))
+				{
+					values[level] = max;
+					result.expansions ++;
+					join(level + 1);
+				}
+
+				cursor.next();
+			} else
+			{
+				cursor.seek(max);
+			}
+
+			if(cursor.atEnd() || result.stopped())
+				return;
+
+			if(stopTime != null && (++steps & (CHECK_EVERY - 1)) == 0 && System.nanoTime() - stopTime > 0)
+			{
+				result.timedOut = true;
+				return;
+			}
+
+			max = cursor.key();
+			p = p + 1 == k ? 0 : p + 1;
+		}
+	}
+
+	/**
+	 * Returns an iterator over the matches, which runs the same search as
+	 * find(), but produces the matches one by one, as they are requested.
+	 */
+	public Find.MatchIterator iterator()
+	{
+		return new Matches();
+	}
+
+	/**
+	 * The join as a state machine: instead of recursing, we keep the current
+	 * level, and for each level the position p of the current cursor and the
+	 * largest current value max.
+	 */
+	private class Matches extends Find.MatchIterator
+	{
+		private int level = 0;
+		private int[] p = new int[vars.length], max = new int[vars.length];
+		// * Whether we've just returned to the current level from the one
+		//   below (rather than entered it from above)
+		private boolean resume = false;
+
+		public Matches()
+		{
+			if(empty)
+				level = -1;
+		}
+
+		@Override
+		int[] advance()
+		{
+			while(level >= 0 && ! timedOut)
+			{
+				if(level == vars.length)
+				{
+					level --;
+					resume = true;
+
+					if(distinct())
+					{
+						int[] match = new int[output.length];
+						for(int i = 0; i < output.length; i++)
+							match[i] = values[output[i]];
+
+						return match;
+					}
+
+					continue;
+				}
+
+				Cursor[] cursors = Leapfrog.this.cursors[level];
+				int k = cursors.length;
+
+				if(resume)
+				{
+					// * Move past the value we've just searched below
+					resume = false;
+
+					Cursor cursor = cursors[p[level]];
+					cursor.next();
+
+					if(cursor.atEnd())
+					{
+						up();
+						continue;
+					}
+
+					max[level] = cursor.key();
+					p[level] = p[level] + 1 == k ? 0 : p[level] + 1;
+				} else
+				{
+					if(! openAll(level))
+					{
+						up();
+						continue;
+					}
+
+					p[level] = 0;
+					max[level] = cursors[k - 1].key();
+				}
+
+				// * Leapfrog until the cursors agree on an allowed value
+				while(true)
+				{
+					Cursor cursor = cursors[p[level]];
+
+					if(cursor.key() == max[level])
+					{
+						if(isRelation[level] || ! claimed(max[level], level))
+						{
+							values[level] = max[level];
+							expansions ++;
+							level ++;
+							break;
+						}
+
+						cursor.next();
+					} else
+					{
+						cursor.seek(max[level]);
+					}
+
+					if(cursor.atEnd())
+					{
+						up();
+						break;
+					}
+
+					if((++steps & (CHECK_EVERY - 1)) == 0 && checkTime())
+						return null;
+
+					max[level] = cursor.key();
+					p[level] = p[level] + 1 == k ? 0 : p[level] + 1;
+				}
+			}
+
+			return null;
+		}
+
+		private void up()
+		{
+			level --;
+			resume = true;
+		}
+	}
+
+	/**
+	 * Opens and sorts the cursors for the given level.
+	 *
+	 * @return False if one of them has no values.
+	 */
+	private boolean openAll(int level)
+	{
+		Cursor[] cursors = this.cursors[level];
+		int k = cursors.length;
+
+		for(int i = 0; i < k; i++)
+		{
+			if(! open(cursors[i], linksAt[level][i], level))
+				return false;
+
+			if(level == 0 && lo > 0)
+			{
+				cursors[i].seek(lo);
+				if(cursors[i].atEnd())
+					return false;
+			}
+		}
+
+		// * Sort the cursors by their current value (any order will do
+		//   afterwards, since the cursors for a level are interchangeable)
+		for(int i = 1; i < k; i++)
+			for(int j = i; j > 0 && cursors[j - 1].key() > cursors[j].key(); j--)
+			{
+				Cursor c = cursors[j];
+				cursors[j] = cursors[j - 1];
+				cursors[j - 1] = c;
+			}
+
+		return true;
+	}
+
+	/**
+	 * Positions the cursor at the values that the variable at the given level
+	 * can take in the given link, given the values of the earlier variables.
+	 *
+	 * @return False if there are no such values.
+	 */
+	private boolean open(Cursor cursor, int link, int level)
+	{
+		int var = vars[level];
+		int[] triple = links[link];
+
+		int numBound = 0, numTargets = 0, target = -1;
+		for(int pos = 0; pos < 3; pos++)
+		{
+			int label = triple[pos];
+
+			if(label == var)
+			{
+				numTargets ++;
+				target = pos;
+				resolved[pos] = -1;
+			} else
+			{
+				resolved[pos] = value(label, level);
+				if(resolved[pos] >= 0)
+					numBound ++;
+			}
+		}
+
+		// * Look for a permutation that starts with the bound positions,
+		//   followed by the target
+		Order order = null;
+		if(numTargets == 1)
+			for(Order candidate : Order.values())
+			{
+				int[] perm = PERMUTATIONS[candidate.ordinal()];
+				if(perm[numBound] != target)
+					continue;
+
+				boolean match = true;
+				for(int i = 0; i < numBound; i++)
+					if(resolved[perm[i]] < 0)
+						match = false;
+
+				if(match)
+				{
+					order = candidate;
+					break;
+				}
+			}
+
+		if(order != null && numBound == 0)
+		{
+			cursor.lead(degrees(order));
+		} else if(order != null && ! store.touches(resolved[S], resolved[P], resolved[O]))
+		{
+			// * The delta has no triples for this link, so the base has the
+			//   same values
+			TripleStore base = store.base();
+			int[] perm = PERMUTATIONS[order.ordinal()];
+			IntArray offsets = base.offsets(order);
+
+			int lead = resolved[perm[0]];
+			if(lead >= offsets.length() - 1)
+				return false;
+
+			int from = offsets.get(lead), to = offsets.get(lead + 1);
+
+			if(numBound == 1)
+			{
+				cursor.range(base.second(order), from, to);
+			} else
+			{
+				IntArray second = base.second(order);
+				int key = resolved[perm[1]];
+
+				int f = second.lower(from, to, key);
+				cursor.range(base.third(order), f, second.upper(f, to, key));
+			}
+		} else
+		{
+			cursor.collect(triple, var);
+		}
+
+		return ! cursor.atEnd();
+	}
+
+	/**
+	 * The number of triples for each value in the first position of the given
+	 * permutation.
+	 */
+	private int[] degrees(Order order)
+	{
+		switch(order)
+		{
+			case SPO: return store.outDegrees();
+			case POS: return store.tagDegrees();
+			default:  return store.inDegrees();
+		}
+	}
+
+	/**
+	 * The value of the given label at the given level: the label itself for
+	 * a constant, its value for a variable bound before the given level,
+	 * and -1 otherwise.
+	 */
+	private int value(int label, int level)
+	{
+		if(label >= 0)
+			return label;
+
+		int l = levels.get(label);
+		return l < level ? values[l] : -1;
+	}
+
+	/**
+	 * Whether the value has already been taken by a node variable bound
+	 * before the given level.
+	 */
+	private boolean claimed(int value, int level)
+	{
+		for(int l = 0; l < level; l++)
+			if(! isRelation[l] && values[l] == value)
+				return true;
+
+		return false;
+	}
+
+	/**
+	 * Whether the current (complete) binding maps all links to distinct
+	 * triples.
+	 */
+	private boolean distinct()
+	{
+		int n = vars.length;
+		for(int link = 0; link < links.length; link++)
+		{
+			int s = value(links[link][S], n),
+			    p = value(links[link][P], n),
+			    o = value(links[link][O], n);
+
+			for(int j = 0; j < link; j++)
+				if(triples[3*j] == s && triples[3*j+1] == p && triples[3*j+2] == o)
+					return false;
+
+			triples[3*link] = s;
+			triples[3*link+1] = p;
+			triples[3*link+2] = o;
+		}
+
+		return true;
+	}
+
+	private void emit()
+	{
+		if(result.collect)
+		{
+			List<Integer> match = new ArrayList<>(output.length);
+			for(int level : output)
+				match.add(values[level]);
+
+			result.matches.add(match);
+		}
+
+		result.found();
+	}
+
+	/**
+	 * Chooses the next variable to bind from the remaining ones: the one with
+	 * the fewest expected values, preferring variables that share a link with
+	 * the variables chosen so far.
+	 */
+	private int next(List<Integer> remaining)
+	{
+		int best = remaining.get(0);
+		double bestCost = Double.POSITIVE_INFINITY;
+		boolean bestConnected = false;
+
+		for(int var : remaining)
+		{
+			boolean connected = false;
+			double cost = Double.POSITIVE_INFINITY;
+
+			for(int[] triple : links)
+				if(contains(triple, var))
+				{
+					double estimate = estimate(triple, var);
+					cost = Math.min(cost, estimate);
+
+					for(int label : triple)
+						if(label < 0 && levels.containsKey(label))
+							connected = true;
+				}
+
+			if((connected && ! bestConnected) || (connected == bestConnected && cost < bestCost))
+			{
+				best = var;
+				bestCost = cost;
+				bestConnected = connected;
+			}
+		}
+
+		return best;
+	}
+
+	/**
+	 * The expected number of values of the variable in the given link, given
+	 * values for the variables chosen so far, estimated from the graph
+	 * statistics.
+	 */
+	private double estimate(int[] triple, int var)
+	{
+		int s = Math.max(-1, triple[S]), p = Math.max(-1, triple[P]), o = Math.max(-1, triple[O]);
+		double count = store.count(s, p, o);
+
+		double divisor = 1.0;
+		boolean bound = false;
+		for(int pos = 0; pos < 3; pos++)
+		{
+			int label = triple[pos];
+			if(label < 0 && label != var && levels.containsKey(label))
+			{
+				divisor *= distinct(triple, pos, count);
+				bound = true;
+			}
+		}
+
+		if(bound)
+			return Math.max(1.0, count / divisor);
+
+		double min = count;
+		for(int pos = 0; pos < 3; pos++)
+			if(triple[pos] == var)
+				min = Math.min(min, distinct(triple, pos, count));
+
+		return min;
+	}
+
+	/**
+	 * The (estimated) number of distinct values in the given position among
+	 * the given number of triples matching the link's constants.
+	 */
+	private double distinct(int[] triple, int pos, double count)
+	{
+		int p = triple[P];
+
+		if(pos == S && p >= 0)
+			return Math.max(1, store.numSubjects(p));
+		if(pos == O && p >= 0)
+			return Math.max(1, store.numObjects(p));
+		if(pos == P)
+			return Math.max(1, Math.min(count, store.numTags()));
+
+		return Math.max(1.0, count);
+	}
+
+	private static boolean contains(int[] triple, int label)
+	{
+		return triple[S] == label || triple[P] == label || triple[O] == label;
+	}
+
+	/**
+	 * An iterator over a sorted list of values (possibly with repeats, which
+	 * are skipped), that can seek forward to a given value.
+	 *
+	 * The list is either a range of a column in one of the permutations, the
+	 * values with a non-zero degree in one of the degree arrays, or a list of
+	 * values collected from the store.
+	 */
+	private class Cursor implements IntTripleConsumer
+	{
+		private IntArray column;
+		private int[] degrees;
+		private boolean lead;
+		private int pos, end;
+
+		// * Collected values, and the variable being collected for
+		private int[] buffer = new int[16];
+		private int size;
+		private int[] triple;
+		private int var;
+
+		public void range(IntArray column, int from, int to)
+		{
+			this.lead = false;
+			this.column = column;
+			this.pos = from;
+			this.end = to;
+		}
+
+		public void lead(int[] degrees)
+		{
+			this.lead = true;
+			this.degrees = degrees;
+			this.end = degrees.length;
+			skip(0);
+		}
+
+		/**
+		 * Collects the values of the variable from all triples matching the
+		 * link (with the bound variables filled in by resolved).
+		 */
+		public void collect(int[] triple, int var)
+		{
+			this.triple = triple;
+			this.var = var;
+
+			size = 0;
+			store.find(resolved[S], resolved[P], resolved[O], this);
+			Arrays.sort(buffer, 0, size);
+
+			range(IntArray.wrap(buffer), 0, size);
+		}
+
+		@Override
+		public void accept(int subject, int predicate, int object)
+		{
+			// * If the variable occurs more than once, the triple should have
+			//   the same value in each of its positions
+			int value = -1;
+			for(int pos = 0; pos < 3; pos++)
+				if(triple[pos] == var)
+				{
+					int v = pos == S ? subject : pos == P ? predicate : object;
+					if(value >= 0 && v != value)
+						return;
+					value = v;
+				}
+
+			if(size == buffer.length)
+				buffer = Arrays.copyOf(buffer, size * 2);
+			buffer[size++] = value;
+		}
+
+		public boolean atEnd()
+		{
+			return pos >= end;
+		}
+
+		public int key()
+		{
+			return lead ? pos : column.get(pos);
+		}
+
+		/**
+		 * Moves to the next distinct value.
+		 */
+		public void next()
+		{
+			if(lead)
+				skip(pos + 1);
+			else
+				pos = gallop(column, pos, end, column.get(pos) + 1);
+		}
+
+		/**
+		 * Moves to the first value greater than or equal to the given one.
+		 */
+		public void seek(int value)
+		{
+			if(lead)
+				skip(Math.max(pos, value));
+			else
+				pos = gallop(column, pos, end, value);
+		}
+
+		private void skip(int from)
+		{
+			pos = from;
+			while(pos < end && degrees[pos] == 0)
+				pos++;
+		}
+	}
+
+	/**
+	 * The first index in [from, to) for which array[index] >= key (or to if
+	 * there is no such index), searching forward from the start of the range
+	 * in exponentially increasing steps. This is faster than a binary search
+	 * over the whole range when the result is near the start.
+	 */
+	private static int gallop(IntArray array, int from, int to, int key)
+	{
+		if(from >= to || array.get(from) >= key)
+			return from;
+
+		// * array[from] < key
+		int step = 1;
+		while(from + step < to && array.get(from + step) < key)
+		{
+			from += step;
+			step <<= 1;
+		}
+
+		return array.lower(from + 1, Math.min(to, from + step), key);
+	}
+}
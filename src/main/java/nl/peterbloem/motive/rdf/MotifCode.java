@@ -8,11 +8,13 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.ToDoubleFunction;
 
 import org.nodes.DTGraph;
 import org.nodes.DTLink;
@@ -64,11 +66,51 @@ public class MotifCode
 		
 		// System.out.println("Summed degree sequence: " + toc());
 		
+		return codelength(
+				degrees.get(0).size(), m, degrees.get(2).size(), 
+				triples -> template(degrees, triples, fastPY), 
+				pattern, values, fastPY);
+	}
+	
+	/**
+	 * Uses the degrees cached by the graph. These are read, not copied, for 
+	 * every pattern; the degrees of the pattern's triples are subtracted on 
+	 * read. 
+	 */
+	public static double codelength(
+			KGraph graph, 
+			DTGraph<Integer, Integer> pattern, List<List<Integer>> values)
+	{
+		return codelength(graph, pattern, values, false);
+	}
+	
+	public static double codelength(
+			KGraph graph, 
+			DTGraph<Integer, Integer> pattern, List<List<Integer>> values, boolean fastPY)
+	{
+		KGraph snapshot = graph.snapshot();
+		List<List<Integer>> degrees = KGraph.degrees(snapshot);
+		
+		return codelength(
+				snapshot.inDegrees().length, snapshot.numLinks(), snapshot.tagDegrees().length, 
+				triples -> template(degrees, triples, fastPY), 
+				pattern, values, fastPY);
+	}
+	
+	/**
+	 * @param n The number of nodes in the graph
+	 * @param m The number of links in the graph
+	 * @param r The number of relations in the graph
+	 * @param template Computes the codelength of the template, given the 
+	 * 	triples described by the instances 
+	 */
+	private static double codelength(
+			int n, long m, int r, ToDoubleFunction<List<Triple>> template,
+			DTGraph<Integer, Integer> pattern, List<List<Integer>> values, boolean fastPY)
+	{
 		FrequencyModel<String> fm = new FrequencyModel<String>();
 				
 		// * Graph dimensions
-		int n = degrees.get(0).size(), r = degrees.get(2).size();
-		
 		fm.add("dimensions", 
 				prefix(n) + // - nr. of nodes
 				prefix(m) + // - nr. of links
@@ -95,37 +137,13 @@ public class MotifCode
 		//System.out.println("Computed pattern size: " + toc());
 		
 		// * The template		
-		// - copy the degree vector 
-		// degrees = asList(new ArrayList<>(degrees.get(0)), new ArrayList<>(degrees.get(1)), new ArrayList<>(degrees.get(2)));
-		List<SparseList> degsub = asList(
-				new SparseList(degrees.get(0).size()), 
-				new SparseList(degrees.get(1).size()), 
-				new SparseList(degrees.get(2).size()));
-				
 		// - collect the triples described by the instances
 		List<Triple> triples = Utils.allTriples(pattern, values);
 		
 		//System.out.println("Collected triples: " + toc());
 		// System.out.println(values);
-		for(Triple triple : triples)
-		{
-			int s = triple.subject(), p = triple.predicate(), o = triple.object();
-			
-			degsub.get(0).inc(o);
-			degsub.get(1).inc(s);
-			degsub.get(2).inc(p);
-		}
-		
-		// System.out.println(degrees);
-		// System.out.println(degsub);
-		// System.out.println("Computed new degree sequence: " + toc());
-		
-		List<List<Integer>> degTemplate = asList(
-				minus(degrees.get(0), degsub.get(0)),
-				minus(degrees.get(1), degsub.get(1)),
-				minus(degrees.get(2), degsub.get(2)));
 			
-		fm.add("template", EdgeListModel.codelength(degTemplate, fastPY ? Prior.COMPLETE_FAST : Prior.COMPLETE));
+		fm.add("template", template.applyAsDouble(triples));
 		
 		// fm.add("labels", matchesCodelength(values, pattern, fastPY));
 		fm.add("labels", matchesCodelengthAlt(values, pattern, n, r, fastPY));
@@ -268,6 +286,36 @@ public class MotifCode
 		return degrees;
 	}
 	
+	/**
+	 * The codelength of the template: the graph degrees, minus the degrees 
+	 * of the given triples.
+	 */
+	private static double template(List<List<Integer>> degrees, List<Triple> triples, boolean fastPY)
+	{
+		// - the graph degrees are not copied: the degrees of the triples are 
+		//   counted separately and subtracted on read
+		List<SparseList> degsub = asList(
+				new SparseList(degrees.get(0).size()), 
+				new SparseList(degrees.get(1).size()), 
+				new SparseList(degrees.get(2).size()));
+		
+		for(Triple triple : triples)
+		{
+			int s = triple.subject(), p = triple.predicate(), o = triple.object();
+			
+			degsub.get(0).inc(o);
+			degsub.get(1).inc(s);
+			degsub.get(2).inc(p);
+		}
+		
+		List<List<Integer>> degTemplate = asList(
+				minus(degrees.get(0), degsub.get(0)),
+				minus(degrees.get(1), degsub.get(1)),
+				minus(degrees.get(2), degsub.get(2)));
+			
+		return EdgeListModel.codelength(degTemplate, fastPY ? Prior.COMPLETE_FAST : Prior.COMPLETE);
+	}
+	
 	private static List<Integer> minus(final List<Integer> one, final SparseList two)
 	{
 		assert(one.size() == two.size());
@@ -435,6 +483,39 @@ public class MotifCode
 		return result;
 	}
 	
+	/**
+	 * Prunes the matches as they are produced by the given iterator: a match is
+	 * kept only if none of its triples occur in a match kept earlier. Only 
+	 * the kept matches are stored, so the full list of matches is never held 
+	 * in memory.
+	 * 
+	 * The result is the same as that of prune() on the list of all matches, in 
+	 * the same order.
+	 */
+	public static List<List<Integer>> prune(DTGraph<Integer, Integer> pattern, Iterator<int[]> matches)
+	{
+		List<List<Integer>> result = new ArrayList<>();
+		Set<Triple> seen = new HashSet<>();
+		
+		while(matches.hasNext())
+		{
+			int[] instance = matches.next();
+			List<Triple> triples = Utils.triples(pattern, instance);
+			
+			if(! contains(seen, triples))
+			{
+				List<Integer> values = new ArrayList<>(instance.length);
+				for(int value : instance)
+					values.add(value);
+				
+				result.add(values);
+				seen.addAll(triples);
+			}
+		}
+		
+		return result;
+	}
+	
 	/**
 	 * Sorts a list of matches. We sort first by the variable for which the values 
 	 * have the highest entropy. Ensuring that these values are sorted will save 
@@ -519,20 +600,46 @@ public class MotifCode
 			List<List<Integer>> degrees, 
 			List<DTGraph<Integer, Integer>> patterns, List<List<List<Integer>>> values, boolean fastPY)
 	{
-		assert(patterns.size() == values.size());
-		
 		// * number of links in the graph
 		long m = 0;
 		for(int degree : degrees.get(0))
 			m += degree;
 		
+		return codelength(
+				degrees.get(0).size(), m, degrees.get(2).size(), 
+				triples -> template(degrees, triples, fastPY), 
+				patterns, values, fastPY);
+	}
+	
+	/**
+	 * Motifset version of the code, using the degrees cached by the graph.
+	 */
+	public static double codelength(
+			KGraph graph, 
+			List<DTGraph<Integer, Integer>> patterns, List<List<List<Integer>>> values, boolean fastPY)
+	{
+		KGraph snapshot = graph.snapshot();
+		List<List<Integer>> degrees = KGraph.degrees(snapshot);
+		
+		return codelength(
+				snapshot.inDegrees().length, snapshot.numLinks(), snapshot.tagDegrees().length, 
+				triples -> template(degrees, triples, fastPY), 
+				patterns, values, fastPY);
+	}
+	
+	private static double codelength(
+			int numNodes, long m, int numRelations, ToDoubleFunction<List<Triple>> template,
+			List<DTGraph<Integer, Integer>> patterns, List<List<List<Integer>>> values, boolean fastPY)
+	{
+		assert(patterns.size() == values.size());
+		
 		FrequencyModel<String> fm = new FrequencyModel<String>();
 				
 		// * Graph dimensions
 		fm.add("dimensions", 
-				prefix(degrees.get(0).size()) + // - nr. of nodes
-				prefix(m) +                     // - nr. of links
-				prefix(degrees.get(2).size())); // - nr. of relations
+				prefix(numNodes) +     // - nr. of nodes
+				prefix(m) +            // - nr. of links
+				prefix(numRelations)); // - nr. of relations
 	
 		// * Pattern (structure)
 		double patternBits = 0.0;
@@ -559,28 +666,7 @@ public class MotifCode
 		
 		assert(triples.size() == new HashSet<>(triples).size());
 		
-		// - vectors to subtract from the degree vector
-		List<SparseList> degsub = asList(
-				new SparseList(degrees.get(0).size()), 
-				new SparseList(degrees.get(1).size()), 
-				new SparseList(degrees.get(2).size()));
-		
-    	for(Triple triple : triples)
-    	{
-    			int s = triple.subject(), p = triple.predicate(), o = triple.object();
-    			
-    			degsub.get(0).inc(o);
-    			degsub.get(1).inc(s);
-    			degsub.get(2).inc(p);
-    	}
-    		
-    		
-    	degrees = asList(
-    		minus(degrees.get(0), degsub.get(0)),
-    		minus(degrees.get(1), degsub.get(1)),
-    		minus(degrees.get(2), degsub.get(2)));
-		
-		fm.add("template", EdgeListModel.codelength(degrees, fastPY ? Prior.COMPLETE_FAST : Prior.COMPLETE));
+		fm.add("template", template.applyAsDouble(triples));
 		
 		// * The labels
 		int c = 0;
@@ -9,8 +9,10 @@ import java.util.Comparator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.nodes.DTGraph;
 import org.rdfhdt.hdt.iterator.SequentialSearchIteratorTripleID;
@@ -27,7 +29,8 @@ public class MultiParallel
 	private int numPos = 0;
 	private Double nullBits = null;
 	
-	private int itsFinished = 0;
+	// * Iterations finished, over all threads
+	private AtomicInteger itsFinished = new AtomicInteger();
 	private int numThreads; 
 	private int maxTime; 
 	private double alpha;
@@ -70,7 +73,7 @@ public class MultiParallel
 	{
 		this.nullBits = nullBits;
 		
-		this.graph = graph;
+		this.graph = graph.snapshot();
 		this.alpha = alpha;
 		this.maxTime = maxTime;
 		this.perThread = totalIterations/numThreads;
@@ -79,21 +82,24 @@ public class MultiParallel
 		Global.info("Using %d separate processes.", numThreads);
 		
 		ExecutorService exec = Executors.newFixedThreadPool(numThreads);
+		List<CompletableFuture<Void>> runs = new ArrayList<>(numThreads);
 		for(int t : series(numThreads)) 
-			exec.execute(new MultiRun());
+			runs.add(CompletableFuture.runAsync(new MultiRun(), exec));
 
 		exec.shutdown();
 		
-		while(! exec.isTerminated());
+		// - wait for the threads to finish (this throws an exception if one of 
+		//   them failed)
+		CompletableFuture.allOf(runs.toArray(new CompletableFuture<?>[runs.size()])).join();
 		
 		if(nullBits != null)
 			Global.info("Encountered %d positive patterns.", numPos);
 	}
 	
-	private static int TOTAL = 0;
+	private static AtomicInteger TOTAL = new AtomicInteger();
 	private class MultiRun implements Runnable
 	{
-		private int id = TOTAL++;
+		private int id = TOTAL.getAndIncrement();
 		
 		@Override
 		public void run()
@@ -107,8 +113,9 @@ public class MultiParallel
 			{
 				search.iterate();
 				
-				if(++ itsFinished % 500 == 0)
-					Global.info("thread %d: %d iterations finished.", id, itsFinished);
+				int finished = itsFinished.incrementAndGet();
+				if(finished % 500 == 0)
+					Global.info("thread %d: %d iterations finished.", id, finished);
 			}
 
 			Global.info("Thread finished searching");
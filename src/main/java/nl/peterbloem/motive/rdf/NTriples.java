@@ -0,0 +1,596 @@
+package nl.peterbloem.motive.rdf;
+
+import static java.lang.String.format;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import nl.peterbloem.kit.Global;
+
+/**
+ * A streaming parser for N-Triples files, which reads the triples directly
+ * into the integer arrays for a TripleStore.
+ *
+ * The input is read in chunks of whole lines, which are parsed in parallel.
+ * Each chunk is parsed into integer triples over its own, local dictionary of
+ * terms. The chunks are merged into the global dictionary in the order in
+ * which they were read, so that the result doesn't depend on the number of
+ * threads: the nodes and relations are numbered in order of first occurrence
+ * in the file.
+ *
+ * The parser creates no objects per triple: the terms are hashed and compared
+ * as bytes. Strings are only created for the labels, and only if they are
+ * asked for.
+ *
+ * Subjects and objects (including literals) share one dictionary, and become
+ * the nodes of the graph. The terms are identified by their N-Triples
+ * representation (after removing the angle brackets from IRIs), so escape
+ * sequences are not decoded, and two literals are only the same node if they
+ * have the same language tag or datatype.
+ *
+ * @author Peter
+ *
+ */
+class NTriples
+{
+	// * The default number of bytes per chunk
+	public static final int CHUNK_SIZE = 1 << 22;
+
+	// * How often to report the progress (in triples)
+	private static final int REPORT_EVERY = 10000000;
+
+	/**
+	 * Reads the given N-Triples stream, with one thread per processor.
+	 *
+	 * @param nodes If not null, filled with the labels of the nodes, by index.
+	 * @param relations If not null, filled with the labels of the relations, by
+	 * 	index.
+	 */
+	public static KGraph load(InputStream in, List<String> nodes, List<String> relations)
+		throws IOException
+	{
+		return load(in, nodes, relations, Runtime.getRuntime().availableProcessors(), CHUNK_SIZE);
+	}
+
+	/**
+	 * @param numThreads The number of threads used to parse the chunks.
+	 * @param chunkSize The number of bytes to read per chunk (the chunks may be
+	 * 	larger if they contain a line that is longer than this).
+	 */
+	public static KGraph load(
+			InputStream in, List<String> nodes, List<String> relations,
+			int numThreads, int chunkSize)
+		throws IOException
+	{
+		long t0 = System.nanoTime();
+
+		Terms nodeTerms = new Terms(1 << 24), relationTerms = new Terms(1 << 16);
+		Triples triples = new Triples(1024);
+
+		ExecutorService exec = Executors.newFixedThreadPool(numThreads);
+		Deque<Future<Chunk>> pending = new ArrayDeque<>();
+
+		try {
+			byte[] rest = new byte[0];
+			long offset = 0;
+			long nextReport = REPORT_EVERY;
+
+			while(true)
+			{
+				// * Read the next chunk, after what was left over from the last
+				byte[] buffer = Arrays.copyOf(rest, Math.max(chunkSize, rest.length * 2));
+				int length = rest.length;
+				boolean eof = false;
+
+				while(length < buffer.length && !eof)
+				{
+					int read = in.read(buffer, length, buffer.length - length);
+					if(read < 0)
+						eof = true;
+					else
+						length += read;
+				}
+
+				// * Cut the chunk after the last complete line
+				int cut = length;
+				if(!eof)
+					while(cut > 0 && buffer[cut - 1] != '\n')
+						cut --;
+
+				if(cut == 0 && !eof)
+				{
+					// - a single line longer than the buffer
+					rest = buffer;
+					continue;
+				}
+
+				rest = Arrays.copyOfRange(buffer, cut, length);
+
+				final byte[] chunk = buffer;
+				final int chunkLength = cut;
+				final long chunkOffset = offset;
+				pending.add(exec.submit(() -> parse(chunk, chunkLength, chunkOffset)));
+				offset += cut;
+
+				// * Merge the parsed chunks, while keeping the number of chunks
+				//   in memory bounded
+				while(!pending.isEmpty() && (pending.size() > 2 * numThreads || pending.peek().isDone()))
+					merge(get(pending.poll()), nodeTerms, relationTerms, triples);
+
+				if(triples.size() >= nextReport)
+				{
+					Global.info("%d triples read (%.0f triples per second).", triples.size(), rate(triples.size(), t0));
+					nextReport += REPORT_EVERY;
+				}
+
+				if(eof)
+					break;
+			}
+
+			while(!pending.isEmpty())
+				merge(get(pending.poll()), nodeTerms, relationTerms, triples);
+
+		} finally
+		{
+			exec.shutdownNow();
+		}
+
+		Global.info(
+				"Parsed %d triples (%d nodes, %d relations) in %.1f seconds (%.0f triples per second).",
+				triples.size(), nodeTerms.size(), relationTerms.size(),
+				(System.nanoTime() - t0) * 1e-9, rate(triples.size(), t0));
+
+		KGraph graph = new KGraph(new TripleStore(triples.s, triples.p, triples.o, triples.size()));
+
+		if(nodes != null)
+			nodeTerms.labels(nodes);
+		if(relations != null)
+			relationTerms.labels(relations);
+
+		return graph;
+	}
+
+	private static double rate(long numTriples, long t0)
+	{
+		return numTriples / ((System.nanoTime() - t0) * 1e-9);
+	}
+
+	private static Chunk get(Future<Chunk> future)
+		throws IOException
+	{
+		try {
+			return future.get();
+		} catch (ExecutionException e)
+		{
+			if(e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new IOException(e.getCause());
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while loading triples.", e);
+		}
+	}
+
+	/**
+	 * Adds the triples of a parsed chunk to the result, translating the local
+	 * term IDs of the chunk to global ones.
+	 */
+	private static void merge(Chunk chunk, Terms nodes, Terms relations, Triples triples)
+	{
+		int[] nodeMap = new int[chunk.nodes.size()];
+		for(int id = 0; id < nodeMap.length; id++)
+			nodeMap[id] = nodes.add(chunk.nodes, id);
+
+		int[] relationMap = new int[chunk.relations.size()];
+		for(int id = 0; id < relationMap.length; id++)
+			relationMap[id] = relations.add(chunk.relations, id);
+
+		Triples local = chunk.triples;
+		for(int i = 0; i < local.size(); i++)
+			triples.add(nodeMap[local.s[i]], relationMap[local.p[i]], nodeMap[local.o[i]]);
+	}
+
+	/**
+	 * Parses the first {@code length} bytes of the given buffer, which should
+	 * consist of whole lines.
+	 *
+	 * @param offset The position of the buffer in the input, for error messages.
+	 */
+	static Chunk parse(byte[] buffer, int length, long offset)
+	{
+		Chunk chunk = new Chunk(length);
+
+		int i = 0;
+		while(i < length)
+		{
+			i = skipSpace(buffer, i, length);
+
+			// - empty line or comment
+			if(i == length || buffer[i] == '\n' || buffer[i] == '\r' || buffer[i] == '#')
+			{
+				i = nextLine(buffer, i, length);
+				continue;
+			}
+
+			int from = i;
+			i = term(buffer, i, length, offset);
+			if(buffer[from] == '"')
+				throw error("Literal in subject position", from, offset);
+			int s = chunk.nodes.add(buffer, from, i);
+
+			from = i = skipSpace(buffer, i, length);
+			i = term(buffer, i, length, offset);
+			if(buffer[from] != '<')
+				throw error("Predicate is not an IRI", from, offset);
+			int p = chunk.relations.add(buffer, from, i);
+
+			from = i = skipSpace(buffer, i, length);
+			i = term(buffer, i, length, offset);
+			int o = chunk.nodes.add(buffer, from, i);
+
+			i = skipSpace(buffer, i, length);
+			if(i == length || buffer[i] != '.')
+				throw error("Expected '.' at the end of the triple", i, offset);
+			i = skipSpace(buffer, i + 1, length);
+			if(i < length && buffer[i] != '\n' && buffer[i] != '\r' && buffer[i] != '#')
+				throw error("Unexpected characters after the end of the triple", i, offset);
+
+			i = nextLine(buffer, i, length);
+
+			chunk.triples.add(s, p, o);
+		}
+
+		return chunk;
+	}
+
+	/**
+	 * Returns the end (exclusive) of the term that starts at position i.
+	 */
+	private static int term(byte[] buffer, int i, int length, long offset)
+	{
+		if(i == length)
+			throw error("Unexpected end of line", i, offset);
+
+		int start = i;
+		switch(buffer[i])
+		{
+			case '<':
+				return iri(buffer, i, length, offset);
+
+			case '_':
+				if(i + 1 == length || buffer[i + 1] != ':')
+					throw error("Malformed blank node", i, offset);
+
+				i += 2;
+				while(i < length && !isSpace(buffer[i]) && !isEnd(buffer[i]) && buffer[i] != '<' && buffer[i] != '"')
+					i ++;
+
+				// - a blank node label can't end with a dot: it belongs to the triple
+				while(i > start + 2 && buffer[i - 1] == '.')
+					i --;
+
+				if(i == start + 2)
+					throw error("Empty blank node label", start, offset);
+
+				return i;
+
+			case '"':
+				i ++;
+				while(i < length && buffer[i] != '"')
+				{
+					if(isEnd(buffer[i]))
+						throw error("Unterminated literal", start, offset);
+					if(buffer[i] == '\\' && (i + 1 == length || isEnd(buffer[i + 1])))
+						throw error("Unterminated literal", start, offset);
+					if(buffer[i] == '\\')
+						i ++;
+					i ++;
+				}
+
+				if(i >= length)
+					throw error("Unterminated literal", start, offset);
+				i ++;
+
+				if(i < length && buffer[i] == '@')
+				{
+					i ++;
+					while(i < length && (isLetterOrDigit(buffer[i]) || buffer[i] == '-'))
+						i ++;
+				} else if(i + 1 < length && buffer[i] == '^' && buffer[i + 1] == '^')
+				{
+					i = iri(buffer, i + 2, length, offset);
+				}
+
+				return i;
+
+			default:
+				throw error("Unexpected character '" + (char) buffer[i] + "'", i, offset);
+		}
+	}
+
+	private static int iri(byte[] buffer, int i, int length, long offset)
+	{
+		if(i == length || buffer[i] != '<')
+			throw error("Expected an IRI", i, offset);
+
+		int start = i;
+		while(i < length && buffer[i] != '>')
+		{
+			if(isEnd(buffer[i]))
+				throw error("Unterminated IRI", start, offset);
+			i ++;
+		}
+
+		if(i == length)
+			throw error("Unterminated IRI", start, offset);
+
+		return i + 1;
+	}
+
+	private static int skipSpace(byte[] buffer, int i, int length)
+	{
+		while(i < length && isSpace(buffer[i]))
+			i ++;
+		return i;
+	}
+
+	private static int nextLine(byte[] buffer, int i, int length)
+	{
+		while(i < length && buffer[i] != '\n')
+			i ++;
+		return i + 1;
+	}
+
+	private static boolean isSpace(byte b)
+	{
+		return b == ' ' || b == '\t';
+	}
+
+	private static boolean isEnd(byte b)
+	{
+		return b == '\n' || b == '\r';
+	}
+
+	private static boolean isLetterOrDigit(byte b)
+	{
+		return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9');
+	}
+
+	private static IllegalArgumentException error(String message, int i, long offset)
+	{
+		return new IllegalArgumentException(format("Malformed N-Triples at byte %d: %s.", offset + i, message));
+	}
+
+	/**
+	 * The triples and terms of one chunk of the input.
+	 */
+	static class Chunk
+	{
+		Terms nodes, relations;
+		Triples triples;
+
+		Chunk(int length)
+		{
+			// - the terms of a chunk can never take up more than the chunk itself
+			nodes = new Terms(Math.max(length, 1));
+			relations = new Terms(Math.min(Math.max(length, 1), 1 << 16));
+			triples = new Triples(Math.max(length / 128, 16));
+		}
+	}
+
+	/**
+	 * A growable list of integer triples, stored as three parallel arrays.
+	 */
+	static class Triples
+	{
+		int[] s, p, o;
+		private int size = 0;
+
+		Triples(int capacity)
+		{
+			s = new int[capacity];
+			p = new int[capacity];
+			o = new int[capacity];
+		}
+
+		void add(int subject, int predicate, int object)
+		{
+			if(size == s.length)
+			{
+				if(size == Integer.MAX_VALUE - 8)
+					throw new IllegalArgumentException("Graph has too many triples ("+size+").");
+
+				int capacity = (int) Math.min(size + (size >> 1) + 1L, Integer.MAX_VALUE - 8);
+				s = Arrays.copyOf(s, capacity);
+				p = Arrays.copyOf(p, capacity);
+				o = Arrays.copyOf(o, capacity);
+			}
+
+			s[size] = subject;
+			p[size] = predicate;
+			o[size] = object;
+			size ++;
+		}
+
+		int size()
+		{
+			return size;
+		}
+	}
+
+	/**
+	 * A dictionary of terms, which assigns consecutive integer IDs to byte
+	 * strings.
+	 *
+	 * The bytes of the terms are stored in pages, and looked up through an
+	 * open-addressing hash table, so that a term can be looked up without
+	 * creating any objects.
+	 */
+	static class Terms
+	{
+		private int pageSize;
+		private List<byte[]> pages = new ArrayList<>();
+		private byte[] page;
+		private int pagePosition;
+
+		// * For each term: its page, position in the page, length and hash
+		private int[] termPages = new int[16], positions = new int[16],
+				lengths = new int[16], hashes = new int[16];
+		private int size = 0;
+
+		// * The hash table, containing ID + 1 for each term (0 for empty slots)
+		private int[] table = new int[32];
+
+		Terms(int pageSize)
+		{
+			this.pageSize = pageSize;
+		}
+
+		int size()
+		{
+			return size;
+		}
+
+		/**
+		 * Returns the ID of the given term, adding it if necessary.
+		 */
+		int add(byte[] buffer, int from, int to)
+		{
+			int hash = hash(buffer, from, to);
+
+			int mask = table.length - 1;
+			int slot = hash & mask;
+			while(table[slot] != 0)
+			{
+				int id = table[slot] - 1;
+				if(hashes[id] == hash && equals(id, buffer, from, to))
+					return id;
+
+				slot = (slot + 1) & mask;
+			}
+
+			// * A new term
+			int id = size ++;
+			if(id == termPages.length)
+			{
+				int capacity = termPages.length * 2;
+				termPages = Arrays.copyOf(termPages, capacity);
+				positions = Arrays.copyOf(positions, capacity);
+				lengths = Arrays.copyOf(lengths, capacity);
+				hashes = Arrays.copyOf(hashes, capacity);
+			}
+
+			int length = to - from;
+			if(page == null || pagePosition + length > page.length)
+			{
+				page = new byte[Math.max(pageSize, length)];
+				pages.add(page);
+				pagePosition = 0;
+			}
+
+			System.arraycopy(buffer, from, page, pagePosition, length);
+			termPages[id] = pages.size() - 1;
+			positions[id] = pagePosition;
+			lengths[id] = length;
+			hashes[id] = hash;
+			pagePosition += length;
+
+			table[slot] = id + 1;
+			if(size * 2 > table.length)
+				rehash();
+
+			return id;
+		}
+
+		/**
+		 * Returns the ID of the given term from another dictionary, adding it
+		 * if necessary.
+		 */
+		int add(Terms other, int id)
+		{
+			int from = other.positions[id];
+			return add(other.pages.get(other.termPages[id]), from, from + other.lengths[id]);
+		}
+
+		/**
+		 * The label of the given term. The angle brackets are removed from IRIs.
+		 */
+		String label(int id)
+		{
+			byte[] page = pages.get(termPages[id]);
+			int from = positions[id], length = lengths[id];
+
+			if(page[from] == '<')
+				return new String(page, from + 1, length - 2, StandardCharsets.UTF_8);
+
+			return new String(page, from, length, StandardCharsets.UTF_8);
+		}
+
+		/**
+		 * Replaces the contents of the given list by the labels of the terms,
+		 * by ID.
+		 */
+		void labels(List<String> labels)
+		{
+			labels.clear();
+			for(int id = 0; id < size; id++)
+				labels.add(label(id));
+
+			if(labels instanceof LabelDictionary)
+				((LabelDictionary) labels).trim();
+		}
+
+		private boolean equals(int id, byte[] buffer, int from, int to)
+		{
+			if(lengths[id] != to - from)
+				return false;
+
+			byte[] page = pages.get(termPages[id]);
+			int position = positions[id];
+			for(int i = from; i < to; i++)
+				if(page[position++] != buffer[i])
+					return false;
+
+			return true;
+		}
+
+		private void rehash()
+		{
+			table = new int[table.length * 2];
+			int mask = table.length - 1;
+
+			for(int id = 0; id < size; id++)
+			{
+				int slot = hashes[id] & mask;
+				while(table[slot] != 0)
+					slot = (slot + 1) & mask;
+				table[slot] = id + 1;
+			}
+		}
+
+		private static int hash(byte[] buffer, int from, int to)
+		{
+			// * FNV-1a, with a final mix so that the low bits can be used
+			int hash = 0x811c9dc5;
+			for(int i = from; i < to; i++)
+				hash = (hash ^ buffer[i]) * 0x01000193;
+
+			hash ^= hash >>> 16;
+			hash *= 0x85ebca6b;
+			hash ^= hash >>> 13;
+
+			return hash;
+		}
+	}
+}
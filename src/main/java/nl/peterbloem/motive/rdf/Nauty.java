@@ -58,6 +58,37 @@ public class Nauty
 	}
 	
 	
+	/**
+	 * Computes the canonical form of the given pattern, and records for each
+	 * variable (node or tag) of the pattern, which variable it becomes in the 
+	 * canonical form. 
+	 * 
+	 * Unlike canonical(pattern, values), this works for both distinct and 
+	 * non-distinct variable numbering. Note that if the numbering is not 
+	 * distinct, a node and a tag may both have the same variable, so the map 
+	 * is only unambiguous for distinct numbering.
+	 * 
+	 * @param variables A map which will be filled with the variables of the 
+	 *  pattern as keys, and the corresponding variables of the canonical form 
+	 *  as values.
+	 */
+	public static DTGraph<Integer, Integer> canonical(DTGraph<Integer, Integer> pattern, boolean distinct, Map<Integer, Integer> variables)
+	{
+		Nauty nauty = new Nauty(pattern, distinct);
+		
+		Map<Integer, Integer> newLabels = new HashMap<>();
+		Map<Integer, Integer> newTags = new HashMap<>();
+		
+		nauty.relabel(nauty.maxPartition, newLabels, newTags);
+		
+		for(Map<Integer, Integer> map : Arrays.asList(newLabels, newTags))
+			for(Map.Entry<Integer, Integer> entry : map.entrySet())
+				if(entry.getKey() < 0)
+					variables.put(entry.getKey(), entry.getValue());
+		
+		return nauty.canonical;
+	}
+	
 	public static DTGraph<Integer, Integer> canonical(DTGraph<Integer, Integer> pattern, List<Integer> values)
 	{
 		Nauty nauty = new Nauty(pattern);
@@ -401,10 +432,12 @@ public class Nauty
 		for(Triple t : triples)
 		{
 			DTNode<Integer, Integer> subject = out.node(t.subject);
-			DTNode<Integer, Integer> object = out.node(t.object);
-			
 			if(subject == null)
 				subject = out.add(t.subject);
+			
+			// - look the object up after adding the subject, in case this is a 
+			//   self-loop
+			DTNode<Integer, Integer> object = out.node(t.object);
 			if(object == null)
 				object = out.add(t.object);
 			
@@ -414,6 +447,41 @@ public class Nauty
 		return out;
 	}
 	
+	/**
+	 * Computes the labels that the nodes and tags get in the ordering given 
+	 * by the (discrete) partition: constants keep their value, and variables 
+	 * are numbered in the order of the partition.
+	 */
+	private void relabel(Partition partition, Map<Integer, Integer> newLabels, Map<Integer, Integer> newTags)
+	{
+		int negLabel = -1, negTag = -1; // next available negative label
+		
+		if(distinctVars)
+			negTag = - Utils.numVarLabels(pattern) - 1;
+		
+		for(List<Integer> cell : partition.first())
+		{
+			assert(cell.size() == 1);
+
+			int label = cell.get(0);
+			if(label >= 0)
+				newLabels.put(label, label);
+			else
+				newLabels.put(label, negLabel --);
+		}
+		
+		for(List<Integer> cell : partition.second())
+		{
+			assert(cell.size() == 1);
+
+			int tag = cell.get(0);
+			if(tag >= 0)
+				newTags.put(tag, tag);
+			else
+				newTags.put(tag, negTag --);
+		}
+	}
+	
 	public DTGraph<Integer, Integer> canonical()
 	{
 		return canonical;
@@ -570,35 +638,10 @@ public class Nauty
 	{	
 		List<Triple> triples = new ArrayList<Triple>((int)pattern.numLinks());
 		
-		int negLabel = -1, negTag = -1; // next available negative label
-		
-		if(distinctVars)
-			negTag = - Utils.numVarLabels(pattern) - 1;
-
 		Map<Integer, Integer> newLabels = new HashMap<>();
 		Map<Integer, Integer> newTags = new HashMap<>();
 		
-		for(List<Integer> cell : partition.first())
-		{
-			assert(cell.size() == 1);
-
-			int label = cell.get(0);
-			if(label >= 0)
-				newLabels.put(label, label);
-			else
-				newLabels.put(label, negLabel --);
-		}
-		
-		for(List<Integer> cell : partition.second())
-		{
-			assert(cell.size() == 1);
-
-			int tag = cell.get(0);
-			if(tag >= 0)
-				newTags.put(tag, tag);
-			else
-				newTags.put(tag, negTag --);
-		}
+		relabel(partition, newLabels, newTags);
 		
 		for(List<Integer> cell : partition.first())
 		{
@@ -0,0 +1,245 @@
+package nl.peterbloem.motive.rdf;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.nodes.DTGraph;
+
+/**
+ * A cache for the matches and scores of patterns, which can be shared by
+ * several searches over the same graph, running in different threads.
+ *
+ * The patterns should be in canonical form (see Nauty), so that isomorphic
+ * patterns map to the same entry.
+ *
+ * If several threads ask for the same pattern at the same time, only one of
+ * them computes the entry, and the others wait for the result.
+ *
+ * The cache is bounded in two ways: the match lists are kept up to a maximum
+ * total number of matches, and the scores up to a maximum number of patterns.
+ * Both evict the least recently used patterns first. Since a score is much
+ * smaller than a match list, the score of a pattern is usually retained long
+ * after its matches are evicted, so that a search returning to the pattern
+ * only needs to find the matches again.
+ *
+ * @author Peter
+ *
+ */
+public class PatternCache
+{
+	// * Default maximum number of matches retained (over all patterns)
+	public static final long MAX_MATCHES = 10000000;
+	// * Default maximum number of patterns for which the score is retained
+	public static final int MAX_SCORES = 1000000;
+
+	private long maxMatches;
+	private int maxScores;
+
+	private LRUCache<DTGraph<Integer, Integer>, Entry> entries;
+	private LRUCache<DTGraph<Integer, Integer>, Double> scores;
+
+	// * Entries currently being computed
+	private ConcurrentMap<DTGraph<Integer, Integer>, CompletableFuture<Entry>> inFlight =
+			new ConcurrentHashMap<>();
+	
+	// * The number of entries computed (including patterns computed again 
+	//   after they were evicted)
+	private AtomicLong numEvaluated = new AtomicLong();
+
+	/**
+	 * Creates a cache with the default bounds.
+	 */
+	public PatternCache()
+	{
+		this(MAX_MATCHES, MAX_SCORES);
+	}
+
+	/**
+	 * @param maxMatches The maximum total number of matches to retain.
+	 * @param maxScores The maximum number of patterns to retain the score of.
+	 */
+	public PatternCache(long maxMatches, int maxScores)
+	{
+		this.maxMatches = maxMatches;
+		this.maxScores = maxScores;
+		
+		entries = new LRUCache<>(maxMatches, entry -> entry.matches().size() + 1);
+		scores = new LRUCache<>(maxScores);
+	}
+	
+	/**
+	 * The maximum total number of matches retained.
+	 */
+	public long maxMatches()
+	{
+		return maxMatches;
+	}
+	
+	/**
+	 * The maximum number of patterns for which the score is retained.
+	 */
+	public int maxScores()
+	{
+		return maxScores;
+	}
+
+	/**
+	 * Returns the entry for the given pattern, computing it with the given
+	 * function if it isn't in the cache yet (and isn't being computed by
+	 * another thread).
+	 *
+	 * If the computation fails, the exception is thrown in the computing
+	 * thread, and nothing is cached so that a later call can try again.
+	 * Threads waiting for the computation get a CompletionException.
+	 */
+	public Entry get(DTGraph<Integer, Integer> pattern, Supplier<Entry> compute)
+	{
+		Entry entry = lookup(pattern);
+		if(entry != null)
+			return entry;
+
+		CompletableFuture<Entry> mine = new CompletableFuture<>();
+		CompletableFuture<Entry> future = inFlight.putIfAbsent(pattern, mine);
+
+		if(future != null)
+			return future.join();
+
+		// - we're the first, so we compute the entry
+		try {
+			// - another thread may have finished between the lookup and now
+			entry = lookup(pattern);
+
+			if(entry == null)
+			{
+				entry = compute.get();
+				numEvaluated.incrementAndGet();
+				store(pattern, entry);
+			}
+
+			mine.complete(entry);
+		} catch(RuntimeException | Error e)
+		{
+			mine.completeExceptionally(e);
+			throw e;
+		} finally
+		{
+			inFlight.remove(pattern, mine);
+		}
+
+		return entry;
+	}
+
+	private synchronized Entry lookup(DTGraph<Integer, Integer> pattern)
+	{
+		Entry entry = entries.get(pattern);
+		if(entry != null)
+			scores.get(pattern);
+
+		return entry;
+	}
+
+	private synchronized void store(DTGraph<Integer, Integer> pattern, Entry entry)
+	{
+		entries.put(pattern, entry);
+		scores.put(pattern, entry.score());
+	}
+
+	/**
+	 * The score of the given pattern, if it's retained by the cache (even if
+	 * its matches aren't), or null otherwise.
+	 */
+	public synchronized Double score(DTGraph<Integer, Integer> pattern)
+	{
+		return scores.get(pattern);
+	}
+
+	/**
+	 * Whether the matches of the given pattern are in the cache, or being
+	 * computed.
+	 */
+	public synchronized boolean contains(DTGraph<Integer, Integer> pattern)
+	{
+		return entries.containsKey(pattern) || inFlight.containsKey(pattern);
+	}
+
+	/**
+	 * The number of patterns for which the cache retains the matches.
+	 */
+	public synchronized int size()
+	{
+		return entries.size();
+	}
+
+	/**
+	 * The number of times an entry was computed through this cache. A pattern 
+	 * that was evicted and asked for again is counted again.
+	 */
+	public long numEvaluated()
+	{
+		return numEvaluated.get();
+	}
+
+	/**
+	 * The number of patterns for which the cache retains the score.
+	 */
+	public synchronized int numScores()
+	{
+		return scores.size();
+	}
+
+	/**
+	 * The total number of matches retained.
+	 */
+	public synchronized long numMatches()
+	{
+		return entries.weight() - entries.size();
+	}
+
+	/**
+	 * The matches of a pattern, together with its score.
+	 */
+	public static class Entry
+	{
+		private List<List<Integer>> matches;
+		private boolean complete;
+		private double score;
+
+		public Entry(List<List<Integer>> matches, boolean complete, double score)
+		{
+			this.matches = matches;
+			this.complete = complete;
+			this.score = score;
+		}
+
+		/**
+		 * The matches of the pattern. This list is shared by all users of the
+		 * cache, and should not be modified.
+		 */
+		public List<List<Integer>> matches()
+		{
+			return matches;
+		}
+
+		/**
+		 * Whether matches() contains all matches of the pattern (ie. the search
+		 * didn't time out).
+		 */
+		public boolean complete()
+		{
+			return complete;
+		}
+
+		/**
+		 * The codelength of the graph under the pattern (with the matches
+		 * pruned to be non-overlapping).
+		 */
+		public double score()
+		{
+			return score;
+		}
+	}
+}
@@ -8,8 +8,10 @@ import java.util.Comparator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.nodes.DTGraph;
 import org.rdfhdt.hdt.iterator.SequentialSearchIteratorTripleID;
@@ -23,7 +25,8 @@ public class SAParallel
 	private int numPos = 0;
 	private Double nullBits = null;
 	
-	private int itsFinished = 0;
+	// * Iterations finished, over all threads
+	private AtomicInteger itsFinished = new AtomicInteger();
 	private int numThreads; 
 	private int maxTime; 
 	private double alpha;
@@ -42,6 +45,9 @@ public class SAParallel
 	
 	private DTGraph<Integer, Integer> start;
 	
+	// * Shared by all threads, so that each pattern is only evaluated once 
+	private PatternCache cache;
+	
 	public SAParallel(KGraph graph, int totalIterations, double alpha, int maxTime)
 	{
 		this(graph, totalIterations, alpha, maxTime, Runtime.getRuntime().availableProcessors());
@@ -63,10 +69,22 @@ public class SAParallel
 	}
 	
 	public SAParallel(KGraph graph, int totalIterations, double alpha, int maxTime, int numThreads, DTGraph<Integer, Integer> start, Double nullBits)
+	{
+		this(graph, totalIterations, alpha, maxTime, numThreads, start, nullBits, new PatternCache());
+	}
+	
+	/**
+	 * @param cache The cache shared by the threads. Its bounds determine how 
+	 * 	much memory the search uses.
+	 */
+	public SAParallel(KGraph graph, int totalIterations, double alpha, int maxTime, int numThreads, DTGraph<Integer, Integer> start, Double nullBits, PatternCache cache)
 	{
 		this.nullBits = nullBits;
+		this.cache = cache;
 		
-		this.graph = graph;
+		// - all threads share the pattern cache, so they should search the 
+		//   same version of the graph, even if it is updated in the meantime
+		this.graph = graph.snapshot();
 		this.alpha = alpha;
 		this.maxTime = maxTime;
 		this.perThread = totalIterations/numThreads;
@@ -75,12 +93,17 @@ public class SAParallel
 		Global.info("Using %d separate processes.", numThreads);
 		
 		ExecutorService exec = Executors.newFixedThreadPool(numThreads);
+		List<CompletableFuture<Void>> runs = new ArrayList<>(numThreads);
 		for(int t : series(numThreads)) 
-			exec.execute(new SARun());
+			runs.add(CompletableFuture.runAsync(new SARun(), exec));
 
 		exec.shutdown();
 		
-		while(! exec.isTerminated());
+		// - wait for the threads to finish (this throws an exception if one of 
+		//   them failed)
+		CompletableFuture.allOf(runs.toArray(new CompletableFuture<?>[runs.size()])).join();
+		
+		Global.info("Evaluated %d patterns (matches retained for %d).", cache.numEvaluated(), cache.size());
 		
 		if(nullBits != null)
 			Global.info("Encountered %d positive patterns.", numPos);
@@ -91,14 +114,15 @@ public class SAParallel
 		@Override
 		public void run()
 		{
-			SimAnnealing search = new SimAnnealing(graph, alpha, maxTime, start, nullBits);
+			SimAnnealing search = new SimAnnealing(graph, alpha, maxTime, start, nullBits, cache);
 			
 			for (int i : series(perThread))
 			{
 				search.iterate();
 				
-				if(++ itsFinished % 500 == 0)
-					Global.info("%d iterations finished.", itsFinished);
+				int finished = itsFinished.incrementAndGet();
+				if(finished % 500 == 0)
+					Global.info("%d iterations finished.", finished);
 			}
 			
 			
@@ -14,12 +14,16 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 import org.nodes.DTGraph;
 import org.nodes.DTLink;
@@ -100,14 +104,35 @@ public class SimAnnealing
 	
 	private double alpha = 0.9;
 	
-	private Map<DTGraph<Integer, Integer>, Double>  scores = new LinkedHashMap<>();
-	private Map<DTGraph<Integer, Integer>, Integer> frequencies = new LinkedHashMap<>();
+	// * The default maximum number of best patterns retained for byScore()
+	public static final int MAX_RESULTS = 10000;
+	
+	private int maxResults;
+	
+	// * The patterns visited by this search. These are bounded (by the 
+	//   maxScores of the cache), the least recently visited are forgotten first.
+	private LRUCache<DTGraph<Integer, Integer>, Double>  scores;
+	private LRUCache<DTGraph<Integer, Integer>, Integer> frequencies;
+	
+	// * The patterns with the lowest scores visited by this search (at most 
+	//   maxResults). These are only replaced by better patterns, never by 
+	//   patterns that were visited more recently.
+	private Map<DTGraph<Integer, Integer>, Double>  bestScores = new HashMap<>();
+	private Map<DTGraph<Integer, Integer>, Integer> bestFrequencies = new HashMap<>();
+	// * The retained patterns, worst score first
+	private PriorityQueue<DTGraph<Integer, Integer>> worst = new PriorityQueue<>(
+			(m1, m2) -> - Double.compare(bestScores.get(m1), bestScores.get(m2)));
+	
+	// * Matches and scores of the patterns, possibly shared with other searches
+	private PatternCache cache;
 	
 	private KGraph graph;
-	List<List<Integer>> degrees;
 
 	private DTGraph<Integer, Integer> pattern; 
 	private List<List<Integer>> matches;
+	// * Whether matches contains all matches of the pattern (ie. the search 
+	//   didn't time out)
+	private boolean complete;
 	public double score;
 	
 	/**
@@ -130,13 +155,35 @@ public class SimAnnealing
 	}
 	
 	public SimAnnealing(KGraph graph, double alpha, int maxSearchTime, DTGraph<Integer, Integer> startPattern, Double nullBits)
+	{
+		this(graph, alpha, maxSearchTime, startPattern, nullBits, new PatternCache());
+	}
+	
+	/**
+	 * @param cache A cache for the matches and scores of patterns. This can be 
+	 * 	shared by several searches (in different threads) on the same graph, so 
+	 *  that a pattern found by more than one of them is only evaluated once. 
+	 */
+	public SimAnnealing(KGraph graph, double alpha, int maxSearchTime, DTGraph<Integer, Integer> startPattern, Double nullBits, PatternCache cache)
+	{
+		this(graph, alpha, maxSearchTime, startPattern, nullBits, cache, MAX_RESULTS);
+	}
+	
+	/**
+	 * @param maxResults The maximum number of best patterns retained for 
+	 * 	byScore(). 
+	 */
+	public SimAnnealing(KGraph graph, double alpha, int maxSearchTime, DTGraph<Integer, Integer> startPattern, Double nullBits, PatternCache cache, int maxResults)
 	{
 		this.graph = graph;
+		this.cache = cache;
+		this.maxResults = maxResults;
+		this.scores = new LRUCache<>(cache.maxScores());
+		this.frequencies = new LRUCache<>(cache.maxScores());
 		this.alpha = alpha;
 		this.maxSearchTime = maxSearchTime;
 		this.nullBits = nullBits;
 		
-		degrees = KGraph.degrees(graph);
 	
 		if(startPattern != null)
 		{
@@ -152,56 +199,136 @@ public class SimAnnealing
 		}
 		
 		pattern = Nauty.canonical(pattern, true);
-		matches = Find.find(pattern, graph, this.maxSearchTime);
-		frequencies.put(pattern, matches.size());
 		
-		score = score(pattern, matches);
+		final DTGraph<Integer, Integer> start = pattern;
+		PatternCache.Entry entry = evaluate(pattern, 
+				() -> Find.search(start, graph, this.maxSearchTime, TimeUnit.SECONDS));
+		
+		matches = entry.matches();
+		complete = entry.complete();
+		score = entry.score();
 				
 		if(nullBits != null && (nullBits - score) > 0)
 			numPos ++;
 	}
 	
-	private double score(DTGraph<Integer, Integer> pattern, List<List<Integer>> matches)
+	/**
+	 * Retrieves the matches and score of the given pattern from the cache, or 
+	 * computes them if the cache doesn't have them.
+	 * 
+	 * @param search Finds the matches of the pattern, if required.
+	 */
+	private PatternCache.Entry evaluate(DTGraph<Integer, Integer> pattern, Supplier<FindResult> search)
 	{
-		if(!scores.containsKey(pattern))
-		{			
-			matches = MotifCode.prune(pattern, matches);
-			double score = MotifCode.codelength(degrees, pattern, matches, true);
-			
-			if(nullBits != null && (nullBits - score) > 0)
-				numPos ++;
+		PatternCache.Entry entry = cache.get(pattern, () -> {
+			FindResult result = search.get();
+			
+			// - Derived and searched matches come out in different orders. 
+			//   Pruning depends on the order, so we sort them to get the same 
+			//   score either way.
+			sortMatches(result.matches());
+			
+			// - The cache may still know the score, if only the matches were 
+			//   evicted
+			Double score = cache.score(pattern);
+			if(score == null)
+			{
+				List<List<Integer>> pruned = MotifCode.prune(pattern, result.matches());
+				score = MotifCode.codelength(graph, pattern, pruned, true);
 				
-			scores.put(pattern, score);
+				if(nullBits != null && (nullBits - score) > 0)
+					numPos ++;
+			}
+			
+			return new PatternCache.Entry(result.matches(), ! result.timedOut(), score);
+		});
+		
+		scores.put(pattern, entry.score());
+		frequencies.put(pattern, entry.matches().size());
+		observe(pattern, entry.score(), entry.matches().size());
+		
+		return entry;
+	}
+	
+	/**
+	 * Retains the pattern among the best, if it scores well enough.
+	 */
+	private void observe(DTGraph<Integer, Integer> pattern, double score, int frequency)
+	{
+		if(bestScores.containsKey(pattern))
+		{
+			bestFrequencies.put(pattern, frequency);
+			return;
+		}
+		
+		if(bestScores.size() >= maxResults)
+		{
+			if(score >= bestScores.get(worst.peek()))
+				return;
+			
+			DTGraph<Integer, Integer> dropped = worst.poll();
+			bestScores.remove(dropped);
+			bestFrequencies.remove(dropped);
 		}
 		
-		return scores.get(pattern);
+		bestScores.put(pattern, score);
+		bestFrequencies.put(pattern, frequency);
+		worst.add(pattern);
 	}
 	
 	
 	public void iterate()
 	{
 		DTGraph<Integer, Integer> nwPattern = null;
+		Transition trans = null;
+		Map<Integer, Integer> derivation = new LinkedHashMap<>();
 		while(nwPattern == null)
 		{		
 			int ind = Functions.choose(tWeights, Functions.sum(tWeights));
-			Transition trans = transitions.get(ind);
+			trans = transitions.get(ind);
 			// System.out.println(trans);
 			// System.out.println("   " + pattern);
 
-			nwPattern = transition(pattern, trans, matches, graph);
+			derivation.clear();
+			nwPattern = transition(pattern, trans, matches, graph, derivation);
 			
 			// System.out.println("   " + nwPattern);
 		}
 		
-		nwPattern = Nauty.canonical(nwPattern, true);
+		Map<Integer, Integer> canonical = new LinkedHashMap<>();
+		nwPattern = Nauty.canonical(nwPattern, true, canonical);
 		// System.out.println("   " + nwPattern);
 		
-		List<List<Integer>> nwMatches = Find.find(nwPattern, graph, this.maxSearchTime);
-		if(! Find.TIMED_OUT)
+		// - If the new pattern is a specialization of the current one, and we 
+		//   have all matches of the current one, we can derive the new matches 
+		//   from these, instead of searching the whole graph again.
+		for(Map.Entry<Integer, Integer> entry : derivation.entrySet())
+			if(entry.getValue() < 0)
+				entry.setValue(canonical.get(entry.getValue()));
+		
+		final boolean derivable = complete && specializes(trans);
+		final DTGraph<Integer, Integer> parent = pattern, child = nwPattern;
+		final List<List<Integer>> parentMatches = matches; 
+		
+		PatternCache.Entry entry = evaluate(nwPattern, () -> {
+			FindResult result = null;
+			if(derivable)
+				result = derive(parent, parentMatches, child, derivation, graph, this.maxSearchTime);
+			
+			if(result == null)
+				result = Find.search(child, graph, this.maxSearchTime, TimeUnit.SECONDS);
+			
+			return result;
+		});
+		
+		List<List<Integer>> nwMatches = entry.matches();
+		// - A specialization keeps at least the match it was made from. A 
+		//   generalization may have no matches, if the variable it introduces 
+		//   can only take values that other variables already have.
+		if(entry.complete() && specializes(trans))
 			assert nwMatches.size() > 0;
 		
-		double nwScore = score(nwPattern, nwMatches);
-		frequencies.put(nwPattern, nwMatches.size());
+		double nwScore = entry.score();
 
 		if(nwScore < score || Global.random().nextDouble() < alpha)
 		{
@@ -211,12 +338,268 @@ public class SimAnnealing
 			score = nwScore;
 			
 			matches = nwMatches;
+			complete = entry.complete();
 		} 
 		// else
 		// 		System.out.println(String.format("stay. 	%.3f 	%.3f", score, nwScore));
 
 	}
 
+	/**
+	 * Whether the given transition always produces a specialization of the 
+	 * pattern: a pattern whose matches all correspond to a match of the 
+	 * original.
+	 */
+	public static boolean specializes(Transition trans)
+	{
+		switch (trans) {
+		case EXTEND:
+		case COUPLE:
+		case MAKE_LINK_CONST:
+		case MAKE_NODE_CONST:
+			return true;
+		default:
+			return false;
+		}
+	}
+	
+	/**
+	 * Derives the matches of a specialization of a pattern from the matches of 
+	 * the pattern itself. Every match of the child is either a parent match 
+	 * with the variables substituted according to the derivation, or (if a 
+	 * node variable was made constant) a match in which one of the remaining 
+	 * node variables takes the value of that constant. The latter were 
+	 * excluded in the parent, because two variables can't match the same node, 
+	 * so these are found by a (small) separate search each.
+	 * 
+	 * The patterns should use distinct variable numbering.
+	 * 
+	 * @param matches All matches of the parent pattern.
+	 * @param derivation For each variable of the parent, the label it gets in 
+	 * 	the child, as produced by transition(). 
+	 * @param maxSearchTime The time in seconds allowed for the separate 
+	 *  searches together.
+	 * @return The matches of the child, or null if they can't be derived from 
+	 *  those of the parent. The result has timed out if one of the separate 
+	 *  searches did, or if there was no time left for one of them. 
+	 */
+	static FindResult derive(
+			DTGraph<Integer, Integer> parent,
+			List<List<Integer>> matches, 
+			DTGraph<Integer, Integer> child, 
+			Map<Integer, Integer> derivation, 
+			KGraph graph,
+			int maxSearchTime)
+	{
+		// - If a link of the parent was merged into another, the child may have 
+		//   matches that the parent doesn't 
+		if(child.numLinks() < parent.numLinks())
+			return null;
+		
+		long t0 = System.nanoTime();
+		long deadline = t0 + TimeUnit.SECONDS.toNanos(maxSearchTime);
+		FindResult result = new FindResult();
+		
+		List<Integer> vars = variables(child);
+		
+		// - The child's links with each label replaced by the index of its 
+		//   variable in the match (-index-1) or its value
+		int k = (int) child.numLinks();
+		int[][] links = new int[k][];
+		int i = 0;
+		for(DTLink<Integer, Integer> link : child.links())
+			links[i++] = new int[] {
+				index(link.from().label(), vars), 
+				index(link.tag(), vars), 
+				index(link.to().label(), vars)};
+		
+		for(List<Integer> match : matches)
+		{
+			int[] values = new int[vars.size()];
+			Arrays.fill(values, -1);
+			
+			boolean consistent = true;
+			for(Map.Entry<Integer, Integer> entry : derivation.entrySet())
+			{
+				int value = match.get(- entry.getKey() - 1);
+				int label = entry.getValue();
+				
+				if(label >= 0)
+				{
+					if(value != label)
+						consistent = false;
+				} else 
+				{
+					int j = vars.indexOf(label);
+					if(values[j] >= 0 && values[j] != value)
+						consistent = false;
+					values[j] = value;
+				}
+				
+				if(!consistent)
+					break;
+			}
+			
+			if(consistent && valid(links, values, graph))
+			{
+				List<Integer> nwMatch = new ArrayList<>(values.length);
+				for(int value : values)
+					nwMatch.add(value);
+				
+				result.matches.add(nwMatch);
+				result.found();
+			}
+		}
+		
+		// - Find the matches where a node variable takes the value of a node 
+		//   variable of the parent that was made constant
+		for(Map.Entry<Integer, Integer> entry : derivation.entrySet())
+		{
+			int constant = entry.getValue();
+			if(constant < 0 || parent.node(entry.getKey()) == null)
+				continue;
+			
+			for(int var : vars)
+			{
+				if(child.node(var) == null)
+					continue;
+				
+				DTGraph<Integer, Integer> merged = new MapDTGraph<>();
+				for(DTNode<Integer, Integer> node : child.nodes())
+					if(node.label() != var)
+						merged.add(node.label());
+				
+				for(DTLink<Integer, Integer> link : child.links())
+				{
+					int from = link.from().label(), to = link.to().label();
+					merged.node(from == var ? constant : from).connect(
+							merged.node(to == var ? constant : to), link.tag());
+				}
+				
+				// - Two links became the same, so they can't match distinct triples  
+				if(merged.numLinks() < child.numLinks())
+					continue;
+				
+				// - Each search gets the time that is left, not the full budget
+				long remaining = deadline - System.nanoTime();
+				if(remaining <= 0)
+				{
+					result.timedOut = true;
+					break;
+				}
+				
+				FindResult part = Find.search(merged, graph, remaining, TimeUnit.NANOSECONDS);
+				result.timedOut |= part.timedOut();
+				result.expansions += part.expansions();
+				
+				int position = vars.indexOf(var);
+				for(List<Integer> partMatch : part.matches())
+				{
+					// - another variable is also the constant 
+					if(constantNode(merged, partMatch, constant))
+						continue;
+					
+					List<Integer> match = new ArrayList<>(partMatch);
+					match.add(position, constant);
+					
+					result.matches.add(match);
+					result.found();
+				}
+			}
+		}
+		
+		result.elapsed = System.nanoTime() - t0;
+		
+		return result;
+	}
+	
+	/**
+	 * Sorts matches lexicographically, so that the same set of matches always 
+	 * ends up in the same order.
+	 */
+	static void sortMatches(List<List<Integer>> matches)
+	{
+		Collections.sort(matches, (m1, m2) -> {
+			for(int i : series(m1.size()))
+			{
+				int c = Integer.compare(m1.get(i), m2.get(i));
+				if(c != 0)
+					return c;
+			}
+			return 0;
+		});
+	}
+	
+	/**
+	 * Whether the given match of the given pattern assigns the given value 
+	 * to a node variable. 
+	 */
+	private static boolean constantNode(DTGraph<Integer, Integer> pattern, List<Integer> match, int value)
+	{
+		List<Integer> vars = variables(pattern);
+		for(int i : series(vars.size()))
+			if(match.get(i) == value && pattern.node(vars.get(i)) != null)
+				return true;
+		
+		return false;
+	}
+	
+	/**
+	 * Checks that the values satisfy the links, that the node variables have 
+	 * distinct values and that the links map to distinct triples. 
+	 */
+	private static boolean valid(int[][] links, int[] values, KGraph graph)
+	{
+		Set<Triple> triples = new LinkedHashSet<>();
+		Set<Integer> nodes = new LinkedHashSet<>(); 
+		Set<Integer> nodeVars = new LinkedHashSet<>();
+		
+		for(int[] link : links)
+		{
+			int s = value(link[0], values), p = value(link[1], values), o = value(link[2], values);
+			
+			if(! graph.contains(s, p, o))
+				return false;
+			if(! triples.add(t(s, p, o)))
+				return false;
+			
+			for(int node : new int[] {link[0], link[2]})
+				if(node < 0 && nodeVars.add(node) && ! nodes.add(value(node, values)))
+					return false;
+		}
+		
+		return true;
+	}
+	
+	private static int index(int label, List<Integer> vars)
+	{
+		return label >= 0 ? label : - vars.indexOf(label) - 1;
+	}
+	
+	private static int value(int index, int[] values)
+	{
+		return index >= 0 ? index : values[- index - 1];
+	}
+	
+	/**
+	 * The variables of the given pattern (node labels and tags) in the order 
+	 * of the values in a match: -1, -2, ...
+	 */
+	private static List<Integer> variables(DTGraph<Integer, Integer> pattern)
+	{
+		Set<Integer> vars = new LinkedHashSet<>();
+		for(DTNode<Integer, Integer> node : pattern.nodes())
+			if(node.label() < 0)
+				vars.add(node.label());
+		for(DTLink<Integer, Integer> link : pattern.links())
+			if(link.tag() < 0)
+				vars.add(link.tag());
+		
+		List<Integer> result = new ArrayList<>(vars);
+		Collections.sort(result, reverseOrder());
+		return result;
+	}
+	
 	/**
 	 * 
 	 * @param pattern
@@ -229,6 +612,27 @@ public class SimAnnealing
 			List<List<Integer>> matches,
 			KGraph graph
 			)
+	{
+		return transition(pattern, trans, matches, graph, null);
+	}
+	
+	/**
+	 * 
+	 * @param pattern
+	 * @param trans
+	 * @param derivation If not null, and the transition is a specialization 
+	 * 	(see specializes()), this map is filled with every variable of the 
+	 *  pattern as a key, and as value the label (a variable or a constant) it 
+	 *  becomes in the new pattern.
+	 * @return The modified pattern
+	 */
+	public static DTGraph<Integer, Integer> transition(
+			DTGraph<Integer, Integer> pattern, 
+			Transition trans, 
+			List<List<Integer>> matches,
+			KGraph graph,
+			Map<Integer, Integer> derivation
+			)
 	{
 		switch (trans) {
 		case EXTEND: {
@@ -291,6 +695,10 @@ public class SimAnnealing
 			
 			assert Utils.valid(newPattern);
 			
+			if(derivation != null)
+				for(int var : variables(pattern))
+					derivation.put(var, var);
+			
 			return newPattern;
 			
 		} case COUPLE: 
@@ -341,6 +749,10 @@ public class SimAnnealing
 			
 			assert Utils.valid(newPattern);
 			
+			if(derivation != null)
+				for(int var : variables(pattern))
+					derivation.put(var, var == a ? b + 1 : (var < a ? var + 1 : var));
+			
 			return newPattern; 
 			
 		} case MAKE_LINK_CONST:
@@ -387,6 +799,10 @@ public class SimAnnealing
 			
 			assert Utils.valid(newPattern);
 			
+			if(derivation != null)
+				for(int var : variables(pattern))
+					derivation.put(var, var == a ? value : (var < a ? var + 1 : var));
+			
 			return newPattern; 			
 			
 		} case MAKE_NODE_CONST:
@@ -453,6 +869,13 @@ public class SimAnnealing
 			
 			assert Utils.valid(newPattern);
 			
+			if(derivation != null)
+			{
+				// - node variables below a, and all tag variables shift up by one
+				for(int var : variables(pattern))
+					derivation.put(var, var == a ? value : (var < a ? var + 1 : var));
+			}
+			
 			return newPattern; 			
 			
 		} case MAKE_NODE_VAR:
@@ -682,16 +1105,20 @@ public class SimAnnealing
 		return newPattern;
 	}
 
+	/**
+	 * The k patterns with the lowest scores visited by this search. At most 
+	 * maxResults patterns are retained for this.
+	 */
 	public List<DTGraph<Integer, Integer>> byScore(int k)
 	{
-		List<DTGraph<Integer, Integer>> motifs = new ArrayList<>(scores.keySet());
+		List<DTGraph<Integer, Integer>> motifs = new ArrayList<>(bestScores.keySet());
 		
 		Comparator<DTGraph<Integer, Integer>> comp = new Comparator<DTGraph<Integer, Integer>>()
 		{
 			@Override
 			public int compare(DTGraph<Integer, Integer> m1, DTGraph<Integer, Integer> m2)
 			{
-				return Double.compare(scores.get(m1), scores.get(m2));
+				return Double.compare(bestScores.get(m1), bestScores.get(m2));
 			}	
 		};
 		
@@ -707,7 +1134,8 @@ public class SimAnnealing
 	
 	public double score(DTGraph<Integer, Integer> motif)
 	{
-		return scores.get(motif);
+		Double score = bestScores.get(motif);
+		return score != null ? score : scores.peek(motif);
 	}
 	
 	public List<DTGraph<Integer, Integer>> byFrequency(int k)
@@ -719,7 +1147,7 @@ public class SimAnnealing
 			@Override
 			public int compare(DTGraph<Integer, Integer> m1, DTGraph<Integer, Integer> m2)
 			{
-				return - Double.compare(frequencies.get(m1), frequencies.get(m2));
+				return - Double.compare(frequencies.peek(m1), frequencies.peek(m2));
 			}
 		};
 		
@@ -735,16 +1163,21 @@ public class SimAnnealing
 
 	public int frequency(DTGraph<Integer, Integer> motif)
 	{
-		return frequencies.get(motif);
+		Integer frequency = bestFrequencies.get(motif);
+		return frequency != null ? frequency : frequencies.peek(motif);
 	}
 	
 	public Map<DTGraph<Integer, Integer>, Double> scores()
 	{
-		return Collections.unmodifiableMap(scores);
+		Map<DTGraph<Integer, Integer>, Double> result = new LinkedHashMap<>(scores.toMap());
+		result.putAll(bestScores);
+		return result;
 	}
 	
 	public Map<DTGraph<Integer, Integer>, Integer> frequencies()
 	{
-		return Collections.unmodifiableMap(frequencies);
+		Map<DTGraph<Integer, Integer>, Integer> result = new LinkedHashMap<>(frequencies.toMap());
+		result.putAll(bestFrequencies);
+		return result;
 	}
 }
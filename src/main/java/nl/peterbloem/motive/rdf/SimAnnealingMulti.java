@@ -23,6 +23,7 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import org.nodes.DTGraph;
 import org.nodes.DTLink;
@@ -80,7 +81,6 @@ public class SimAnnealingMulti
 	private double alpha = 0.9;
 	
 	private KGraph graph;
-	private List<List<Integer>> degrees;
 
 	private MotifSet current;
 	
@@ -97,10 +97,10 @@ public class SimAnnealingMulti
 			{
 				DTGraph<Integer, Integer> cp = Nauty.canonical(pattern, true);
 				motifs.add(cp);
-				matches.add(Find.find(cp, graph, maxSearchTime));
+				matches.add(Find.search(cp, graph, maxSearchTime, TimeUnit.SECONDS).matches());
 				
 				List<List<List<Integer>>> pruned = MotifCode.pruneValues(motifs, matches);
-				score = MotifCode.codelength(degrees, motifs, pruned, false);
+				score = MotifCode.codelength(graph, motifs, pruned, false);
 				
 				if(nullBits != null && (nullBits - score) > 0)
 					numPos ++;
@@ -169,7 +169,6 @@ public class SimAnnealingMulti
 		this.maxSearchTime = maxSearchTime;
 		this.nullBits = nullBits;
 		
-		degrees = KGraph.degrees(graph);
 	
 		List<DTGraph<Integer, Integer>> start = new ArrayList<>();
 		if(startPattern != null)
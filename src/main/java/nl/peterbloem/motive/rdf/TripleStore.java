@@ -0,0 +1,1000 @@
+package nl.peterbloem.motive.rdf;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static nl.peterbloem.motive.rdf.Triple.t;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * An immutable, compact store for a set of integer triples.
+ *
+ * The triples are kept in three sorted permutations (SPO, POS and OSP) in a
+ * compressed sparse row layout: for each permutation, an offset array maps the
+ * leading value to a range in two int arrays holding the remaining two values.
+ * Every triple pattern (any combination of bound and unbound positions) maps
+ * to a single contiguous range in one of the permutations, found by at most two
+ * binary searches.
+ *
+ * Storage is six ints per triple (24 bytes), plus one offset array over the
+ * tags and two over the nodes. No per-triple objects are kept: Triple objects
+ * are only created when a range is iterated over.
+ *
+ * Duplicate triples are removed on construction. For large inputs, the
+ * permutations are sorted in parallel.
+ *
+ * A store can be saved to a binary snapshot file, and opened again without
+ * sorting. An opened store maps the columns from the file, rather than reading
+ * them onto the heap: it opens instantly, and several processes opening the
+ * same file share its pages.
+ *
+ * A store can also keep its columns off the heap in direct buffers (see
+ * offHeap()), so that large graphs don't weigh on the garbage collector. The
+ * triples are still sorted on the heap when the store is built.
+ *
+ * @author Peter
+ *
+ */
+class TripleStore
+{
+	/**
+	 * The three permutations. The name lists the order in which the triples
+	 * are sorted.
+	 */
+	static enum Order {SPO, POS, OSP}
+
+	// * Identifies a snapshot file ("KGRAPH\r\n" in ASCII)
+	static final long MAGIC = 0x4b47524150480d0aL;
+	// * The version of the snapshot format (2: label dictionaries with long 
+	//   offsets)
+	static final int VERSION = 2;
+	// * The size of the header of a snapshot file, in bytes
+	private static final int HEADER = 32;
+	// * Flag for a snapshot that includes the labels
+	private static final int LABELS = 1;
+
+	// * Below this number of triples, a store is built on a single thread
+	static final int PARALLEL_THRESHOLD = 1 << 16;
+
+	private int numNodes, numTags, size;
+
+	// * SPO: sorted by subject, then predicate, then object
+	private IntArray sOffsets, spoP, spoO;
+	// * POS: sorted by predicate, then object, then subject
+	private IntArray pOffsets, posO, posS;
+	// * OSP: sorted by object, then subject, then predicate
+	private IntArray oOffsets, ospS, ospP;
+
+	// * For each tag, the number of distinct subjects and objects it occurs with
+	private int[] numSubjects, numObjects;
+
+	public TripleStore(Collection<Triple> triples)
+	{
+		int n = triples.size();
+		int[] s = new int[n], p = new int[n], o = new int[n];
+
+		int i = 0;
+		for(Triple triple : triples)
+		{
+			s[i] = triple.subject();
+			p[i] = triple.predicate();
+			o[i] = triple.object();
+			i++;
+		}
+
+		build(s, p, o, n);
+	}
+
+	/**
+	 * Creates a store from three parallel arrays of subjects, predicates and
+	 * objects. The arrays are not retained (or modified).
+	 *
+	 * @param n The number of triples to read from the arrays.
+	 */
+	public TripleStore(int[] s, int[] p, int[] o, int n)
+	{
+		build(s, p, o, n);
+	}
+
+	private TripleStore()
+	{
+	}
+
+	private void build(int[] s, int[] p, int[] o, int n)
+	{
+		int maxNode = -1, maxTag = -1;
+		for(int i = 0; i < n; i++)
+		{
+			if(s[i] < 0 || p[i] < 0 || o[i] < 0)
+				throw new IllegalArgumentException("Triple ("+s[i]+", "+p[i]+", "+o[i]+") contains a negative value.");
+
+			maxNode = Math.max(maxNode, Math.max(s[i], o[i]));
+			maxTag = Math.max(maxTag, p[i]);
+		}
+
+		numNodes = maxNode + 1;
+		numTags = maxTag + 1;
+
+		// * Sort into SPO order, removing duplicates
+		int[] sOffsets = new int[numNodes + 1];
+		int[][] spo = sort(s, p, o, n, numNodes, sOffsets, true);
+		int[] spoP = spo[0], spoO = spo[1];
+
+		size = sOffsets[numNodes];
+
+		// * Derive the other two permutations from the deduplicated SPO order
+		int[] subjects = leads(sOffsets, size);
+
+		int[] pOffsets = new int[numTags + 1];
+		int[][] pos = sort(spoP, spoO, subjects, size, numTags, pOffsets, false);
+		int[] posO = pos[0];
+
+		int[] oOffsets = new int[numNodes + 1];
+		int[][] osp = sort(spoO, subjects, spoP, size, numNodes, oOffsets, false);
+
+		// * Collect statistics
+		numSubjects = new int[numTags];
+		for(int subject = 0; subject < numNodes; subject++)
+			for(int i = sOffsets[subject]; i < sOffsets[subject + 1]; i++)
+				if(i == sOffsets[subject] || spoP[i] != spoP[i - 1])
+					numSubjects[spoP[i]] ++;
+
+		numObjects = new int[numTags];
+		for(int tag = 0; tag < numTags; tag++)
+			for(int i = pOffsets[tag]; i < pOffsets[tag + 1]; i++)
+				if(i == pOffsets[tag] || posO[i] != posO[i - 1])
+					numObjects[tag] ++;
+
+		this.sOffsets = IntArray.wrap(sOffsets);
+		this.spoP = IntArray.wrap(spoP);
+		this.spoO = IntArray.wrap(spoO);
+		this.pOffsets = IntArray.wrap(pOffsets);
+		this.posO = IntArray.wrap(posO);
+		this.posS = IntArray.wrap(pos[1]);
+		this.oOffsets = IntArray.wrap(oOffsets);
+		this.ospS = IntArray.wrap(osp[0]);
+		this.ospP = IntArray.wrap(osp[1]);
+	}
+
+	/**
+	 * Returns a copy of this store with its columns in direct buffers, outside
+	 * the heap. If the columns are already outside the heap (in direct buffers,
+	 * or mapped from a file), the store itself is returned.
+	 */
+	TripleStore offHeap()
+	{
+		if(isOffHeap())
+			return this;
+
+		TripleStore copy = new TripleStore();
+		copy.numNodes = numNodes;
+		copy.numTags = numTags;
+		copy.size = size;
+		copy.numSubjects = numSubjects;
+		copy.numObjects = numObjects;
+
+		copy.sOffsets = sOffsets;
+		copy.spoP = spoP;
+		copy.spoO = spoO;
+		copy.pOffsets = pOffsets;
+		copy.posO = posO;
+		copy.posS = posS;
+		copy.oOffsets = oOffsets;
+		copy.ospS = ospS;
+		copy.ospP = ospP;
+
+		copy.moveOffHeap();
+
+		return copy;
+	}
+
+	/**
+	 * Whether the columns of this store are kept outside the heap.
+	 */
+	boolean isOffHeap()
+	{
+		return ! (spoP instanceof IntArray.Heap);
+	}
+
+	private void moveOffHeap()
+	{
+		sOffsets = IntArray.direct(sOffsets);
+		spoP = IntArray.direct(spoP);
+		spoO = IntArray.direct(spoO);
+		pOffsets = IntArray.direct(pOffsets);
+		posO = IntArray.direct(posO);
+		posS = IntArray.direct(posS);
+		oOffsets = IntArray.direct(oOffsets);
+		ospS = IntArray.direct(ospS);
+		ospP = IntArray.direct(ospP);
+	}
+
+	/**
+	 * Writes the store to a snapshot file.
+	 *
+	 * The file consists of a header (the magic number, the version of the
+	 * format, the number of nodes, tags and triples, and flags), followed by
+	 * the offsets and the columns of the three permutations (SPO, POS, OSP) and
+	 * the per-tag statistics, all as little-endian ints. If labels are given,
+	 * they follow as two LabelDictionaries.
+	 *
+	 * The snapshot is written to a temporary file first, which then replaces
+	 * the target, so that other processes never see a partial file.
+	 *
+	 * @param nodes The labels of the nodes, or null to save no labels.
+	 * @param relations The labels of the relations, or null to save no labels.
+	 */
+	void save(Path path, List<String> nodes, List<String> relations)
+		throws IOException
+	{
+		boolean labels = nodes != null && relations != null;
+		Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+
+		try(FileChannel out = FileChannel.open(temp, CREATE, WRITE, TRUNCATE_EXISTING))
+		{
+			ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+			header.putLong(MAGIC).putInt(VERSION);
+			header.putInt(numNodes).putInt(numTags).putInt(size);
+			header.putInt(labels ? LABELS : 0);
+			header.clear();
+			while(header.hasRemaining())
+				out.write(header);
+
+			for(IntArray array : columns())
+				array.write(out);
+			IntArray.wrap(numSubjects).write(out);
+			IntArray.wrap(numObjects).write(out);
+
+			if(labels)
+			{
+				dictionary(nodes).write(out);
+				dictionary(relations).write(out);
+			}
+
+			out.force(false);
+		}
+
+		Files.move(temp, path, REPLACE_EXISTING, ATOMIC_MOVE);
+	}
+
+	private static LabelDictionary dictionary(List<String> labels)
+	{
+		return labels instanceof LabelDictionary ? (LabelDictionary) labels : new LabelDictionary(labels);
+	}
+
+	/**
+	 * Whether the given file starts with the magic number of a snapshot.
+	 */
+	static boolean isSnapshot(Path path)
+		throws IOException
+	{
+		try(FileChannel in = FileChannel.open(path, READ))
+		{
+			ByteBuffer magic = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+			while(magic.hasRemaining())
+				if(in.read(magic) < 0)
+					return false;
+
+			return magic.getLong(0) == MAGIC;
+		}
+	}
+
+	/**
+	 * Opens a snapshot file written by save(). The columns are mapped from the
+	 * file and the file is never written to, so it should not be modified while
+	 * the store is in use.
+	 *
+	 * @param nodes If not null, filled with the labels of the nodes (if the
+	 * 	snapshot contains them).
+	 * @param relations If not null, filled with the labels of the relations (if
+	 * 	the snapshot contains them).
+	 */
+	static TripleStore open(Path path, List<String> nodes, List<String> relations)
+		throws IOException
+	{
+		try(FileChannel in = FileChannel.open(path, READ))
+		{
+			ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+			while(header.hasRemaining())
+				if(in.read(header) < 0)
+					throw new IOException("File " + path + " is not a graph snapshot (too short).");
+			header.flip();
+
+			if(header.getLong() != MAGIC)
+				throw new IOException("File " + path + " is not a graph snapshot.");
+
+			int version = header.getInt();
+			if(version != VERSION)
+				throw new IOException("Snapshot " + path + " has version " + version + ", expected " + VERSION + ".");
+
+			TripleStore store = new TripleStore();
+			store.numNodes = header.getInt();
+			store.numTags = header.getInt();
+			store.size = header.getInt();
+
+			int flags = header.getInt();
+
+			int numNodes = store.numNodes + 1, tags = store.numTags + 1, n = store.size;
+			long expected = HEADER + 4L * (2L * numNodes + tags + 6L * n + 2L * store.numTags);
+			if(in.size() < expected || ((flags & LABELS) == 0 && in.size() != expected))
+				throw new IOException("Snapshot " + path + " has size " + in.size() + ", expected " + expected + ".");
+
+			long position = HEADER;
+			store.sOffsets = IntArray.map(in, position, numNodes); position += 4L * numNodes;
+			store.spoP     = IntArray.map(in, position, n);     position += 4L * n;
+			store.spoO     = IntArray.map(in, position, n);     position += 4L * n;
+			store.pOffsets = IntArray.map(in, position, tags);  position += 4L * tags;
+			store.posO     = IntArray.map(in, position, n);     position += 4L * n;
+			store.posS     = IntArray.map(in, position, n);     position += 4L * n;
+			store.oOffsets = IntArray.map(in, position, numNodes); position += 4L * numNodes;
+			store.ospS     = IntArray.map(in, position, n);     position += 4L * n;
+			store.ospP     = IntArray.map(in, position, n);     position += 4L * n;
+
+			store.numSubjects = copy(IntArray.map(in, position, store.numTags));
+			position += 4L * store.numTags;
+			store.numObjects = copy(IntArray.map(in, position, store.numTags));
+			position += 4L * store.numTags;
+
+			if((flags & LABELS) != 0 && (nodes != null || relations != null))
+			{
+				in.position(position);
+				LabelDictionary nodeLabels = LabelDictionary.read(in),
+				                relationLabels = LabelDictionary.read(in);
+
+				fill(nodes, nodeLabels);
+				fill(relations, relationLabels);
+			}
+
+			return store;
+		}
+	}
+
+	private static void fill(List<String> labels, LabelDictionary dictionary)
+	{
+		if(labels == null)
+			return;
+
+		if(labels instanceof LabelDictionary)
+		{
+			((LabelDictionary) labels).assign(dictionary);
+		} else
+		{
+			labels.clear();
+			labels.addAll(dictionary);
+		}
+	}
+
+	private IntArray[] columns()
+	{
+		return new IntArray[] {
+				sOffsets, spoP, spoO,
+				pOffsets, posO, posS,
+				oOffsets, ospS, ospP};
+	}
+
+	private static int[] copy(IntArray array)
+	{
+		int[] result = new int[array.length()];
+		for(int i = 0; i < result.length; i++)
+			result[i] = array.get(i);
+
+		return result;
+	}
+
+	/**
+	 * Sorts the triples (a, b, c) by a, then b, then c. The offsets for a are
+	 * written to the given array, and the b and c columns are returned in
+	 * sorted order.
+	 *
+	 * The triples are distributed over buckets by a counting sort on the first
+	 * column, after which the buckets are sorted in parallel (for large inputs).
+	 * Buckets that are large compared to the input (like the bucket for
+	 * rdf:type in the POS order) are sorted with a parallel sort of their own.
+	 *
+	 * @param dedup Whether to remove duplicates. If true, the offsets reflect the
+	 *   deduplicated arrays, and the returned arrays are trimmed.
+	 */
+	private static int[][] sort(int[] a, int[] b, int[] c, int n, int numLeads, int[] offsets, boolean dedup)
+	{
+		boolean parallel = n >= PARALLEL_THRESHOLD;
+
+		// * Counting sort on the first column
+		int[] starts = new int[numLeads + 1];
+		for(int i = 0; i < n; i++)
+			starts[a[i] + 1] ++;
+		for(int lead = 0; lead < numLeads; lead++)
+			starts[lead + 1] += starts[lead];
+
+		int[] next = Arrays.copyOf(starts, numLeads);
+		long[] keys = new long[n];
+		for(int i = 0; i < n; i++)
+			keys[next[a[i]]++] = key(b[i], c[i]);
+		next = null;
+
+		// * Sort each bucket on the remaining two columns
+		int large = Math.max(PARALLEL_THRESHOLD, n / (4 * ForkJoinPool.getCommonPoolParallelism()));
+		forEach(numLeads, parallel, lead -> {
+			if(!parallel || starts[lead + 1] - starts[lead] < large)
+				Arrays.sort(keys, starts[lead], starts[lead + 1]);
+		});
+
+		if(parallel)
+			for(int lead = 0; lead < numLeads; lead++)
+				if(starts[lead + 1] - starts[lead] >= large)
+					Arrays.parallelSort(keys, starts[lead], starts[lead + 1]);
+
+		// * Count the distinct triples in each bucket, to find the offsets
+		//   in the output
+		if(dedup)
+			forEach(numLeads, parallel, lead -> {
+				int num = 0;
+				for(int i = starts[lead]; i < starts[lead + 1]; i++)
+					if(i == starts[lead] || keys[i] != keys[i - 1])
+						num ++;
+
+				offsets[lead + 1] = num;
+			});
+		else
+			for(int lead = 0; lead < numLeads; lead++)
+				offsets[lead + 1] = starts[lead + 1] - starts[lead];
+
+		offsets[0] = 0;
+		for(int lead = 0; lead < numLeads; lead++)
+			offsets[lead + 1] += offsets[lead];
+
+		// * Write out the result
+		int m = offsets[numLeads];
+		int[] bOut = new int[m], cOut = new int[m];
+
+		forEach(numLeads, parallel, lead -> {
+			int j = offsets[lead];
+			for(int i = starts[lead]; i < starts[lead + 1]; i++)
+			{
+				if(dedup && i > starts[lead] && keys[i] == keys[i - 1])
+					continue;
+
+				bOut[j] = (int)(keys[i] >>> 32);
+				cOut[j] = (int) keys[i];
+				j++;
+			}
+		});
+
+		return new int[][]{bOut, cOut};
+	}
+
+	/**
+	 * Calls the given function for each lead, in parallel if requested.
+	 */
+	private static void forEach(int numLeads, boolean parallel, IntConsumer function)
+	{
+		if(parallel)
+			IntStream.range(0, numLeads).parallel().forEach(function);
+		else
+			for(int lead = 0; lead < numLeads; lead++)
+				function.accept(lead);
+	}
+
+	/**
+	 * Packs two non-negative ints into a long that sorts in the same order as
+	 * the pair (hi, lo).
+	 */
+	private static long key(int hi, int lo)
+	{
+		return ((long) hi << 32) | (lo & 0xffffffffL);
+	}
+
+	/**
+	 * Expands an offset array into a column holding the leading value for each
+	 * position.
+	 */
+	private static int[] leads(int[] offsets, int n)
+	{
+		int[] result = new int[n];
+		forEach(offsets.length - 1, n >= PARALLEL_THRESHOLD, lead ->
+			Arrays.fill(result, offsets[lead], offsets[lead + 1], lead)
+		);
+
+		return result;
+	}
+
+	/**
+	 * The number of node indices in use (ie. the maximal node index plus one).
+	 */
+	public int numNodes()
+	{
+		return numNodes;
+	}
+
+	/**
+	 * The number of tag indices in use (ie. the maximal tag plus one).
+	 */
+	public int numTags()
+	{
+		return numTags;
+	}
+
+	/**
+	 * The number of (distinct) triples.
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * A new store holding the triples of this store, minus those in remove,
+	 * plus those in add (so a triple in both is kept). Triples to remove that
+	 * are not in the store are ignored. This store is not changed.
+	 *
+	 * This rebuilds the whole store. LayeredStore keeps small updates next to
+	 * the store instead, and uses this to fold them in.
+	 */
+	TripleStore update(Collection<Triple> add, Collection<Triple> remove)
+	{
+		// * Mark the positions (in SPO order) of the triples to remove
+		BitSet removed = new BitSet(size);
+		for(Triple triple : remove)
+		{
+			int s = triple.subject(), p = triple.predicate(), o = triple.object();
+			if(! contains(s, p, o))
+				continue;
+
+			int from = spoP.lower(sOffsets.get(s), sOffsets.get(s + 1), p),
+			    to   = spoP.upper(from, sOffsets.get(s + 1), p);
+
+			removed.set(spoO.lower(from, to, o));
+		}
+
+		int n = size - removed.cardinality() + add.size();
+		int[] s = new int[n], p = new int[n], o = new int[n];
+
+		int j = 0;
+		for(int subject = 0; subject < numNodes; subject++)
+			for(int i = sOffsets.get(subject); i < sOffsets.get(subject + 1); i++)
+				if(! removed.get(i))
+				{
+					s[j] = subject;
+					p[j] = spoP.get(i);
+					o[j] = spoO.get(i);
+					j++;
+				}
+
+		for(Triple triple : add)
+		{
+			s[j] = triple.subject();
+			p[j] = triple.predicate();
+			o[j] = triple.object();
+			j++;
+		}
+
+		TripleStore result = new TripleStore(s, p, o, n);
+		return isOffHeap() ? result.offHeap() : result;
+	}
+
+	/**
+	 * A copy of this store, with the node and tag ids replaced by their dense
+	 * ids under the given map. All ids in use should be in the map.
+	 */
+	TripleStore remap(IdMap map)
+	{
+		int[] nodes = new int[numNodes], tags = new int[numTags];
+		for(int i = 0; i < map.numNodes(); i++)
+			nodes[map.originalNode(i)] = i;
+		for(int i = 0; i < map.numTags(); i++)
+			tags[map.originalTag(i)] = i;
+
+		int[] s = leads(copy(sOffsets), size), p = copy(spoP), o = copy(spoO);
+		forEach(size, size >= PARALLEL_THRESHOLD, i -> {
+			s[i] = nodes[s[i]];
+			p[i] = tags[p[i]];
+			o[i] = nodes[o[i]];
+		});
+
+		TripleStore result = new TripleStore(s, p, o, size);
+		return isOffHeap() ? result.offHeap() : result;
+	}
+
+	/**
+	 * The number of triples with each node as object.
+	 */
+	int[] inDegrees()
+	{
+		return differences(oOffsets);
+	}
+
+	/**
+	 * The number of triples with each node as subject.
+	 */
+	int[] outDegrees()
+	{
+		return differences(sOffsets);
+	}
+
+	/**
+	 * The number of triples with each predicate.
+	 */
+	int[] tagDegrees()
+	{
+		return differences(pOffsets);
+	}
+
+	private static int[] differences(IntArray offsets)
+	{
+		int[] result = new int[offsets.length() - 1];
+		for(int i = 0; i < result.length; i++)
+			result[i] = offsets.get(i + 1) - offsets.get(i);
+
+		return result;
+	}
+
+	/**
+	 * The number of distinct subjects of triples with the given predicate.
+	 */
+	public int numSubjects(int p)
+	{
+		return p < 0 || p >= numTags ? 0 : numSubjects[p];
+	}
+
+	/**
+	 * The number of distinct objects of triples with the given predicate.
+	 */
+	public int numObjects(int p)
+	{
+		return p < 0 || p >= numTags ? 0 : numObjects[p];
+	}
+
+	public boolean contains(int s, int p, int o)
+	{
+		if(s < 0 || s >= numNodes || p < 0 || p >= numTags || o < 0 || o >= numNodes)
+			return false;
+
+		int from = spoP.lower(sOffsets.get(s), sOffsets.get(s + 1), p),
+		    to   = spoP.upper(from, sOffsets.get(s + 1), p);
+
+		return spoO.lower(from, to, o) < spoO.upper(from, to, o);
+	}
+
+	/**
+	 * Returns all triples matching the given pattern as a read-only set view.
+	 * Negative values are taken as variables.
+	 */
+	public Set<Triple> find(int s, int p, int o)
+	{
+		if(s >= numNodes || p >= numTags || o >= numNodes)
+			return Collections.emptySet();
+
+		long range = range(s, p, o);
+		return new Range(order(s, p, o), lead(s, p, o), from(range), to(range));
+	}
+
+	/**
+	 * Passes all triples matching the given pattern to the consumer, without
+	 * creating any objects. Negative values are taken as variables.
+	 */
+	public void find(int s, int p, int o, IntTripleConsumer consumer)
+	{
+		if(s >= numNodes || p >= numTags || o >= numNodes)
+			return;
+
+		long range = range(s, p, o);
+		int from = from(range), to = to(range);
+
+		switch(order(s, p, o)) {
+			case SPO:
+				if(s >= 0)
+				{
+					for(int i = from; i < to; i++)
+						consumer.accept(s, spoP.get(i), spoO.get(i));
+				} else
+				{
+					int subject = 0;
+					for(int i = from; i < to; i++)
+					{
+						while(i >= sOffsets.get(subject + 1))
+							subject ++;
+						consumer.accept(subject, spoP.get(i), spoO.get(i));
+					}
+				}
+				break;
+			case POS:
+				for(int i = from; i < to; i++)
+					consumer.accept(posS.get(i), p, posO.get(i));
+				break;
+			default:
+				for(int i = from; i < to; i++)
+					consumer.accept(ospS.get(i), ospP.get(i), o);
+		}
+	}
+
+	/**
+	 * The number of triples matching the given pattern. Negative values are
+	 * taken as variables.
+	 */
+	public int count(int s, int p, int o)
+	{
+		if(s >= numNodes || p >= numTags || o >= numNodes)
+			return 0;
+
+		long range = range(s, p, o);
+		return to(range) - from(range);
+	}
+
+	/**
+	 * The permutation in which the triples matching the given pattern form a
+	 * contiguous range.
+	 */
+	static Order order(int s, int p, int o)
+	{
+		if(s < 0)
+		{
+			if(p < 0)
+				return o < 0 ? Order.SPO : Order.OSP;
+			return Order.POS;
+		}
+
+		return (p < 0 && o >= 0) ? Order.OSP : Order.SPO;
+	}
+
+	/**
+	 * The value that all triples matching the given pattern share in the first
+	 * position of their permutation (or -1 if the pattern has no constants).
+	 */
+	private static int lead(int s, int p, int o)
+	{
+		switch(order(s, p, o)) {
+			case SPO: return s;
+			case POS: return p;
+			default:  return o;
+		}
+	}
+
+	/**
+	 * Locates the range of triples matching the given pattern in the
+	 * permutation given by order(s, p, o). The start and end of the range are
+	 * packed into a single long to avoid allocation.
+	 */
+	private long range(int s, int p, int o)
+	{
+		if(s < 0)
+		{
+			if(p < 0)
+			{
+				if(o < 0) // ? ? ?
+					return pack(0, size);
+
+				// ? ? o
+				return pack(oOffsets.get(o), oOffsets.get(o + 1));
+			} else
+			{
+				int from = pOffsets.get(p), to = pOffsets.get(p + 1);
+
+				if(o < 0) // ? p ?
+					return pack(from, to);
+
+				// ? p o
+				int f = posO.lower(from, to, o);
+				return pack(f, posO.upper(f, to, o));
+			}
+		} else
+		{
+			int from = sOffsets.get(s), to = sOffsets.get(s + 1);
+
+			if(p < 0)
+			{
+				if(o < 0) // s ? ?
+					return pack(from, to);
+
+				// s ? o
+				from = oOffsets.get(o);
+				to = oOffsets.get(o + 1);
+
+				int f = ospS.lower(from, to, s);
+				return pack(f, ospS.upper(f, to, s));
+			} else
+			{
+				int f = spoP.lower(from, to, p),
+				    t = spoP.upper(f, to, p);
+
+				if(o < 0) // s p ?
+					return pack(f, t);
+
+				// s p o
+				int ff = spoO.lower(f, t, o);
+				return pack(ff, spoO.upper(ff, t, o));
+			}
+		}
+	}
+
+	private static long pack(int from, int to)
+	{
+		return ((long) from << 32) | (to & 0xffffffffL);
+	}
+
+	private static int from(long range)
+	{
+		return (int)(range >>> 32);
+	}
+
+	private static int to(long range)
+	{
+		return (int) range;
+	}
+
+	/**
+	 * The offsets of the given permutation: the triples with leading value
+	 * lead occupy the range [offsets[lead], offsets[lead + 1]) in the other two
+	 * columns.
+	 */
+	IntArray offsets(Order order)
+	{
+		switch(order) {
+			case SPO: return sOffsets;
+			case POS: return pOffsets;
+			default: return oOffsets;
+		}
+	}
+
+	/**
+	 * The second column of the given permutation (predicates for SPO, objects
+	 * for POS and subjects for OSP).
+	 */
+	IntArray second(Order order)
+	{
+		switch(order) {
+			case SPO: return spoP;
+			case POS: return posO;
+			default: return ospS;
+		}
+	}
+
+	/**
+	 * The third column of the given permutation (objects for SPO, subjects
+	 * for POS and predicates for OSP).
+	 */
+	IntArray third(Order order)
+	{
+		switch(order) {
+			case SPO: return spoO;
+			case POS: return posS;
+			default: return ospP;
+		}
+	}
+
+	/**
+	 * The triple at the given position in the given permutation, with the given
+	 * leading value.
+	 */
+	private Triple triple(Order order, int lead, int i)
+	{
+		switch(order) {
+			case SPO: return t(lead, spoP.get(i), spoO.get(i));
+			case POS: return t(posS.get(i), lead, posO.get(i));
+			default:  return t(ospS.get(i), ospP.get(i), lead);
+		}
+	}
+
+	/**
+	 * A read-only view of a contiguous range in one of the permutations.
+	 */
+	private class Range extends AbstractSet<Triple>
+	{
+		private Order order;
+		// * The leading value of all triples in the range, or -1 if the range
+		//   spans more than one
+		private int lead;
+		private int from, to;
+
+		public Range(Order order, int lead, int from, int to)
+		{
+			this.order = order;
+			this.lead = lead;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		public Iterator<Triple> iterator()
+		{
+			return new RangeIterator();
+		}
+
+		@Override
+		public int size()
+		{
+			return to - from;
+		}
+
+		@Override
+		public boolean isEmpty()
+		{
+			return to <= from;
+		}
+
+		@Override
+		public boolean contains(Object obj)
+		{
+			if(! (obj instanceof Triple))
+				return false;
+
+			Triple triple = (Triple) obj;
+			int s = triple.subject(), p = triple.predicate(), o = triple.object();
+
+			if(! TripleStore.this.contains(s, p, o))
+				return false;
+
+			// * Find the position of the triple in this range's permutation
+			int i;
+			switch(order) {
+				case SPO:
+					i = spoP.lower(sOffsets.get(s), sOffsets.get(s + 1), p);
+					i = spoO.lower(i, spoP.upper(i, sOffsets.get(s + 1), p), o);
+					break;
+				case POS:
+					i = posO.lower(pOffsets.get(p), pOffsets.get(p + 1), o);
+					i = posS.lower(i, posO.upper(i, pOffsets.get(p + 1), o), s);
+					break;
+				default:
+					i = ospS.lower(oOffsets.get(o), oOffsets.get(o + 1), s);
+					i = ospP.lower(i, ospS.upper(i, oOffsets.get(o + 1), s), p);
+			}
+
+			return i >= from && i < to;
+		}
+
+		private class RangeIterator implements Iterator<Triple>
+		{
+			private IntArray offsets = offsets(order);
+			private int i = from;
+			private int current = lead;
+
+			public RangeIterator()
+			{
+				if(current < 0 && from < to)
+				{
+					// * Find the leading value of the first triple
+					current = offsets.upper(0, offsets.length(), from) - 1;
+				}
+			}
+
+			@Override
+			public boolean hasNext()
+			{
+				return i < to;
+			}
+
+			@Override
+			public Triple next()
+			{
+				if(! hasNext())
+					throw new NoSuchElementException();
+
+				if(lead < 0)
+					while(i >= offsets.get(current + 1))
+						current ++;
+
+				return triple(order, current, i++);
+			}
+		}
+	}
+}
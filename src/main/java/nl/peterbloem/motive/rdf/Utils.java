@@ -8,6 +8,7 @@ import static nl.peterbloem.kit.Functions.min;
 import static nl.peterbloem.kit.Functions.natural;
 import static nl.peterbloem.kit.Series.series;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -20,6 +21,7 @@ import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.RandomAccess;
 import java.util.Set;
 
 import org.eclipse.collections.impl.lazy.parallel.set.sorted.SynchronizedParallelSortedSetIterable;
@@ -371,6 +373,33 @@ public abstract class Utils
 		return result;
 	}
 	
+	/**
+	 * The triples of the given pattern, with the variables filled in from the 
+	 * given array of values (as returned by Find.iterator()).
+	 */
+	public static List<Triple> triples(DTGraph<Integer, Integer> pattern, int[] values)
+	{
+		List<Triple> result = new ArrayList<>((int)pattern.numLinks());
+		
+		for(DTLink<Integer, Integer> link : pattern.links())
+		{
+			int subject = link.from().label();
+			int object = link.to().label();
+			int predicate = link.tag();
+			
+			if(subject < 0)
+				subject = values[-subject - 1];
+			if(object < 0)
+				object = values[-object - 1];
+			if(predicate < 0)
+				predicate = values[-predicate - 1];
+			
+			result.add(new Triple(subject, predicate, object));
+		}
+		
+		return result;
+	}
+	
 	/**
 	 * Checks whether a given pattern has valid variable tags and labels. That is
 	 * all negative tags and labels should be contiguous, and variable tags
@@ -459,6 +488,35 @@ public abstract class Utils
 		
 		return triples;
 	}
+	
+	/**
+	 * A read-only list view of the given array. The array is not copied.
+	 */
+	public static List<Integer> view(final int[] values)
+	{
+		return new IntView(values);
+	}
+	
+	private static class IntView extends AbstractList<Integer> implements RandomAccess
+	{
+		private int[] values;
 
+		public IntView(int[] values)
+		{
+			this.values = values;
+		}
+
+		@Override
+		public Integer get(int index)
+		{
+			return values[index];
+		}
+
+		@Override
+		public int size()
+		{
+			return values.length;
+		}
+	}
 	
 }
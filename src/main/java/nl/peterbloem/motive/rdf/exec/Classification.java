@@ -11,7 +11,6 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Writer;
-import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
@@ -28,6 +27,7 @@ import nl.peterbloem.motive.rdf.Datasets;
 import nl.peterbloem.motive.rdf.EdgeListModel;
 import nl.peterbloem.motive.rdf.EdgeListModel.Prior;
 import nl.peterbloem.motive.rdf.KGraph;
+import nl.peterbloem.motive.rdf.LabelDictionary;
 import nl.peterbloem.motive.rdf.MultiParallel;
 import nl.peterbloem.motive.rdf.Pref;
 import nl.peterbloem.motive.rdf.SAParallel;
@@ -72,10 +72,10 @@ public class Classification
 		throws IOException
 	{
 		KGraph data;
-		List<String> labels = new ArrayList<>(), tags = new ArrayList<>();
+		List<String> labels = new LabelDictionary(), tags = new LabelDictionary();
 
 		File dataFile = new File(dataname);
-		data = KGraph.loadHDT(dataFile, labels, tags);
+		data = KGraph.load(dataFile, labels, tags);
 		
 		Global.info("Graph loaded");
 
@@ -84,7 +84,7 @@ public class Classification
 		Global.info("Classifications loaded");
 
 		Global.info("Computing baseline codelength");
-		double nullBits = EdgeListModel.codelength(KGraph.degrees(data), Prior.ML);
+		double nullBits = EdgeListModel.codelength(data, Prior.ML);
 		
 		Global.info("Done. Searching.");
 		MultiParallel search = new MultiParallel(data, iterations, alpha, maxSearchTime);
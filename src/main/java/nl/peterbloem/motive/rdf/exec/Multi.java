@@ -17,6 +17,7 @@ import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.nodes.DTGraph;
 import org.nodes.DTLink;
@@ -30,8 +31,10 @@ import nl.peterbloem.motive.rdf.EdgeListModel;
 import nl.peterbloem.motive.rdf.EdgeListModel.Prior;
 import nl.peterbloem.motive.rdf.GAMulti;
 import nl.peterbloem.motive.rdf.KGraph;
+import nl.peterbloem.motive.rdf.LabelDictionary;
 import nl.peterbloem.motive.rdf.MultiParallel;
 import nl.peterbloem.motive.rdf.Pref;
+import nl.peterbloem.motive.rdf.PatternCache;
 import nl.peterbloem.motive.rdf.SAParallel;
 import nl.peterbloem.motive.rdf.SimAnnealing;
 import nl.peterbloem.motive.rdf.SimAnnealingMulti;
@@ -49,13 +52,21 @@ public class Multi
 	
 	public int maxSearchTime;
 	
+	// * Whether to keep the graph's indices outside the Java heap
+	public boolean offHeap = false;
+
+	// * Bounds on the memory used by the search's cache (see PatternCache)
+	public long cacheMatches = PatternCache.MAX_MATCHES;
+	public int cacheScores = PatternCache.MAX_SCORES;
+	
 	private KGraph data;
 	
 	private double nullBits;
 	
 	public int numThreads;
 	
-	public List<GAMulti> searches = new ArrayList<>();
+	// * added to by the search threads
+	public List<GAMulti> searches = Collections.synchronizedList(new ArrayList<>());
 	
 	// private MaxObserver<GAMulti.MotifSet> observer;
 
@@ -64,7 +75,7 @@ public class Multi
 	{
 		// dataname = dataname.trim().toLowerCase();
 		
-		List<String> labels = new ArrayList<>(), tags = new ArrayList<>();
+		List<String> labels = new LabelDictionary(), tags = new LabelDictionary();
 		if("dogfood".equals(dataname.toLowerCase()))
 			data = Datasets.dogfood(labels, tags);
 		else if ("aifb".equals(dataname.toLowerCase()))
@@ -74,13 +85,17 @@ public class Multi
 		else if(new File(dataname).exists())
 		{
 			File dataFile = new File(dataname);
-			data = KGraph.loadHDT(dataFile, labels, tags);
+			data = KGraph.load(dataFile, labels, tags);
 		} else
 			throw new IllegalArgumentException(format("Dataset name %s not recognized", dataname));
+		
+		if(offHeap)
+			data = data.offHeap();
+		
 		Global.info("Data loaded");
 		
 		Global.info("Computing baseline codelength");
-		nullBits = EdgeListModel.codelength(KGraph.degrees(data), Prior.ML);
+		nullBits = EdgeListModel.codelength(data, Prior.ML);
 		
 		Global.info("Done. Searching.");
 		Global.info("-- using %d separate processes.", numThreads);
@@ -173,17 +188,18 @@ public class Multi
 		return res;
 	}
 	
-	private static int NUM = 0;
+	private static AtomicInteger NUM = new AtomicInteger();
 
 	private class GARun implements Runnable
 	{
-		private int id = NUM++;
+		private int id = NUM.getAndIncrement();
 		private GAMulti search;
 		
 		@Override
 		public void run()
 		{
-			search = new GAMulti(data, maxSearchTime, nullBits, populationSize);
+			search = new GAMulti(data, maxSearchTime, nullBits, populationSize, 
+					cacheMatches, cacheScores);
 			searches.add(search);
 
 			for(int i : series(iterations))
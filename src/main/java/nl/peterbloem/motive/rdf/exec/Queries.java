@@ -14,7 +14,6 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Writer;
 import java.net.URLDecoder;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -30,6 +29,7 @@ import nl.peterbloem.motive.rdf.Datasets;
 import nl.peterbloem.motive.rdf.EdgeListModel;
 import nl.peterbloem.motive.rdf.EdgeListModel.Prior;
 import nl.peterbloem.motive.rdf.KGraph;
+import nl.peterbloem.motive.rdf.LabelDictionary;
 import nl.peterbloem.motive.rdf.Pref;
 import nl.peterbloem.motive.rdf.SAParallel;
 import nl.peterbloem.motive.rdf.SimAnnealing;
@@ -49,7 +49,7 @@ public class Queries
 		dataname = dataname.trim().toLowerCase();
 		
 		KGraph data;
-		List<String> labels = new ArrayList<>(), tags = new ArrayList<>();
+		List<String> labels = new LabelDictionary(), tags = new LabelDictionary();
 		if("dogfood".equals(dataname))
 			data = Datasets.dogfood(labels, tags);
 		else if ("aifb".equals(dataname))
@@ -9,7 +9,6 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Writer;
-import java.util.ArrayList;
 import java.util.List;
 
 import org.nodes.DTGraph;
@@ -22,7 +21,9 @@ import nl.peterbloem.motive.rdf.Datasets;
 import nl.peterbloem.motive.rdf.EdgeListModel;
 import nl.peterbloem.motive.rdf.EdgeListModel.Prior;
 import nl.peterbloem.motive.rdf.KGraph;
+import nl.peterbloem.motive.rdf.LabelDictionary;
 import nl.peterbloem.motive.rdf.Pref;
+import nl.peterbloem.motive.rdf.PatternCache;
 import nl.peterbloem.motive.rdf.SAParallel;
 import nl.peterbloem.motive.rdf.SimAnnealing;
 
@@ -38,6 +39,13 @@ public class RealWorld
 	public int topK;
 	
 	public int maxSearchTime;
+	
+	// * Whether to keep the graph's indices outside the Java heap
+	public boolean offHeap = false;
+
+	// * Bounds on the memory used by the search's cache (see PatternCache)
+	public long cacheMatches = PatternCache.MAX_MATCHES;
+	public int cacheScores = PatternCache.MAX_SCORES;
 
 	public void main()
 		throws IOException
@@ -45,7 +53,7 @@ public class RealWorld
 		// dataname = dataname.trim().toLowerCase();
 		
 		KGraph data;
-		List<String> labels = new ArrayList<>(), tags = new ArrayList<>();
+		List<String> labels = new LabelDictionary(), tags = new LabelDictionary();
 		if("dogfood".equals(dataname.toLowerCase()))
 			data = Datasets.dogfood(labels, tags);
 		else if ("aifb".equals(dataname.toLowerCase()))
@@ -55,13 +63,18 @@ public class RealWorld
 		else if(new File(dataname).exists())
 		{
 			File dataFile = new File(dataname);
-			data = KGraph.loadHDT(dataFile, labels, tags);
+			data = KGraph.load(dataFile, labels, tags);
 		} else
 			throw new IllegalArgumentException(format("Dataset name %s not recognized or file not found", dataname));
 		
-		double nullBits = EdgeListModel.codelength(KGraph.degrees(data), Prior.ML);
+		if(offHeap)
+			data = data.offHeap();
+		
+		double nullBits = EdgeListModel.codelength(data, Prior.ML);
 		
-		SAParallel search = new SAParallel(data, iterations, alpha, maxSearchTime);
+		SAParallel search = new SAParallel(data, iterations, alpha, maxSearchTime, 
+				Runtime.getRuntime().availableProcessors(), null, null, 
+				new PatternCache(cacheMatches, cacheScores));
 
 		Global.info("Search finished.");
 		
@@ -33,9 +33,11 @@ import nl.peterbloem.kit.Global;
 import nl.peterbloem.kit.Series;
 import nl.peterbloem.motive.rdf.Datasets;
 import nl.peterbloem.motive.rdf.EdgeListModel;
+import nl.peterbloem.motive.rdf.KGraph;
 import nl.peterbloem.motive.rdf.KGraphList;
 import nl.peterbloem.motive.rdf.MotifCode;
 import nl.peterbloem.motive.rdf.Nauty;
+import nl.peterbloem.motive.rdf.PatternCache;
 import nl.peterbloem.motive.rdf.Utils;
 import nl.peterbloem.motive.rdf.EdgeListModel.Prior;
 
@@ -43,8 +45,13 @@ public class Run
 {
 	@Option(
 			name="--data",
-			usage="Dataset (dogfood, aifb, mutag, or HDT file)")
+			usage="Dataset (dogfood, aifb, mutag, or an HDT, N-Triples (.nt, .nt.gz) or snapshot file)")
 	private static String dataset = null;
+	
+	@Option(
+			name="--snapshot",
+			usage="Snapshot file to write the dataset to (for the snapshot experiment).")
+	private static File snapshot = null;
 		
 	@Option(
 			name="--logfile",
@@ -53,7 +60,7 @@ public class Run
 	
 	@Option(
 			name="--experiment",
-			usage="Experiment type. Options: synthetic (sample a random graph), synth-rep (repeated experiment on random graphs), ...")
+			usage="Experiment type. Options: synthetic (sample a random graph), synth-rep (repeated experiment on random graphs), snapshot (save the dataset as a snapshot file), ...")
 	private static String mode = "synth-rep";
 	
 	@Option(
@@ -116,6 +123,21 @@ public class Run
 			usage="Nr. of motifs to write.")
 	private static int toCSV = 50;
 	
+	@Option(
+			name="--cache-matches",
+			usage="Maximum number of pattern matches kept in memory by the search (per cache).")
+	private static long cacheMatches = PatternCache.MAX_MATCHES;
+	
+	@Option(
+			name="--cache-scores",
+			usage="Maximum number of patterns for which the search keeps the score in memory.")
+	private static int cacheScores = PatternCache.MAX_SCORES;
+	
+	@Option(
+			name="--off-heap",
+			usage="Keep the graph's indices outside the Java heap, in the real-world and multi modes (set -XX:MaxDirectMemorySize accordingly). Snapshot files are always kept off the heap.")
+	private static boolean offHeap = false;
+	
 	@Option(name="--fast-py", usage="Use fast PY model (don't optimize the parameters). Much faster computation of compression factors, less effective compresssion.")
 	private static boolean fastPY = false;
 
@@ -152,7 +174,7 @@ public class Run
 	        
 	        System.exit(0);	
     	}
-		
+    	
     	if(mode.toLowerCase().trim().equals("synthetic"))
     	{
     		Synthetic syn = new Synthetic();
@@ -161,6 +183,8 @@ public class Run
     		syn.topK  = topK;
     		syn.iterations = iterations;
     		syn.maxTime = maxTime;
+    		syn.cacheMatches = cacheMatches;
+    		syn.cacheScores = cacheScores;
     		
     		syn.main();
     	} else if(mode.toLowerCase().trim().equals("synth-rep"))
@@ -183,6 +207,9 @@ public class Run
     		rw.alpha = alpha;
     		rw.topK = topK;
     		rw.maxSearchTime = maxTime;
+    		rw.offHeap = offHeap;
+    		rw.cacheMatches = cacheMatches;
+    		rw.cacheScores = cacheScores;
     		
     		rw.main();
     	} else if(mode.toLowerCase().trim().equals("multi"))
@@ -194,6 +221,9 @@ public class Run
     		mlt.topK = topK;
     		mlt.maxSearchTime = maxTime;
     		mlt.numThreads = numThreads == -1 ? Runtime.getRuntime().availableProcessors() : numThreads ;
+    		mlt.offHeap = offHeap;
+    		mlt.cacheMatches = cacheMatches;
+    		mlt.cacheScores = cacheScores;
     		
     		mlt.main();
     	} else if(mode.toLowerCase().trim().equals("queries"))
@@ -204,6 +234,14 @@ public class Run
     		
     		qs.main();
         	
+    	} else if(mode.toLowerCase().trim().equals("snapshot"))
+        {
+    		Snapshot snp = new Snapshot();
+    		snp.dataname = dataset;
+    		snp.out = snapshot;
+    		
+    		snp.main();
+    		
     	} else
     		throw new IllegalArgumentException(format("Experiment mode !! %s not recognized.", mode));	
     	
@@ -0,0 +1,57 @@
+package nl.peterbloem.motive.rdf.exec;
+
+import static java.lang.String.format;
+import static nl.peterbloem.kit.Functions.tic;
+import static nl.peterbloem.kit.Functions.toc;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import nl.peterbloem.kit.Global;
+import nl.peterbloem.motive.rdf.Datasets;
+import nl.peterbloem.motive.rdf.KGraph;
+import nl.peterbloem.motive.rdf.LabelDictionary;
+
+/**
+ * Loads a dataset and saves it as a snapshot file, which the other 
+ * experiments can then open (with --data) without parsing or sorting.
+ * 
+ * @author Peter
+ *
+ */
+public class Snapshot
+{
+	public String dataname;
+	
+	public File out;
+
+	public void main()
+		throws IOException
+	{
+		if(out == null)
+			throw new IllegalArgumentException("No snapshot file given (use --snapshot).");
+		
+		tic();
+		
+		KGraph data;
+		List<String> labels = new LabelDictionary(), tags = new LabelDictionary();
+		if("dogfood".equals(dataname.toLowerCase()))
+			data = Datasets.dogfood(labels, tags);
+		else if ("aifb".equals(dataname.toLowerCase()))
+			data = Datasets.aifb(labels, tags);
+		else if("mutag".equals(dataname.toLowerCase()))
+			data = Datasets.mutag(labels, tags);
+		else if(new File(dataname).exists())
+			data = KGraph.load(new File(dataname), labels, tags);
+		else
+			throw new IllegalArgumentException(format("Dataset name %s not recognized or file not found", dataname));
+		
+		Global.info("Graph loaded in %.1f seconds (%d nodes, %d links).", toc(), data.size(), data.numLinks());
+		
+		tic();
+		data.save(out.toPath(), labels, tags);
+		
+		Global.info("Snapshot written to %s in %.1f seconds.", out, toc());
+	}
+}
@@ -13,8 +13,11 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.nodes.DGraph;
 import org.nodes.DLink;
@@ -38,8 +41,8 @@ import nl.peterbloem.motive.rdf.Utils;
 public class SynthRep
 {
 	public int maxSearchTime = 120;
-	public static int finished = 0;
-	public static int totalThreads = 0;
+	public static AtomicInteger finished = new AtomicInteger();
+	public static AtomicInteger totalThreads = new AtomicInteger();
 	
 	public int repeats = 20;
 
@@ -69,17 +72,24 @@ public class SynthRep
 		Global.randomSeed();
 		
 		ExecutorService exec = Executors.newFixedThreadPool(numThreads);
+		List<CompletableFuture<Void>> runs = new ArrayList<>();
 		
 		for(int i : series(numsLinks.length))
 			for(int inst : series(maxInstances))
 				for(int rep : series(repeats))
 				{
-					exec.execute(new Run(sizes[i], numsLinks[i], inst, numsRelations[i]));
-					totalThreads++;
+					runs.add(CompletableFuture
+						.runAsync(new Run(sizes[i], numsLinks[i], inst, numsRelations[i]), exec)
+						// - a failed run is reported, but doesn't stop the others
+						.exceptionally(e -> {
+							Global.log().warning("Run failed: " + e);
+							return null;
+						}));
+					totalThreads.incrementAndGet();
 				}
 		
 		exec.shutdown();
-		while(! exec.isTerminated());
+		CompletableFuture.allOf(runs.toArray(new CompletableFuture<?>[runs.size()])).join();
 		System.out.println("All threads finished");
 		
 		Writer out = new BufferedWriter(new FileWriter(new File("synthrep.csv")));
@@ -215,28 +225,30 @@ public class SynthRep
 			}
 		
 			KGraph data = new KGraph(triples);
-			List<List<Integer>> degrees = KGraph.degrees(data);
 			
-			double nullBits = EdgeListModel.codelength(degrees, Prior.ML);
+			double nullBits = EdgeListModel.codelength(data, Prior.ML);
 			
-			List<List<Integer>> matches;
+			// * Prune the matches as they are found, so that only the pruned 
+			//   matches are kept in memory
+			Find.MatchIterator iterator;
 			
 			if(maxSearchTime < 1)
-				matches = Find.find(pattern, data);
+				iterator = Find.iterator(pattern, data);
 			else
-				matches = Find.find(pattern, data, maxSearchTime);
+				iterator = Find.iterator(pattern, data, maxSearchTime, TimeUnit.SECONDS, Find.Engine.CANDIDATES);
 			
-			int numMatches = matches.size();
-			matches = MotifCode.prune(pattern, matches);
+			List<List<Integer>> matches = MotifCode.prune(pattern, iterator);
+			
+			int numMatches = (int) iterator.numMatches();
 			int numMatchesPruned = matches.size();
 			
-			double motifBits = MotifCode.codelength(degrees, pattern, matches);
+			double motifBits = MotifCode.codelength(data, pattern, matches);
 			
 			results.add(Arrays.asList(
 					size, numLinks, numRelations, numInstances, nullBits, motifBits,
 					numMatches, numMatchesPruned));
 			
-			Global.info("thread finished. %d out of %d", ++ finished, totalThreads);
+			Global.info("thread finished. %d out of %d", finished.incrementAndGet(), totalThreads.get());
 		}
 		
 	}
@@ -18,6 +18,7 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import org.json.JSONObject;
 import org.nodes.DGraph;
@@ -46,8 +47,10 @@ import nl.peterbloem.motive.MotifSearchModel;
 import nl.peterbloem.motive.UPlainMotifExtractor;
 import nl.peterbloem.motive.rdf.EdgeListModel;
 import nl.peterbloem.motive.rdf.Find;
+import nl.peterbloem.motive.rdf.FindResult;
 import nl.peterbloem.motive.rdf.KGraph;
 import nl.peterbloem.motive.rdf.MotifCode;
+import nl.peterbloem.motive.rdf.PatternCache;
 import nl.peterbloem.motive.rdf.SAParallel;
 import nl.peterbloem.motive.rdf.SimAnnealing;
 import nl.peterbloem.motive.rdf.Triple;
@@ -99,6 +102,10 @@ public class Synthetic
 	public int iterations = 10000000; // 1000000;
 	
 	public int topK = 50000;
+
+	// * Bounds on the memory used by the search's cache (see PatternCache)
+	public long cacheMatches = PatternCache.MAX_MATCHES;
+	public int cacheScores = PatternCache.MAX_SCORES;
 	
 	public Map<DTGraph<Integer, Integer>, List<Double>> scores = new LinkedHashMap<>();
 	public Map<DTGraph<Integer, Integer>, List<Integer>> frequencies = new LinkedHashMap<>();
@@ -192,9 +199,9 @@ public class Synthetic
 		
 		KGraph data = graphs.get(focus);
 		
-    	double null0Bits = EdgeListModel.codelength(KGraph.degrees(graphs.get(0)), Prior.ML);
-    	double null1Bits = EdgeListModel.codelength(KGraph.degrees(data), Prior.ML);
-    	double null2Bits = EdgeListModel.codelength(KGraph.degrees(graphs.get(2)), Prior.ML);
+    	double null0Bits = EdgeListModel.codelength(graphs.get(0), Prior.ML);
+    	double null1Bits = EdgeListModel.codelength(data, Prior.ML);
+    	double null2Bits = EdgeListModel.codelength(graphs.get(2), Prior.ML);
 
 
 //        		List<List<Integer>> matches = Find.find(pattern, data);    		
@@ -202,7 +209,9 @@ public class Synthetic
 //        
 //        		double patternBits = MotifCode.codelength(KGraph.degrees(data), pattern, matches);
 
-    	SAParallel search = new SAParallel(data, iterations, alpha, maxTime, pattern, null1Bits);
+    	SAParallel search = new SAParallel(data, iterations, alpha, maxTime, 
+    			Runtime.getRuntime().availableProcessors(), pattern, null1Bits, 
+    			new PatternCache(cacheMatches, cacheScores));
     	
   
 		
@@ -222,17 +231,23 @@ public class Synthetic
     			
     			boolean first = true;
     			
-        		List<List<Integer>> matches0 = Find.find(motif, graphs.get(0), maxTime);    		
-        		matches0 = MotifCode.prune(motif, matches0);
+        		FindResult result0 = Find.search(motif, graphs.get(0), maxTime, TimeUnit.SECONDS);
+        		if(result0.timedOut())
+        			Global.log().warning("Search timed out on graph 0, the score is based on the matches found so far. Motif: " + makeString(motif));
+        		
+        		List<List<Integer>> matches0 = MotifCode.prune(motif, result0.matches());
         
-        		double motif0Bits = MotifCode.codelength(KGraph.degrees(graphs.get(0)), motif, matches0);  
+        		double motif0Bits = MotifCode.codelength(graphs.get(0), motif, matches0);  
         		double score0 = null0Bits - motif0Bits;
         		int frequency0 = matches0.size();
         		
-        		List<List<Integer>> matches2 = Find.find(motif, graphs.get(2), maxTime);    		
-        		matches2 = MotifCode.prune(motif, matches2);
+        		FindResult result2 = Find.search(motif, graphs.get(2), maxTime, TimeUnit.SECONDS);
+        		if(result2.timedOut())
+        			Global.log().warning("Search timed out on graph 2, the score is based on the matches found so far. Motif: " + makeString(motif));
+        		
+        		List<List<Integer>> matches2 = MotifCode.prune(motif, result2.matches());
         		
-        		double motif2Bits = MotifCode.codelength(KGraph.degrees(graphs.get(2)), motif, matches2);  
+        		double motif2Bits = MotifCode.codelength(graphs.get(2), motif, matches2);  
         		double score2 = null2Bits - motif2Bits; 
         		int frequency2 = matches2.size();
 
@@ -10,7 +10,10 @@ import static org.nodes.compression.Functions.tic;
 import java.util.ArrayList;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Test;
 import org.nodes.DGraph;
@@ -579,4 +582,283 @@ public class FindTest
 				System.out.println(match);
 	}
 	
+	/**
+	 * Check that the leapfrog engine finds the same matches as the default 
+	 * one.
+	 */
+	@Test
+	public void testLeapfrog()
+	{
+		List<Triple> triples = 
+				asList(
+					t(0, 0, 1),
+					t(0, 0, 2),
+					t(0, 1, 3),
+					t(1, 0, 3),
+					t(2, 0, 3),
+					t(3, 1, 4),
+					t(4, 1, 5),
+					t(4, 0, 5)
+				);
+		
+		KGraph graph = new KGraph(triples);
+		
+		{
+			// * A triangle with variable relations
+    		DTGraph<Integer, Integer> pattern = new MapDTGraph<>();
+    		DTNode<Integer, Integer> n1 = pattern.add(-1),
+    				                 n2 = pattern.add(-2),
+    				                 n3 = pattern.add(-3);
+    		
+    		n1.connect(n2, -4);
+    		n1.connect(n3, -5);
+     		n2.connect(n3, -6);
+    
+    		List<List<Integer>> matches = Find.find(pattern, graph, Find.Engine.LEAPFROG);
+    		
+    		Set<List<Integer>> target = new LinkedHashSet<>(asList(
+    				asList(0, 1, 3, 0, 1, 0), asList(0, 2, 3, 0, 1, 0)));  
+    		
+    		assertEquals(2, matches.size());
+    		assertEquals(target, new LinkedHashSet<>(matches));
+		}
+		
+		{
+			// * Two links that may map to the same triple
+    		DTGraph<Integer, Integer> pattern = new MapDTGraph<>();
+    		DTNode<Integer, Integer> n1 = pattern.add(-1),
+    				                 n2 = pattern.add(-2);
+    		
+    		n1.connect(n2, -3);
+    		n1.connect(n2, -4);
+    
+    		List<List<Integer>> matches = Find.find(pattern, graph, Find.Engine.LEAPFROG);
+    		
+    		Set<List<Integer>> target = new LinkedHashSet<>(asList(
+    				asList(4, 5, 0, 1), asList(4, 5, 1, 0)));  
+    		
+    		assertEquals(2, matches.size());
+    		assertEquals(target, new LinkedHashSet<>(matches));
+		}
+		
+		// * Random cyclic patterns on random graphs
+		for(int rep : series(20))
+		{
+			List<Triple> random = new ArrayList<>();
+			for(int i : series(60))
+				random.add(t(
+						Global.random().nextInt(12), 
+						Global.random().nextInt(3), 
+						Global.random().nextInt(12)));
+			
+			KGraph data = new KGraph(random);
+			
+    		DTGraph<Integer, Integer> pattern = new MapDTGraph<>();
+    		DTNode<Integer, Integer> n1 = pattern.add(-1),
+    				                 n2 = pattern.add(-2),
+    				                 n3 = pattern.add(-3),
+    				                 n4 = pattern.add(-4);
+    		
+    		n1.connect(n2, Global.random().nextInt(3));
+    		n2.connect(n3, -5);
+    		n3.connect(n1, Global.random().nextInt(3));
+    		n3.connect(n4, -5);
+    		n4.connect(n4, Global.random().nextInt(3));
+    		
+    		List<List<Integer>> expected = Find.find(pattern, data), 
+    		                    matches = Find.find(pattern, data, Find.Engine.LEAPFROG);
+    		
+    		assertEquals(expected.size(), matches.size());
+    		assertEquals(new LinkedHashSet<>(expected), new LinkedHashSet<>(matches));
+		}
+	}
+	
+	/**
+	 * A random graph of 300 triples over 40 nodes and 3 relations. 
+	 */
+	private static KGraph randomGraph(long seed)
+	{
+		Random random = new Random(seed);
+		
+		List<Triple> triples = new ArrayList<>();
+		for(int i : series(300))
+			triples.add(t(random.nextInt(40), random.nextInt(3), random.nextInt(40)));
+		
+		return new KGraph(triples);
+	}
+	
+	/**
+	 * The pattern (-1) -4-> (-2) -tag-> (-3).
+	 */
+	private static DTGraph<Integer, Integer> pathPattern(int tag)
+	{
+		DTGraph<Integer, Integer> pattern = new MapDTGraph<>();
+		DTNode<Integer, Integer> n1 = pattern.add(-1),
+				                 n2 = pattern.add(-2),
+				                 n3 = pattern.add(-3);
+		
+		n1.connect(n2, -4);
+		n2.connect(n3, tag);
+		
+		return pattern;
+	}
+	
+	/**
+	 * The path pattern, closed by a link (-3) -5-> (-1).
+	 */
+	private static DTGraph<Integer, Integer> trianglePattern(int tag)
+	{
+		DTGraph<Integer, Integer> pattern = pathPattern(tag);
+		pattern.get(2).connect(pattern.get(0), -5);
+		
+		return pattern;
+	}
+	
+	/**
+	 * The matches returned by the iterator, as lists.
+	 */
+	private static List<List<Integer>> drain(Find.MatchIterator iterator)
+	{
+		List<List<Integer>> matches = new ArrayList<>();
+		while(iterator.hasNext())
+		{
+			List<Integer> list = new ArrayList<>();
+			for(int value : iterator.next())
+				list.add(value);
+			matches.add(list);
+		}
+		
+		return matches;
+	}
+	
+	@Test
+	public void testSearch()
+	{
+		KGraph graph = randomGraph(0);
+		DTGraph<Integer, Integer> pattern = pathPattern(-5);
+		
+		for(Find.Engine engine : Find.Engine.values())
+		{
+			FindResult result = Find.search(pattern, graph, 1, TimeUnit.MINUTES, engine);
+		
+			assertFalse(result.timedOut());
+			assertTrue(result.expansions() >= result.matches().size());
+			assertTrue(result.elapsed() > 0);
+			assertEquals(
+					new LinkedHashSet<>(Find.find(pattern, graph)), 
+					new LinkedHashSet<>(result.matches()));
+		}
+		
+		// * A search with a deadline that has already passed stops after the 
+		//   first branch 
+		FindResult result = Find.search(pattern, graph, 0, TimeUnit.NANOSECONDS);
+		assertTrue(result.timedOut());
+		
+		// * The timed find() overload should not report a timeout for a search
+		//   that completes
+		Find.find(pattern, graph, 60);
+		assertFalse(Find.TIMED_OUT);
+	}
+	
+	/**
+	 * A search split over a ForkJoinPool should return the same matches, in 
+	 * the same order, as a search in one thread.
+	 */
+	@Test
+	public void testParallel()
+	{
+		ForkJoinPool pool = new ForkJoinPool(4);
+		
+		for(int rep : series(10))
+		{
+			KGraph graph = randomGraph(rep);
+			DTGraph<Integer, Integer> pattern = trianglePattern(rep % 3);
+			
+			for(Find.Engine engine : Find.Engine.values())
+			{
+				FindResult sequential = Find.search(pattern, graph, engine), 
+				           parallel = Find.search(pattern, graph, engine, pool);
+				
+				assertFalse(parallel.timedOut());
+				assertEquals(sequential.matches(), parallel.matches());
+			}
+		}
+		
+		pool.shutdown();
+	}
+	
+	@Test
+	public void testCountAndFirst()
+	{
+		KGraph graph = randomGraph(0);
+		DTGraph<Integer, Integer> pattern = pathPattern(1);
+		
+		List<List<Integer>> all = Find.find(pattern, graph);
+		assertTrue(all.size() > 10);
+		
+		assertEquals(all.size(), Find.count(pattern, graph));
+		
+		for(Find.Engine engine : Find.Engine.values())
+		{
+			FindResult count = Find.count(pattern, graph, 1, TimeUnit.MINUTES, engine);
+			assertEquals(all.size(), count.numMatches());
+			assertTrue(count.matches().isEmpty());
+			assertFalse(count.limitReached());
+			
+			FindResult first = Find.first(pattern, graph, 10, 1, TimeUnit.MINUTES, engine);
+			assertEquals(10, first.matches().size());
+			assertEquals(10, first.numMatches());
+			assertTrue(first.limitReached());
+			assertTrue(new LinkedHashSet<>(all).containsAll(first.matches()));
+		}
+		
+		assertEquals(all.subList(0, 10), Find.first(pattern, graph, 10));
+		assertEquals(all, Find.first(pattern, graph, all.size() + 1));
+	}
+	
+	@Test
+	public void testIterator()
+	{
+		KGraph graph = randomGraph(0);
+		DTGraph<Integer, Integer> pattern = trianglePattern(2);
+		
+		for(Find.Engine engine : Find.Engine.values())
+		{
+			List<List<Integer>> expected = Find.find(pattern, graph, engine);
+			
+			Find.MatchIterator iterator = Find.iterator(pattern, graph, engine);
+			
+			assertEquals(expected, drain(iterator));
+			assertEquals(expected.size(), iterator.numMatches());
+			assertFalse(iterator.hasNext());
+			assertFalse(iterator.timedOut());
+		}
+	}
+	
+	/**
+	 * A search should see the graph as it was when it started, even if the 
+	 * graph is updated while it runs.
+	 */
+	@Test
+	public void testIteratorUpdate()
+	{
+		DTGraph<Integer, Integer> pattern = trianglePattern(2);
+		
+		for(Find.Engine engine : Find.Engine.values())
+		{
+			KGraph graph = randomGraph(0);
+			List<List<Integer>> expected = Find.find(pattern, graph, engine);
+			
+			Find.MatchIterator iterator = Find.iterator(pattern, graph, engine);
+			
+			// - a new triangle, and one less match
+			graph.update(
+					asList(t(50, 0, 51), t(51, 2, 52), t(52, 1, 50)), 
+					asList(t(expected.get(0).get(1), 2, expected.get(0).get(2))));
+			
+			assertEquals(expected, drain(iterator));
+			assertNotEquals(expected, Find.find(pattern, graph, engine));
+		}
+	}
+	
 }
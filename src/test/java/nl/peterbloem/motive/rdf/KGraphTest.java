@@ -9,6 +9,8 @@ import static org.junit.Assert.*;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -16,7 +18,10 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 
 import org.junit.Test;
@@ -24,6 +29,7 @@ import org.nodes.DGraph;
 import org.nodes.DLink;
 import org.nodes.DNode;
 import org.nodes.DTGraph;
+import org.nodes.DTNode;
 import org.nodes.FastWalkable;
 import org.nodes.LightDGraph;
 import org.nodes.Link;
@@ -32,6 +38,10 @@ import org.nodes.Node;
 import org.nodes.data.Data;
 import org.nodes.data.Examples;
 import org.nodes.random.SimpleSubgraphGenerator;
+import org.rdfhdt.hdt.hdt.HDT;
+import org.rdfhdt.hdt.hdt.HDTManager;
+import org.rdfhdt.hdt.triples.IteratorTripleString;
+import org.rdfhdt.hdt.triples.TripleString;
 
 import nl.peterbloem.kit.Functions;
 import nl.peterbloem.kit.Global;
@@ -48,6 +58,640 @@ public class KGraphTest
 		DTGraph<Integer, Integer> graph = new KGraph(emptyList());
 	}
 
+	/**
+	 * The pattern (-1) -tag-> (-2) -4-> (-3).
+	 */
+	private static DTGraph<Integer, Integer> pathPattern(int tag)
+	{
+		DTGraph<Integer, Integer> pattern = new MapDTGraph<>();
+		DTNode<Integer, Integer> a = pattern.add(-1), b = pattern.add(-2), c = pattern.add(-3);
+		a.connect(b, tag);
+		b.connect(c, -4);
+		
+		return pattern;
+	}
+	
+	/**
+	 * Every triple in the HDT file should be in the graph, under the labels 
+	 * given by the loader.
+	 */
+	@Test
+	public void testLoadHDT()
+		throws Exception
+	{
+		List<String> nodes = new ArrayList<>(), relations = new ArrayList<>();
+		KGraph graph = Datasets.aifb(nodes, relations);
+		
+		assertEquals(graph.size(), nodes.size());
+		assertEquals(nodes.size(), new HashSet<>(nodes).size());
+		assertEquals(relations.size(), new HashSet<>(relations).size());
+		
+		Map<String, Integer> nodeMap = new HashMap<>(), relationMap = new HashMap<>();
+		for(int i : series(nodes.size()))
+			nodeMap.put(nodes.get(i), i);
+		for(int i : series(relations.size()))
+			relationMap.put(relations.get(i), i);
+		
+		HDT hdt = HDTManager.loadHDT(
+				Datasets.class.getClassLoader().getResourceAsStream("data/aifb.complete.hdt"), null);
+		
+		int num = 0;
+		IteratorTripleString it = hdt.search("", "", "");
+		while(it.hasNext())
+		{
+			TripleString ts = it.next();
+			
+			assertTrue(graph.contains(
+					nodeMap.get(ts.getSubject().toString()), 
+					relationMap.get(ts.getPredicate().toString()), 
+					nodeMap.get(ts.getObject().toString())));
+			num ++;
+		}
+		hdt.close();
+		
+		assertEquals(num, graph.numLinks());
+		
+		// - the memory-mapped file should give the same graph
+		File file = new File(Datasets.class.getClassLoader().getResource("data/aifb.complete.hdt").getFile());
+		List<String> nodes2 = new ArrayList<>(), relations2 = new ArrayList<>();
+		KGraph graph2 = KGraph.loadHDT(file, nodes2, relations2);
+		
+		assertEquals(graph.find(null, null, null), graph2.find(null, null, null));
+		assertEquals(nodes, nodes2);
+		assertEquals(relations, relations2);
+	}
+	
+	@Test
+	public void testSnapshot()
+		throws Exception
+	{
+		List<String> nodes = new LabelDictionary(), relations = new LabelDictionary();
+		KGraph graph = Datasets.aifb(nodes, relations);
+		
+		Path path = Files.createTempFile("aifb", ".kgraph");
+		try {
+			graph.save(path, nodes, relations);
+			
+			assertTrue(TripleStore.isSnapshot(path));
+			
+			List<String> nodes2 = new ArrayList<>(), relations2 = new LabelDictionary();
+			KGraph snapshot = KGraph.load(path.toFile(), nodes2, relations2);
+			
+			assertEquals(nodes, nodes2);
+			assertEquals(relations, relations2);
+			
+			assertEquals(graph.size(), snapshot.size());
+			assertEquals(graph.numLinks(), snapshot.numLinks());
+			assertEquals(graph.tags(), snapshot.tags());
+			assertEquals(graph.find(null, null, null), snapshot.find(null, null, null));
+			
+			// - every combination of bound and unbound positions
+			Random random = new Random(0);
+			List<Triple> triples = new ArrayList<>(graph.find(null, null, null));
+			for(int i : series(200))
+			{
+				Triple t = triples.get(random.nextInt(triples.size()));
+				for(int mask : series(8))
+				{
+					Integer s = (mask & 1) == 0 ? null : t.subject(),
+					        p = (mask & 2) == 0 ? null : t.predicate(),
+					        o = (mask & 4) == 0 ? null : t.object();
+					
+					assertEquals(graph.find(s, p, o), snapshot.find(s, p, o));
+				}
+			}
+			
+			for(int tag : graph.tags())
+				assertEquals(graph.numSubjects(tag), snapshot.numSubjects(tag));
+			
+			// - a search over the snapshot finds the same matches
+			DTGraph<Integer, Integer> pattern = pathPattern(triples.get(0).predicate());
+			
+			Set<List<Integer>> expected = new HashSet<>(Find.find(pattern, graph, Find.Engine.CANDIDATES));
+			assertEquals(expected, new HashSet<>(Find.find(pattern, snapshot, Find.Engine.CANDIDATES)));
+			assertEquals(expected, new HashSet<>(Find.find(pattern, snapshot, Find.Engine.LEAPFROG)));
+			
+			// - without labels
+			graph.save(path);
+			List<String> nodes3 = new ArrayList<>();
+			assertEquals(graph, KGraph.open(path, nodes3, null));
+			assertTrue(nodes3.isEmpty());
+			
+		} finally
+		{
+			Files.delete(path);
+		}
+	}
+	
+	/**
+	 * A graph large enough to be built in parallel.
+	 */
+	@Test
+	public void testParallelBuild()
+	{
+		Random random = new Random(0);
+		
+		int n = 3 * TripleStore.PARALLEL_THRESHOLD;
+		List<Triple> triples = new ArrayList<>(n);
+		for(int i : series(n))
+			if(i > 0 && random.nextInt(10) == 0) // - duplicates
+				triples.add(triples.get(random.nextInt(i)));
+			else // - a skewed distribution of relations, so that some buckets are large
+				triples.add(t(random.nextInt(5000), (int) Math.abs(random.nextGaussian() * 3), random.nextInt(5000)));
+		
+		Set<Triple> expected = new HashSet<>(triples);
+		KGraph graph = new KGraph(triples);
+		
+		assertEquals(expected.size(), graph.numLinks());
+		assertEquals(expected, new HashSet<>(graph.find(null, null, null)));
+		
+		// - each permutation should be sorted, without duplicates
+		List<Comparator<Triple>> orders = asList(
+				Comparator.comparing(Triple::subject).thenComparing(Triple::predicate).thenComparing(Triple::object),
+				Comparator.comparing(Triple::predicate).thenComparing(Triple::object).thenComparing(Triple::subject),
+				Comparator.comparing(Triple::object).thenComparing(Triple::subject).thenComparing(Triple::predicate));
+		List<Set<Triple>> ranges = asList(
+				graph.find(null, null, null), graph.find(null, 1, null), graph.find(null, null, 17));
+		
+		for(int i : series(3))
+		{
+			Triple last = null;
+			for(Triple triple : ranges.get(i))
+			{
+				if(last != null)
+					assertTrue(orders.get(i).compare(last, triple) < 0);
+				last = triple;
+			}
+		}
+		
+		for(int i : series(100))
+		{
+			Triple t = triples.get(random.nextInt(n));
+			
+			Set<Triple> bySubject = new HashSet<>(), byRelation = new HashSet<>(), byObject = new HashSet<>();
+			for(Triple e : expected)
+			{
+				if(e.subject() == t.subject()) bySubject.add(e);
+				if(e.predicate() == t.predicate() && e.object() == t.object()) byRelation.add(e);
+				if(e.object() == t.object()) byObject.add(e);
+			}
+			
+			assertEquals(bySubject, graph.find(t.subject(), null, null));
+			assertEquals(byRelation, graph.find(null, t.predicate(), t.object()));
+			assertEquals(byObject, graph.find(null, null, t.object()));
+		}
+	}
+	
+	@Test
+	public void testDegrees()
+	{
+		Random random = new Random(0);
+		
+		List<Triple> triples = new ArrayList<>();
+		for(int i : series(5000))
+			triples.add(t(random.nextInt(300), random.nextInt(12), random.nextInt(300)));
+		
+		KGraph graph = new KGraph(triples);
+		
+		// - the generic version counts over the links
+		List<List<Integer>> expected = KGraph.degrees((DTGraph<Integer, Integer>) graph);
+		List<List<Integer>> degrees = KGraph.degrees(graph);
+		
+		assertEquals(expected, degrees);
+		assertEquals(expected, KGraph.degrees(graph.offHeap()));
+		
+		for(int i : series(graph.size()))
+		{
+			assertEquals(graph.get(i).inDegree(), (int) degrees.get(0).get(i));
+			assertEquals(graph.get(i).outDegree(), (int) degrees.get(1).get(i));
+		}
+		
+		try {
+			degrees.get(0).set(0, 1);
+			fail();
+		} catch(UnsupportedOperationException e) {}
+	}
+	
+	@Test
+	public void testCompact()
+	{
+		Random random = new Random(0);
+		
+		// - sparse ids
+		Set<Triple> triples = new LinkedHashSet<>();
+		for(int i : series(2000))
+			triples.add(t(1000 * random.nextInt(200) + 7, 10 * random.nextInt(5), 1000 * random.nextInt(200) + 7));
+		
+		KGraph sparse = new KGraph(triples);
+		KGraph graph = KGraph.compact(triples);
+		IdMap ids = graph.ids();
+		
+		assertNull(sparse.ids());
+		assertEquals(ids.numNodes(), graph.size());
+		assertEquals(5, graph.tags().size());
+		assertEquals(triples.size(), graph.numLinks());
+		
+		Set<Triple> recovered = new HashSet<>();
+		for(Triple triple : graph.find(null, null, null))
+			recovered.add(ids.unmap(triple));
+		assertEquals(triples, recovered);
+		
+		for(Triple triple : triples)
+			assertTrue(graph.find(null, null, null).contains(ids.map(triple)));
+		
+		assertEquals(-1, ids.node(8));
+		assertNull(ids.map(t(8, 0, 7)));
+		
+		// - compacting an existing graph gives the same result
+		KGraph compacted = sparse.compact();
+		assertEquals(graph, compacted);
+		assertTrue(compacted == compacted.compact());
+		assertEquals(KGraph.degrees(graph), KGraph.degrees(compacted));
+		
+		// - patterns and labels
+		Triple first = triples.iterator().next();
+		DTGraph<Integer, Integer> pattern = new MapDTGraph<>();
+		pattern.add(ids.node(first.subject())).connect(pattern.add(-1), ids.tag(first.predicate()));
+		
+		DTGraph<Integer, Integer> original = ids.unmap(pattern);
+		assertEquals(first.subject(), (int) original.get(0).label());
+		assertEquals(-1, (int) original.get(1).label());
+		assertEquals(first.predicate(), (int) original.links().iterator().next().tag());
+		
+		List<String> labels = new ArrayList<>();
+		for(int i : series(sparse.size()))
+			labels.add("n" + i);
+		assertEquals("n" + first.subject(), ids.nodeLabels(labels).get(ids.node(first.subject())));
+		
+		// - dense graphs are left alone
+		KGraph dense = new KGraph(asList(t(0, 0, 1), t(1, 1, 0)));
+		assertTrue(dense == dense.compact());
+		assertNull(KGraph.compact(asList(t(0, 0, 1), t(1, 1, 0))).ids());
+	}
+	
+	@Test
+	public void testUpdate()
+	{
+		Random random = new Random(0);
+		
+		Set<Triple> expected = new LinkedHashSet<>();
+		for(int i : series(3000))
+			expected.add(t(random.nextInt(200), random.nextInt(6), random.nextInt(200)));
+		
+		KGraph graph = new KGraph(expected);
+		
+		for(int batch : series(5))
+		{
+			List<Triple> add = new ArrayList<>(), remove = new ArrayList<>();
+			for(int i : series(300))
+				add.add(t(random.nextInt(220), random.nextInt(7), random.nextInt(220)));
+			
+			List<Triple> present = new ArrayList<>(expected);
+			for(int i : series(300))
+				remove.add(present.get(random.nextInt(present.size())));
+			remove.add(t(1000, 0, 0)); // - not in the graph
+			
+			graph.update(add, remove);
+			
+			expected.removeAll(remove);
+			expected.addAll(add);
+			
+			KGraph rebuilt = new KGraph(expected);
+			assertEquals(rebuilt, graph);
+			assertEquals(expected.size(), graph.numLinks());
+			assertEquals(new HashSet<>(expected), graph.find(null, null, null));
+			assertEquals(KGraph.degrees(rebuilt), KGraph.degrees(graph));
+		}
+		
+		// - single links through the node and link objects
+		KNode a = graph.get(3), b = graph.get(4);
+		a.disconnect(b);
+		assertFalse(graph.contains(3, 5, 4));
+		
+		KLink link = a.connect(b, 5);
+		assertTrue(graph.contains(3, 5, 4));
+		assertTrue(a.connected(b));
+		
+		link.remove();
+		assertFalse(graph.contains(3, 5, 4));
+		assertTrue(link.dead());
+	}
+	
+	@Test
+	public void testState()
+	{
+		KGraph graph = new KGraph(asList(t(0, 0, 1), t(1, 1, 2)));
+		
+		long state = graph.state();
+		graph.addTriples(asList(t(2, 0, 0)));
+		assertNotEquals(state, graph.state());
+		
+		// - an update without effect doesn't change the state
+		state = graph.state();
+		graph.addTriples(asList(t(2, 0, 0)));
+		assertEquals(state, graph.state());
+		
+		KGraph snapshot = graph.snapshot();
+		assertEquals(state, snapshot.state());
+		
+		graph.removeTriples(asList(t(0, 0, 1)));
+		assertNotEquals(state, graph.state());
+		assertEquals(state, snapshot.state());
+	}
+	
+	/**
+	 * Reads of a graph with pending updates should merge the delta into the 
+	 * results, in the same order as a rebuilt graph.
+	 */
+	@Test
+	public void testDelta()
+	{
+		Random random = new Random(1);
+		
+		Set<Triple> expected = new LinkedHashSet<>();
+		for(int i : series(3000))
+			expected.add(t(random.nextInt(100), random.nextInt(5), random.nextInt(100)));
+		
+		KGraph graph = new KGraph(expected);
+		
+		for(int batch : series(3))
+		{
+			List<Triple> add = new ArrayList<>(), remove = new ArrayList<>();
+			for(int i : series(100))
+				add.add(t(random.nextInt(110), random.nextInt(6), random.nextInt(110)));
+			
+			List<Triple> present = new ArrayList<>(expected);
+			for(int i : series(100))
+				remove.add(present.get(random.nextInt(present.size())));
+			
+			graph.update(add, remove);
+			
+			expected.removeAll(remove);
+			expected.addAll(add);
+		}
+		
+		assertTrue(graph.store().hasDelta());
+		checkDelta(new KGraph(expected), graph, random);
+		
+		graph.merge();
+		
+		assertFalse(graph.store().hasDelta());
+		checkDelta(new KGraph(expected), graph, random);
+	}
+	
+	private static void checkDelta(KGraph rebuilt, KGraph graph, Random random)
+	{
+		assertEquals(rebuilt.numLinks(), graph.numLinks());
+		assertEquals(rebuilt.size(), graph.size());
+		assertEquals(rebuilt.tags(), graph.tags());
+		assertEquals(KGraph.degrees(rebuilt), KGraph.degrees(graph));
+		
+		for(int tag : rebuilt.tags())
+		{
+			assertEquals(rebuilt.numSubjects(tag), graph.numSubjects(tag));
+			assertEquals(rebuilt.numObjects(tag), graph.numObjects(tag));
+		}
+		
+		for(int i : series(300))
+		{
+			int s = random.nextBoolean() ? -1 : random.nextInt(112), 
+			    p = random.nextBoolean() ? -1 : random.nextInt(7), 
+			    o = random.nextBoolean() ? -1 : random.nextInt(112);
+			
+			Integer subject = s < 0 ? null : s, predicate = p < 0 ? null : p, object = o < 0 ? null : o;
+			Set<Triple> found = rebuilt.find(subject, predicate, object);
+			
+			assertEquals(new ArrayList<>(found), new ArrayList<>(graph.find(subject, predicate, object)));
+			assertEquals(found.size(), graph.count(s, p, o));
+			
+			Set<Triple> visited = new HashSet<>();
+			graph.find(s, p, o, (subj, pred, obj) -> visited.add(t(subj, pred, obj)));
+			assertEquals(new HashSet<>(found), visited);
+			
+			if(s >= 0 && p >= 0 && o >= 0)
+				assertEquals(rebuilt.contains(s, p, o), graph.contains(s, p, o));
+		}
+	}
+	
+	/**
+	 * Both search engines should find the same matches in a graph with 
+	 * pending updates as in a rebuilt graph.
+	 */
+	@Test
+	public void testDeltaSearch()
+	{
+		Random random = new Random(2);
+		
+		Set<Triple> expected = new LinkedHashSet<>();
+		for(int i : series(2000))
+			expected.add(t(random.nextInt(150), random.nextInt(4), random.nextInt(150)));
+		
+		KGraph graph = new KGraph(expected);
+		
+		List<Triple> add = new ArrayList<>(), remove = new ArrayList<>();
+		for(int i : series(200))
+			add.add(t(random.nextInt(160), random.nextInt(5), random.nextInt(160)));
+		List<Triple> present = new ArrayList<>(expected);
+		for(int i : series(200))
+			remove.add(present.get(random.nextInt(present.size())));
+		
+		graph.update(add, remove);
+		expected.removeAll(remove);
+		expected.addAll(add);
+		
+		assertTrue(graph.store().hasDelta());
+		KGraph rebuilt = new KGraph(expected);
+		
+		List<DTGraph<Integer, Integer>> patterns = new ArrayList<>();
+		
+		patterns.add(pathPattern(4));
+		
+		DTGraph<Integer, Integer> triangle = new MapDTGraph<>();
+		DTNode<Integer, Integer> a = triangle.add(-1), b = triangle.add(-2), c = triangle.add(-3);
+		a.connect(b, -4);
+		b.connect(c, 1);
+		c.connect(a, -5);
+		patterns.add(triangle);
+		
+		DTGraph<Integer, Integer> star = new MapDTGraph<>();
+		a = star.add(add.get(0).subject()); b = star.add(-1); c = star.add(-2);
+		a.connect(b, -3);
+		a.connect(c, 2);
+		patterns.add(star);
+		
+		for(DTGraph<Integer, Integer> pattern : patterns)
+		{
+			Set<List<Integer>> matches = new HashSet<>(Find.find(pattern, rebuilt, Find.Engine.CANDIDATES));
+			
+			assertEquals(matches, new HashSet<>(Find.find(pattern, graph, Find.Engine.CANDIDATES)));
+			assertEquals(matches, new HashSet<>(Find.find(pattern, graph, Find.Engine.LEAPFROG)));
+		}
+	}
+	
+	/**
+	 * A large delta should be merged into the indices in the background.
+	 */
+	@Test
+	public void testBackgroundMerge()
+	{
+		List<Triple> triples = new ArrayList<>();
+		for(int i : series(1000))
+			triples.add(t(i, i % 3, i + 1));
+		
+		KGraph graph = new KGraph(triples);
+		
+		List<Triple> add = new ArrayList<>();
+		for(int i : series(5000))
+			add.add(t(i, 3, i + 2));
+		graph.addTriples(add);
+		
+		// - reads continue during the merge
+		assertEquals(6000, graph.numLinks());
+		
+		graph.awaitMerge();
+		
+		assertFalse(graph.store().hasDelta());
+		assertEquals(6000, graph.numLinks());
+		assertTrue(graph.contains(4999, 3, 5001));
+		assertEquals(1000, graph.count(-1, 0, -1) + graph.count(-1, 1, -1) + graph.count(-1, 2, -1));
+	}
+	
+	/**
+	 * Readers should see each batch completely, or not at all.
+	 */
+	@Test
+	public void testUpdateConcurrent()
+		throws InterruptedException
+	{
+		List<Triple> triples = new ArrayList<>();
+		for(int i : series(1000))
+			triples.add(t(i, i % 3, i + 1));
+		
+		KGraph graph = new KGraph(triples);
+		
+		Thread writer = new Thread(() -> {
+			for(int batch : series(1, 20))
+			{
+				List<Triple> add = new ArrayList<>();
+				for(int i : series(100))
+					add.add(t(i, 3 + batch, 1000 + batch));
+				
+				graph.addTriples(add);
+			}
+		});
+		writer.start();
+		
+		while(writer.isAlive())
+		{
+			assertEquals(0, graph.numLinks() % 100);
+			
+			List<List<Integer>> degrees = KGraph.degrees(graph);
+			long in = 0, tags = 0;
+			for(int degree : degrees.get(0))
+				in += degree;
+			for(int degree : degrees.get(2))
+				tags += degree;
+			
+			assertEquals(0, in % 100);
+			assertEquals(in, tags);
+		}
+		
+		writer.join();
+		assertEquals(1000 + 19 * 100, graph.numLinks());
+	}
+	
+	@Test
+	public void testSnapshotIsolation()
+	{
+		List<Triple> triples = asList(t(0, 0, 1), t(1, 1, 2), t(2, 0, 0));
+		KGraph graph = new KGraph(triples);
+		
+		KGraph snapshot = graph.snapshot();
+		assertTrue(snapshot.isSnapshot());
+		assertFalse(graph.isSnapshot());
+		assertTrue(snapshot == snapshot.snapshot());
+		assertEquals(graph, snapshot);
+		
+		List<List<Integer>> degrees = KGraph.degrees(snapshot);
+		
+		graph.addTriples(asList(t(3, 2, 0), t(0, 0, 3)));
+		graph.removeTriples(asList(t(1, 1, 2)));
+		
+		// - the snapshot still sees the original triples
+		assertEquals(new HashSet<>(triples), snapshot.find(null, null, null));
+		assertEquals(3, snapshot.size());
+		assertEquals(2, snapshot.tags().size());
+		assertEquals(degrees, KGraph.degrees(snapshot));
+		assertTrue(snapshot.contains(1, 1, 2));
+		
+		assertEquals(4, graph.size());
+		assertEquals(4, graph.numLinks());
+		assertFalse(graph.contains(1, 1, 2));
+		assertNotEquals(graph, snapshot);
+		
+		try {
+			snapshot.addTriples(asList(t(0, 0, 0)));
+			fail();
+		} catch(UnsupportedOperationException e) {}
+	}
+	
+	@Test
+	public void testOffHeap()
+		throws IOException
+	{
+		KGraph graph = Datasets.aifb();
+		KGraph offHeap = graph.offHeap();
+		
+		assertFalse(graph.isOffHeap());
+		assertTrue(offHeap.isOffHeap());
+		assertSame(offHeap, offHeap.offHeap());
+		
+		assertEquals(graph, offHeap);
+		assertEquals(graph.find(null, null, null), offHeap.find(null, null, null));
+		
+		Random random = new Random(0);
+		List<Triple> triples = new ArrayList<>(graph.find(null, null, null));
+		for(int i : series(200))
+		{
+			Triple t = triples.get(random.nextInt(triples.size()));
+			assertEquals(graph.find(t.subject(), null, null), offHeap.find(t.subject(), null, null));
+			assertEquals(graph.find(null, t.predicate(), t.object()), offHeap.find(null, t.predicate(), t.object()));
+			assertEquals(graph.find(null, null, t.object()), offHeap.find(null, null, t.object()));
+		}
+		
+		DTGraph<Integer, Integer> pattern = pathPattern(triples.get(0).predicate());
+		
+		Set<List<Integer>> expected = new HashSet<>(Find.find(pattern, graph));
+		assertEquals(expected, new HashSet<>(Find.find(pattern, offHeap, Find.Engine.CANDIDATES)));
+		assertEquals(expected, new HashSet<>(Find.find(pattern, offHeap, Find.Engine.LEAPFROG)));
+		
+		// - updates of an off-heap graph stay off the heap when they're merged
+		KGraph updated = new KGraph(triples).offHeap();
+		updated.removeTriples(triples.subList(0, 10));
+		updated.merge();
+		
+		assertTrue(updated.isOffHeap());
+		assertEquals(new KGraph(triples.subList(10, triples.size())), updated);
+	}
+	
+	@Test(expected=IOException.class)
+	public void testSnapshotTruncated()
+		throws IOException
+	{
+		Path path = Files.createTempFile("test", ".kgraph");
+		try {
+			Datasets.test(10).save(path);
+			
+			byte[] bytes = Files.readAllBytes(path);
+			Files.write(path, Arrays.copyOf(bytes, bytes.length - 4));
+			
+			KGraph.open(path);
+		} finally
+		{
+			Files.delete(path);
+		}
+	}
+	
 	@Test
 	public void testToString()
 	{
@@ -195,6 +839,87 @@ public class KGraphTest
 		assertEquals(graph.find(0, null, null).size(), 3);
 	}
 	
+	@Test
+	public void testStatistics()
+	{
+		List<Triple> triples =
+				asList(
+					t(0, 0, 1),
+					t(0, 0, 2),
+					t(0, 1, 3),
+					t(1, 0, 3),
+					t(2, 0, 3),
+					t(3, 1, 4),
+					t(4, 1, 5),
+					t(4, 0, 5)
+				);
+
+		KGraph graph = new KGraph(triples);
+
+		assertEquals(4, graph.numSubjects(0));
+		assertEquals(4, graph.numObjects(0));
+		assertEquals(3, graph.numSubjects(1));
+		assertEquals(3, graph.numObjects(1));
+		assertEquals(0, graph.numSubjects(2));
+	}
+
+	/**
+	 * Checks all triple patterns on a random graph against a linear scan.
+	 */
+	@Test
+	public void testTripleFindRandom()
+	{
+		List<Triple> triples = new ArrayList<>();
+		for(int i : series(2000))
+			triples.add(t(
+					Global.random().nextInt(50),
+					Global.random().nextInt(5),
+					Global.random().nextInt(50)));
+
+		Set<Triple> unique = new LinkedHashSet<>(triples);
+		KGraph graph = new KGraph(triples);
+
+		assertEquals(unique.size(), graph.numLinks());
+		assertEquals(unique, graph.find(null, null, null));
+
+		for(int i : series(500))
+		{
+			Integer s = Global.random().nextBoolean() ? null : Global.random().nextInt(52),
+			        p = Global.random().nextBoolean() ? null : Global.random().nextInt(6),
+			        o = Global.random().nextBoolean() ? null : Global.random().nextInt(52);
+
+			Set<Triple> expected = new HashSet<>();
+			for(Triple triple : unique)
+				if((s == null || s == triple.subject()) &&
+				   (p == null || p == triple.predicate()) &&
+				   (o == null || o == triple.object()))
+					expected.add(triple);
+
+			Set<Triple> found = graph.find(s, p, o);
+
+			assertEquals(expected.size(), found.size());
+			assertEquals(expected, new HashSet<>(found));
+
+			for(Triple triple : expected)
+				assertTrue(found.contains(triple));
+
+			for(Triple triple : unique)
+				if(! expected.contains(triple))
+					assertFalse(found.contains(triple));
+
+			// * The primitive API should agree
+			assertEquals(expected.size(), graph.count(
+					s == null ? -1 : s, p == null ? -1 : p, o == null ? -1 : o));
+
+			List<Triple> visited = new ArrayList<>();
+			graph.find(s == null ? -1 : s, p == null ? -1 : p, o == null ? -1 : o,
+					(subj, pred, obj) -> visited.add(t(subj, pred, obj)));
+
+			assertEquals(expected.size(), visited.size());
+			assertEquals(expected, new HashSet<>(visited));
+		}
+	}
+
 	@Test
 	public void testConnected()
 	{
@@ -230,6 +955,10 @@ public class KGraphTest
 		
 		assertFalse(c.connected(b));
 		assertFalse(c.connectedTo(b));
+		
+		assertTrue(graph.connected(0, 1));
+		assertFalse(graph.connected(1, 0));
+		assertFalse(graph.connected(1, 2));
 	}
 	
 	@Test
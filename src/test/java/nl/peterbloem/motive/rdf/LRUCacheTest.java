@@ -0,0 +1,64 @@
+package nl.peterbloem.motive.rdf;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import org.junit.Test;
+
+public class LRUCacheTest
+{
+	@Test
+	public void testSize()
+	{
+		LRUCache<String, Integer> cache = new LRUCache<>(3);
+		
+		cache.put("a", 1);
+		cache.put("b", 2);
+		cache.put("c", 3);
+		
+		// - get() marks "a" as used, peek() doesn't do the same for "b"
+		assertEquals(1, (int) cache.get("a"));
+		assertEquals(2, (int) cache.peek("b"));
+		
+		cache.put("d", 4);
+		
+		assertEquals(3, cache.size());
+		assertFalse(cache.containsKey("b"));
+		assertEquals(new LinkedHashSet<>(asList("c", "a", "d")), cache.keySet());
+		assertEquals(1, cache.evictions());
+		
+		// - replacing a value doesn't evict anything
+		cache.put("c", 5);
+		assertEquals(3, cache.size());
+		assertEquals(5, (int) cache.peek("c"));
+	}
+	
+	@Test
+	public void testWeight()
+	{
+		LRUCache<String, List<Integer>> cache = new LRUCache<>(10, list -> list.size());
+		
+		cache.put("a", asList(1, 2, 3, 4));
+		cache.put("b", asList(1, 2, 3, 4));
+		assertEquals(8, cache.weight());
+		
+		cache.put("c", asList(1, 2, 3));
+		assertEquals(7, cache.weight());
+		assertFalse(cache.containsKey("a"));
+		
+		cache.remove("b");
+		assertEquals(3, cache.weight());
+		
+		// - a single entry heavier than the maximum is kept (until the next put)
+		cache.put("d", asList(1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11));
+		assertEquals(1, cache.size());
+		assertEquals(11, cache.weight());
+		
+		cache.put("e", asList(1));
+		assertEquals(1, cache.size());
+		assertTrue(cache.containsKey("e"));
+	}
+}
@@ -0,0 +1,138 @@
+package nl.peterbloem.motive.rdf;
+
+import static java.util.Arrays.asList;
+import static nl.peterbloem.kit.Series.series;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LabelDictionaryTest
+{
+	@Test
+	public void testPrefixes()
+	{
+		List<String> labels = asList(
+				"http://example.org/a", "http://example.org/ab", "http://example.org/",
+				"", "http://example.org/b", "http://other.org/é", "http://other.org/ü",
+				"http://other.org/ü");
+
+		LabelDictionary dict = new LabelDictionary(labels);
+
+		assertEquals(labels.size(), dict.size());
+		assertEquals(labels, dict);
+
+		for(int i : series(labels.size()))
+			assertEquals(labels.get(i), dict.get(i));
+	}
+
+	@Test
+	public void testRandom()
+	{
+		Random random = new Random(0);
+
+		// - sorted IRIs over several blocks, plus some arbitrary strings
+		List<String> labels = new ArrayList<>();
+		for(int i : series(1000))
+			labels.add("http://example.org/resource/" + random.nextInt(5000));
+		Collections.sort(labels);
+
+		for(int i : series(100))
+		{
+			StringBuilder builder = new StringBuilder();
+			int length = random.nextInt(300);
+			for(int j : series(length))
+				builder.append((char)(32 + random.nextInt(0x3000)));
+
+			labels.add(builder.toString());
+		}
+
+		LabelDictionary dict = new LabelDictionary();
+		for(String label : labels)
+			dict.add(label);
+		dict.trim();
+
+		assertEquals(labels, dict);
+
+		// - random access
+		for(int i : series(1000))
+		{
+			int index = random.nextInt(labels.size());
+			assertEquals(labels.get(index), dict.get(index));
+		}
+	}
+
+	@Test
+	public void testClear()
+	{
+		LabelDictionary dict = new LabelDictionary(asList("a", "b", "c"));
+
+		dict.clear();
+		dict.trim();
+		assertEquals(0, dict.size());
+
+		dict.add("x");
+		dict.add("xy");
+		assertEquals(asList("x", "xy"), dict);
+	}
+
+	/**
+	 * With tiny pages, labels and numbers span several pages.
+	 */
+	@Test
+	public void testPages()
+		throws IOException
+	{
+		Random random = new Random(0);
+
+		List<String> labels = new ArrayList<>();
+		for(int i : series(500))
+			labels.add("http://example.org/" + random.nextInt(100000) + "/é");
+		Collections.sort(labels);
+
+		LabelDictionary dict = new LabelDictionary(3);
+		for(String label : labels.subList(0, 250))
+			dict.add(label);
+		dict.trim();
+		for(String label : labels.subList(250, 500))
+			dict.add(label);
+
+		assertEquals(labels, dict);
+
+		// - write and read back
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		dict.write(Channels.newChannel(bytes));
+		LabelDictionary read = LabelDictionary.read(
+				Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray())));
+
+		assertEquals(labels, read);
+
+		read.add("http://example.org/last");
+		assertEquals("http://example.org/last", read.get(500));
+
+		LabelDictionary copy = new LabelDictionary();
+		copy.assign(dict);
+		assertEquals(labels, copy);
+		assertEquals(dict.bytes(), copy.bytes());
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void testBounds()
+	{
+		new LabelDictionary(asList("a")).get(1);
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testSet()
+	{
+		new LabelDictionary(asList("a")).set(0, "b");
+	}
+}
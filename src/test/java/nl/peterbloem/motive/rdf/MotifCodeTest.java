@@ -12,6 +12,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 
 import org.apache.xerces.util.SynchronizedSymbolTable;
@@ -65,6 +66,37 @@ public class MotifCodeTest
 		}
 	}
 	
+	/**
+	 * Pruning the matches from an iterator should give the same result as 
+	 * pruning the full list. 
+	 */
+	@Test
+	public void testPruneIterator()
+	{
+		List<Triple> triples = new ArrayList<>();
+		for(int i : series(300))
+			triples.add(t(
+					Global.random().nextInt(30), 
+					Global.random().nextInt(3), 
+					Global.random().nextInt(30)));
+		
+		KGraph graph = new KGraph(triples);
+		
+		DTGraph<Integer, Integer> pattern = new MapDTGraph<>();
+		DTNode<Integer, Integer> n1 = pattern.add(-1),
+				                 n2 = pattern.add(-2),
+				                 n3 = pattern.add(-3);
+		
+		n1.connect(n2, -4);
+		n2.connect(n3, 0);
+		
+		List<List<Integer>> expected = MotifCode.prune(pattern, Find.find(pattern, graph));
+		
+		Find.MatchIterator iterator = Find.iterator(pattern, graph);
+		assertEquals(expected, MotifCode.prune(pattern, iterator));
+		assertEquals(Find.find(pattern, graph).size(), iterator.numMatches());
+	}
+	
 	@Test
 	public void testSynth3()
 	{
@@ -184,6 +216,49 @@ public class MotifCodeTest
 		}
 	}
 	
+	/**
+	 * The codelength from the graph's cached degrees should equal that from 
+	 * the boxed degree lists.
+	 */
+	@Test
+	public void testCachedDegrees()
+	{
+		Random random = new Random(0);
+		
+		List<Triple> triples = new ArrayList<>();
+		for(int i : series(2000))
+			triples.add(t(random.nextInt(100), random.nextInt(4), random.nextInt(100)));
+		KGraph graph = new KGraph(triples);
+		
+		List<List<Integer>> degrees = new ArrayList<>();
+		for(List<Integer> sequence : KGraph.degrees(graph))
+			degrees.add(new ArrayList<>(sequence));
+		
+		DTGraph<Integer, Integer> pattern = new MapDTGraph<>();
+		DTNode<Integer, Integer> n1 = pattern.add(-1), n2 = pattern.add(-2), n3 = pattern.add(-3);
+		n1.connect(n2, 0);
+		n2.connect(n3, -4);
+		
+		List<List<Integer>> matches = MotifCode.prune(pattern, Find.find(pattern, graph));
+		assertFalse(matches.isEmpty());
+		
+		for(Prior prior : Prior.values())
+			assertEquals(EdgeListModel.codelength(degrees, prior), EdgeListModel.codelength(graph, prior), 1e-7);
+		
+		assertEquals(
+				MotifCode.codelength(degrees, pattern, matches, true), 
+				MotifCode.codelength(graph, pattern, matches, true), 1e-7);
+		assertEquals(
+				MotifCode.codelength(degrees, pattern, matches), 
+				MotifCode.codelength(graph, pattern, matches), 1e-7);
+		
+		List<DTGraph<Integer, Integer>> patterns = asList(pattern);
+		List<List<List<Integer>>> values = MotifCode.pruneValues(patterns, asList(matches));
+		assertEquals(
+				MotifCode.codelength(degrees, patterns, values, false), 
+				MotifCode.codelength(graph, patterns, values, false), 1e-7);
+	}
+	
 	@Test
 	public void testDogfood()
 	{
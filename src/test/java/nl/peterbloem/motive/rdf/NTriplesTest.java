@@ -0,0 +1,168 @@
+package nl.peterbloem.motive.rdf;
+
+import static java.util.Arrays.asList;
+import static nl.peterbloem.kit.Series.series;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+
+public class NTriplesTest
+{
+	private static final String DATA =
+			"# a comment\n" +
+			"<http://example.org/a> <http://example.org/p> <http://example.org/b> .\n" +
+			"\n" +
+			"<http://example.org/b> <http://example.org/p> \"some \\\"text\\\"\"@en-GB .\n" +
+			"_:x1 <http://example.org/q> \"5\"^^<http://www.w3.org/2001/XMLSchema#int> .\r\n" +
+			"  <http://example.org/a>\t<http://example.org/q>   _:x1. # trailing comment\n" +
+			"<http://example.org/a> <http://example.org/p> <http://example.org/b> .\n" +
+			"<http://example.org/b> <http://example.org/q> \"héllo\" .";
+
+	@Test
+	public void testParse()
+		throws IOException
+	{
+		List<String> nodes = new ArrayList<>(), relations = new ArrayList<>();
+		KGraph graph = NTriples.load(stream(DATA), nodes, relations);
+
+		assertEquals(asList(
+				"http://example.org/a", "http://example.org/b",
+				"\"some \\\"text\\\"\"@en-GB", "_:x1",
+				"\"5\"^^<http://www.w3.org/2001/XMLSchema#int>", "\"héllo\""), nodes);
+		assertEquals(asList("http://example.org/p", "http://example.org/q"), relations);
+
+		// - the duplicate triple is removed
+		assertEquals(6, graph.size());
+		assertEquals(5, graph.numLinks());
+
+		assertEquals(1, graph.find(0, 0, 1).size());
+		assertEquals(1, graph.find(0, 1, 3).size());
+		assertEquals(1, graph.find(3, 1, 4).size());
+	}
+
+	/**
+	 * The result should not depend on the chunking or the number of threads.
+	 */
+	@Test
+	public void testChunks()
+		throws IOException
+	{
+		StringBuilder data = new StringBuilder();
+		for(int i : series(2000))
+			data.append("<http://example.org/n" + (i % 71) + "> <http://example.org/r" + (i % 3) + "> \"literal " + (i % 113) + "\" .\n");
+
+		List<String> nodes1 = new ArrayList<>(), relations1 = new ArrayList<>();
+		KGraph g1 = NTriples.load(stream(data.toString()), nodes1, relations1, 1, 1 << 20);
+
+		// - chunks shorter than a line
+		List<String> nodes2 = new ArrayList<>(), relations2 = new ArrayList<>();
+		KGraph g2 = NTriples.load(stream(data.toString()), nodes2, relations2, 3, 20);
+
+		List<String> nodes3 = new ArrayList<>(), relations3 = new ArrayList<>();
+		KGraph g3 = NTriples.load(stream(data.toString()), nodes3, relations3, 2, 1000);
+
+		assertEquals(nodes1, nodes2);
+		assertEquals(nodes1, nodes3);
+		assertEquals(relations1, relations2);
+		assertEquals(relations1, relations3);
+
+		assertEquals(g1, g2);
+		assertEquals(g1, g3);
+		assertEquals(71 + 113, g1.size());
+	}
+
+	@Test
+	public void testErrors()
+		throws IOException
+	{
+		List<String> bad = asList(
+				"<http://example.org/a> <http://example.org/p> <http://example.org/b>\n",
+				"<http://example.org/a> <http://example.org/p> <http://example.org/b .\n",
+				"\"a\" <http://example.org/p> <http://example.org/b> .\n",
+				"<http://example.org/a> _:p <http://example.org/b> .\n",
+				"<http://example.org/a> <http://example.org/p> \"b .\n",
+				"<http://example.org/a> <http://example.org/p> <http://example.org/b> . x\n");
+
+		for(String line : bad)
+			try {
+				NTriples.load(stream(line), null, null);
+				fail("No exception for " + line);
+			} catch(IllegalArgumentException e)
+			{
+				assertTrue(e.getMessage().startsWith("Malformed N-Triples"));
+			}
+	}
+
+	/**
+	 * Loads the bundled dogfood dump, and checks it against a direct, line
+	 * by line reading of the file.
+	 */
+	@Test
+	public void testDogfood()
+		throws IOException
+	{
+		File file = new File(NTriplesTest.class.getClassLoader().getResource("data/swdf-2012-11-28.nt.gz").getFile());
+
+		List<String> nodes = new LabelDictionary(), relations = new LabelDictionary();
+		KGraph graph = KGraph.loadNT(file, nodes, relations);
+
+		Set<List<String>> expected = new HashSet<>();
+		try(InputStream in = new GZIPInputStream(new FileInputStream(file)))
+		{
+			for(String line : new String(readAll(in), StandardCharsets.UTF_8).split("\n"))
+			{
+				String[] parts = line.split(" ", 3);
+				String object = parts[2].substring(0, parts[2].lastIndexOf(" ."));
+
+				expected.add(asList(strip(parts[0]), strip(parts[1]), strip(object)));
+			}
+		}
+
+		Set<List<String>> actual = new HashSet<>();
+		for(Triple triple : graph.find(null, null, null))
+			actual.add(asList(
+					nodes.get(triple.subject()),
+					relations.get(triple.predicate()),
+					nodes.get(triple.object())));
+
+		assertEquals(expected.size(), graph.numLinks());
+		assertEquals(expected, actual);
+	}
+
+	private static String strip(String term)
+	{
+		if(term.startsWith("<") && term.endsWith(">"))
+			return term.substring(1, term.length() - 1);
+		return term;
+	}
+
+	private static byte[] readAll(InputStream in)
+		throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1 << 16];
+		int read;
+		while((read = in.read(buffer)) >= 0)
+			out.write(buffer, 0, read);
+
+		return out.toByteArray();
+	}
+
+	private static InputStream stream(String data)
+	{
+		return new ByteArrayInputStream(data.getBytes(StandardCharsets.UTF_8));
+	}
+}
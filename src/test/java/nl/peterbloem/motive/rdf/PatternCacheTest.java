@@ -0,0 +1,167 @@
+package nl.peterbloem.motive.rdf;
+
+import static java.util.Arrays.asList;
+import static nl.peterbloem.kit.Series.series;
+import static nl.peterbloem.motive.rdf.Triple.t;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.nodes.DTGraph;
+import org.nodes.DTNode;
+import org.nodes.MapDTGraph;
+
+import nl.peterbloem.kit.Global;
+
+public class PatternCacheTest
+{
+	private static DTGraph<Integer, Integer> pattern()
+	{
+		DTGraph<Integer, Integer> pattern = new MapDTGraph<>();
+		DTNode<Integer, Integer> n1 = pattern.add(-1),
+		                         n2 = pattern.add(-2);
+		n1.connect(n2, 0);
+		
+		return Nauty.canonical(pattern, true);
+	}
+	
+	/**
+	 * Threads asking for the same pattern at the same time should wait for a 
+	 * single computation.
+	 */
+	@Test
+	public void testInFlight()
+		throws Exception
+	{
+		final PatternCache cache = new PatternCache();
+		final AtomicInteger computed = new AtomicInteger();
+		final CountDownLatch started = new CountDownLatch(1);
+		
+		int n = 8;
+		ExecutorService exec = Executors.newFixedThreadPool(n);
+		List<Future<PatternCache.Entry>> futures = new ArrayList<>();
+		for(int i : series(n))
+			futures.add(exec.submit(() -> {
+				started.await();
+				return cache.get(pattern(), () -> {
+					computed.incrementAndGet();
+					try {
+						Thread.sleep(200);
+					} catch (InterruptedException e)
+					{
+						throw new RuntimeException(e);
+					}
+					return new PatternCache.Entry(Collections.<List<Integer>>emptyList(), true, 1.0);
+				});
+			}));
+		
+		started.countDown();
+		
+		PatternCache.Entry first = futures.get(0).get();
+		for(Future<PatternCache.Entry> future : futures)
+			assertSame(first, future.get());
+		
+		exec.shutdown();
+		exec.awaitTermination(1, TimeUnit.MINUTES);
+		
+		assertEquals(1, computed.get());
+		assertEquals(1, cache.numEvaluated());
+		assertEquals(1, cache.size());
+	}
+	
+	/**
+	 * When the matches of a pattern are evicted, its score should be kept.
+	 */
+	@Test
+	public void testBounded()
+	{
+		PatternCache cache = new PatternCache(10, 100);
+		
+		List<DTGraph<Integer, Integer>> patterns = new ArrayList<>();
+		for(int i : series(5))
+		{
+			DTGraph<Integer, Integer> pattern = new MapDTGraph<>();
+			pattern.add(-1).connect(pattern.add(i), 0);
+			patterns.add(Nauty.canonical(pattern, true));
+		}
+		
+		for(int i : series(5))
+		{
+			final List<List<Integer>> matches = new ArrayList<>();
+			for(int j : series(4))
+				matches.add(asList(j));
+			
+			cache.get(patterns.get(i), () -> new PatternCache.Entry(matches, true, i));
+		}
+		
+		// - each entry weighs 5, so only the last two fit
+		assertEquals(2, cache.size());
+		assertEquals(8, cache.numMatches());
+		assertFalse(cache.contains(patterns.get(0)));
+		assertTrue(cache.contains(patterns.get(4)));
+		
+		assertEquals(5, cache.numScores());
+		assertEquals(0.0, cache.score(patterns.get(0)), 0.0);
+	}
+	
+	/**
+	 * A failed computation should not stay in the cache.
+	 */
+	@Test
+	public void testFailure()
+	{
+		PatternCache cache = new PatternCache();
+		
+		try {
+			cache.get(pattern(), () -> { throw new IllegalStateException(); });
+			fail();
+		} catch(IllegalStateException e) {}
+		
+		assertFalse(cache.contains(pattern()));
+		
+		PatternCache.Entry entry = cache.get(pattern(), 
+				() -> new PatternCache.Entry(Collections.<List<Integer>>emptyList(), true, 2.0));
+		assertEquals(2.0, entry.score(), 0.0);
+	}
+	
+	/**
+	 * Searches sharing a cache should see the same matches as a search of 
+	 * their own.
+	 */
+	@Test
+	public void testShared()
+	{
+		List<Triple> triples = new ArrayList<>();
+		for(int i : series(200))
+			triples.add(t(
+					Global.random().nextInt(30), 
+					Global.random().nextInt(3), 
+					Global.random().nextInt(30)));
+		
+		KGraph graph = new KGraph(triples);
+		
+		PatternCache cache = new PatternCache();
+		List<SimAnnealing> searches = new ArrayList<>();
+		for(int i : series(3))
+			searches.add(new SimAnnealing(graph, 0.5, 5, pattern(), null, cache));
+		
+		for(int i : series(100))
+			for(SimAnnealing search : searches)
+				search.iterate();
+		
+		assertTrue(cache.size() > 1);
+		
+		for(SimAnnealing search : searches)
+			for(DTGraph<Integer, Integer> motif : search.byScore(10))
+				assertEquals(Find.find(motif, graph).size(), search.frequency(motif));
+	}
+}
@@ -1,16 +1,24 @@
 package nl.peterbloem.motive.rdf;
 
 import static nl.peterbloem.kit.Series.series;
+import static nl.peterbloem.motive.rdf.Triple.t;
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 
 import org.junit.Test;
 import org.nodes.DTGraph;
 import org.nodes.DTNode;
 import org.nodes.MapDTGraph;
 
+import nl.peterbloem.kit.Functions;
+import nl.peterbloem.kit.Global;
 import nl.peterbloem.kit.Series;
+import nl.peterbloem.motive.rdf.SimAnnealing.Transition;
 import nl.peterbloem.motive.rdf.EdgeListModel.Prior;
 
 public class SimAnnealingTest
@@ -54,4 +62,118 @@ public class SimAnnealingTest
 			}
 		}
 	}
+	
+	/**
+	 * The best pattern should be kept, even if the patterns visited later push 
+	 * it out of the (bounded) scores of the search.
+	 */
+	@Test
+	public void testBestRetained()
+	{
+		List<Triple> triples = new ArrayList<>();
+		for(int i : series(2000))
+			triples.add(t(
+					Global.random().nextInt(200), 
+					Global.random().nextInt(5), 
+					Global.random().nextInt(200)));
+		KGraph graph = new KGraph(triples);
+		
+		SimAnnealing search = new SimAnnealing(graph, 0.5, 10, null, null, 
+				new PatternCache(PatternCache.MAX_MATCHES, 3));
+		
+		double best = search.score;
+		for(int i : series(200))
+		{
+			search.iterate();
+			best = Math.min(best, search.score);
+		}
+		
+		DTGraph<Integer, Integer> top = search.byScore(1).get(0);
+		assertTrue(search.score(top) <= best);
+		assertTrue(search.frequency(top) > 0);
+	}
+	
+	/**
+	 * The matches derived from the parent pattern should be the same as those 
+	 * found by a full search, and should lead to the same score.
+	 */
+	@Test
+	public void testDerive()
+	{
+		// - small and dense, with self-loops, so that variables often coincide 
+		//   with constants
+		List<Triple> triples = new ArrayList<>();
+		for(int i : series(120))
+			triples.add(t(
+					Global.random().nextInt(12), 
+					Global.random().nextInt(3), 
+					Global.random().nextInt(12)));
+		
+		KGraph graph = new KGraph(triples);
+		
+		int checked = 0;
+		for(int rep : series(50))
+		{
+			DTGraph<Integer, Integer> pattern = new MapDTGraph<>();
+			DTNode<Integer, Integer> n1 = pattern.add(-1),
+					                 n2 = pattern.add(-2),
+					                 n3 = pattern.add(-3);
+			n1.connect(n2, -4);
+			n2.connect(n3, -5);
+			n3.connect(n1, 1);
+			
+			pattern = Nauty.canonical(pattern, true);
+			List<List<Integer>> matches = Find.find(pattern, graph);
+			
+			for(int i : series(5))
+			{
+				if(matches.isEmpty())
+					break;
+				
+				Transition trans = Functions.choose(SimAnnealing.transitions);
+				if(! SimAnnealing.specializes(trans))
+					continue;
+				
+				Map<Integer, Integer> derivation = new LinkedHashMap<>();
+				DTGraph<Integer, Integer> child = SimAnnealing.transition(pattern, trans, matches, graph, derivation);
+				if(child == null)
+					continue;
+				
+				Map<Integer, Integer> canonical = new LinkedHashMap<>();
+				child = Nauty.canonical(child, true, canonical);
+				for(Map.Entry<Integer, Integer> entry : derivation.entrySet())
+					if(entry.getValue() < 0)
+						entry.setValue(canonical.get(entry.getValue()));
+				
+				FindResult derived = SimAnnealing.derive(pattern, matches, child, derivation, graph, 60);
+				List<List<Integer>> expected = Find.find(child, graph);
+				
+				if(derived != null)
+				{
+					assertEquals(expected.size(), derived.matches().size());
+					assertEquals(new LinkedHashSet<>(expected), new LinkedHashSet<>(derived.matches()));
+					
+					List<List<Integer>> searched = Find.search(child, graph).matches();
+					assertEquals(score(child, searched, graph), score(child, derived.matches(), graph), 1e-7);
+					checked ++;
+				}
+				
+				pattern = child;
+				matches = expected;
+			}
+		}
+		
+		assertTrue(checked > 0);
+	}
+	
+	/**
+	 * Scores the matches in the same way as SimAnnealing.evaluate().
+	 */
+	private static double score(DTGraph<Integer, Integer> pattern, List<List<Integer>> matches, KGraph graph)
+	{
+		SimAnnealing.sortMatches(matches);
+		List<List<Integer>> pruned = MotifCode.prune(pattern, matches);
+		
+		return MotifCode.codelength(graph, pattern, pruned, true);
+	}
 }